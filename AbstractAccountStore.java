@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.CompletionException;
+
+/**The parts of an {@code AccountStore} shared by every store<br>
+ * Creating an account, checking a password, upgrading an MD5 hash and releasing the lease<br>
+ * at logout work the same whether the accounts are in an {@code AccountTable}, an<br>
+ * {@code AccountFile} or the database, only reading and writing an account differs.<br>
+ * Subclasses supply that
+ */
+public abstract class AbstractAccountStore implements AccountStore
+{
+    /**Link to {@code LocalBank}*/
+    public LocalBank localBank;
+    /**Hashes passwords off the calling thread*/
+    final CryptoService crypto = CryptoService.shared();
+    /**Name the store traces under*/
+    final String name = getClass().getSimpleName();
+
+    /** {@code AbstractAccountStore} constructor, links instance back to {@code LocalBank}
+     *
+     * @param parent The {@code LocalBank} instance to link to
+     */
+    protected AbstractAccountStore(LocalBank parent) {
+        localBank = parent;
+    }
+
+    /** Stores a new account with its password already hashed
+     *
+     * @return {@code false} if there is already an account with that id
+     */
+    abstract boolean create(int id, byte[] hashPass, byte[] salt, int cost, int balance,
+                            int overdraft, String accountType) throws IOException;
+
+    /** Returns an account's password hash, salt, type and overdraft
+     *
+     * @return              The credentials, or {@code null} if there is no such account
+     * @throws SQLException If they couldn't be read from a database
+     */
+    abstract AccountCredentials getCredentials(int id) throws SQLException;
+
+    /** Replaces an account's password hash
+     *
+     */
+    abstract void setPassword(int id, byte[] hashPass, byte[] salt, int cost);
+
+    /** Leases an account to this session
+     *
+     * @return {@code false} if another session holds an unexpired lease
+     */
+    abstract boolean acquire(int id);
+
+    /** Gives back the lease taken by {@link #acquire}
+     *
+     */
+    abstract void release(int id);
+
+    /** Returns an account's stored balance
+     *
+     * @throws SQLException If it couldn't be read from a database
+     */
+    abstract int getBalance(int id) throws SQLException;
+
+    /** Brings an account's stored balance up to date with changes kept elsewhere, such as<br>
+     *  in a {@code Ledger}. Called holding its lease, before the balance is read at login<br>
+     *  and before the lease is released at logout. Does nothing unless overridden
+     *
+     * @throws SQLException If the changes couldn't be applied
+     */
+    void flush(int id) throws SQLException {
+    }
+
+    public boolean createAccount(int id, int password, int balance, int overdraft,
+                                 String accountType) {
+        Debug.trace(name + "::createAccount");
+        long start = System.nanoTime();
+        try {
+            byte[] salt = crypto.newSalt();
+            int cost = crypto.getCost();
+            byte[] hashPass = crypto.hashAsync(password, salt, cost).join();
+            if (create(id, hashPass, salt, cost, balance, overdraft, accountType)) {
+                Debug.trace(name + "::createAccount::Created account %d", id);
+                return true;
+            }
+            Debug.trace(name + "::createAccount::Account %d not created", id);
+        } catch (CompletionException e) {
+            Debug.trace(name + "::createAccount::" + e.getCause());
+        } catch (IOException | IllegalArgumentException e) {
+            Debug.trace(name + "::createAccount::" + e);
+        } finally {
+            Metrics.createAccount.record(System.nanoTime() - start);
+        }
+        return false;
+    }
+
+    public boolean checkPassword(int i, int pass) {
+        Debug.trace(name + "::checkPassword");
+
+        long start = System.nanoTime();
+        boolean valid = logIn(i, pass);
+        Metrics.checkPassword.record(System.nanoTime() - start);
+        (valid ? Metrics.logins : Metrics.loginFailures).increment();
+        return valid;
+    }
+
+    /** Does the work of {@link #checkPassword}
+     *
+     */
+    private boolean logIn(int i, int pass) {
+        try {
+            AccountCredentials account = getCredentials(i);
+            if (account == null) {
+                Debug.trace(name + "::checkPassword::No account %d", i);
+                return false;
+            }
+
+            if (crypto.verifyAsync(pass, account).join()) {
+                if (account.kdfCost == CryptoService.LEGACY_MD5) {
+                    rehash(i, pass);
+                }
+
+                if (!acquire(i)) {
+                    Debug.trace(name + "::checkPassword::Account %d is in use", i);
+                    Metrics.lockedRejections.increment();
+                    return false;
+                }
+                try {
+                    flush(i);
+                    localBank.currentAccount = localBank.makeAccount(account.accountType, i,
+                                                                     getBalance(i),
+                                                                     account.overdraft);
+                } catch (Exception e) {
+                    release(i);
+                    throw e;
+                }
+                return true;
+            }
+        } catch (Exception e) {
+            Debug.trace(name + "::checkPassword::" + e);
+        }
+        return false;
+    }
+
+    /** Replaces an account's MD5 hash with one at the current cost, without waiting
+     *
+     */
+    private void rehash(int id, int password) {
+        byte[] salt = crypto.newSalt();
+        int cost = crypto.getCost();
+        crypto.hashAsync(password, salt, cost).whenComplete((hashPass, e) -> {
+            if (e != null) {
+                Debug.trace(name + "::rehash::" + e);
+            } else {
+                setPassword(id, hashPass, salt, cost);
+            }
+        });
+    }
+
+    /** Finishes with an account at logout by bringing its stored balance up to date with<br>
+     *  {@link #flush} and releasing its lease
+     *
+     */
+    public void saveAccount(LocalBankAccount account) {
+        Debug.trace(name + "::saveAccount");
+
+        if (account == null) {
+            Debug.trace(name + "::saveAccount::No account to save");
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            flush(account.id);
+        } catch (SQLException e) {
+            Debug.trace(name + "::saveAccount::" + e);
+        } finally {
+            release(account.id);
+            Metrics.saveAccount.record(System.nanoTime() - start);
+        }
+    }
+}
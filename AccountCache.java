@@ -0,0 +1,301 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**Bounded cache of {@code AccountCredentials} in front of the database, keyed by account id<br>
+ * Account ids that don't exist are cached too, as {@link #MISSING}, so repeated guesses at<br>
+ * account numbers don't reach the database. Entries expire after a time to live, and when a<br>
+ * segment is full the least recently used entries are evicted with a clock sweep.<br>
+ * The cache is split into segments, each an open-addressing table of primitive {@code int}<br>
+ * keys with its own lock, so lookups don't box ids or contend on a single lock
+ */
+public class AccountCache
+{
+    static final int DEFAULT_CAPACITY = 65536;
+    static final long DEFAULT_TTL_MS = 300000;
+    static final long NEGATIVE_TTL_MS = 30000;
+    /**Number of segments, must be a power of two*/
+    static final int SEGMENTS = 16;
+
+    /**Cached in place of an account that doesn't exist*/
+    static final AccountCredentials MISSING = new AccountCredentials(0, new byte[0], new byte[0],
+                                                                     null, 0, 0);
+
+    /**One cache per database, keyed by JDBC url*/
+    private static final Map<String, AccountCache> caches =
+            new ConcurrentHashMap<String, AccountCache>();
+
+    final Segment[] segments = new Segment[SEGMENTS];
+    final long ttlNanos;
+    final long negativeTtlNanos;
+
+    //Statistics
+    final LongAdder hits = new LongAdder();
+    final LongAdder negativeHits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder expirations = new LongAdder();
+
+    /** {@code AccountCache} constructor
+     *
+     * @param capacity      Most entries held, including missing accounts
+     * @param ttlMillis     How long an account is cached
+     * @param negativeMillis How long a missing account is cached
+     */
+    public AccountCache(int capacity, long ttlMillis, long negativeMillis) {
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeMillis);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+        }
+    }
+
+    /** Returns the cache shared by everything using a database
+     *
+     * @param url JDBC url of the database
+     */
+    static AccountCache forDatabase(String url) {
+        return caches.computeIfAbsent(url, u ->
+                new AccountCache(DEFAULT_CAPACITY, DEFAULT_TTL_MS, NEGATIVE_TTL_MS));
+    }
+
+    /** Spreads account ids, which are often sequential, over the table
+     *
+     */
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    /** Looks up an account
+     *
+     * @param id The account id
+     * @return   The credentials, {@link #MISSING} if the account is known not to exist,<br>
+     *           or {@code null} if it isn't cached
+     */
+    public AccountCredentials get(int id) {
+        int h = hash(id);
+        AccountCredentials value = segmentFor(h).get(id, h >>> 4);
+        if (value == null) {
+            misses.increment();
+        } else if (value == MISSING) {
+            negativeHits.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /** Returns the version of an account's segment, taken before loading it from the database<br>
+     *  so a load that races with an invalidation doesn't put stale data back
+     *
+     * @param id The account id
+     */
+    public long version(int id) {
+        return segmentFor(hash(id)).version();
+    }
+
+    /** Caches an account loaded from the database
+     *
+     * @param id      The account id
+     * @param value   Its credentials, or {@link #MISSING} if it doesn't exist
+     * @param version The {@link #version} from before it was loaded
+     */
+    public void put(int id, AccountCredentials value, long version) {
+        int h = hash(id);
+        long ttl = value == MISSING ? negativeTtlNanos : ttlNanos;
+        segmentFor(h).put(id, h >>> 4, value, System.nanoTime() + ttl, version);
+    }
+
+    /** Removes an account, used whenever it is created or its password changes
+     *
+     * @param id The account id
+     */
+    public void invalidate(int id) {
+        int h = hash(id);
+        segmentFor(h).invalidate(id, h >>> 4);
+    }
+
+    /** Removes every account
+     *
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /** Returns the number of cached entries, including missing accounts
+     *
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public String toString() {
+        return String.format("hits=%d negativeHits=%d misses=%d evictions=%d expirations=%d " +
+                             "size=%d", hits.sum(), negativeHits.sum(), misses.sum(),
+                             evictions.sum(), expirations.sum(), size());
+    }
+
+    /**One lock's worth of the cache, a linear probing table with parallel arrays*/
+    private final class Segment {
+        final int maxSize;
+        final int mask;
+        final int[] keys;
+        final AccountCredentials[] values;
+        final long[] expires;
+        final boolean[] referenced;
+        int size = 0;
+        /**Position of the clock hand for eviction*/
+        int hand = 0;
+        /**Changed by every invalidation*/
+        long version = 0;
+
+        Segment(int maxSize) {
+            this.maxSize = maxSize;
+            int tableSize = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+            mask = tableSize - 1;
+            keys = new int[tableSize];
+            values = new AccountCredentials[tableSize];
+            expires = new long[tableSize];
+            referenced = new boolean[tableSize];
+        }
+
+        /** Returns the slot holding an id, or -1
+         *
+         */
+        private int find(int id, int h) {
+            int i = h & mask;
+            while (values[i] != null) {
+                if (keys[i] == id) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        synchronized AccountCredentials get(int id, int h) {
+            int i = find(id, h);
+            if (i < 0) {
+                return null;
+            }
+            if (expires[i] - System.nanoTime() < 0) {
+                remove(i);
+                expirations.increment();
+                return null;
+            }
+            referenced[i] = true;
+            return values[i];
+        }
+
+        synchronized long version() {
+            return version;
+        }
+
+        synchronized void put(int id, int h, AccountCredentials value, long expiry, long seen) {
+            if (seen != version) {
+                return; //Invalidated while it was being loaded
+            }
+
+            int i = find(id, h);
+            if (i < 0) {
+                if (size == maxSize) {
+                    evict();
+                }
+                i = h & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                size++;
+            }
+            keys[i] = id;
+            values[i] = value;
+            expires[i] = expiry;
+            referenced[i] = false;
+        }
+
+        synchronized void invalidate(int id, int h) {
+            version++;
+            int i = find(id, h);
+            if (i >= 0) {
+                remove(i);
+            }
+        }
+
+        synchronized void clear() {
+            version++;
+            java.util.Arrays.fill(values, null);
+            size = 0;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /** Removes one entry, preferring expired ones and then ones not used recently
+         *
+         */
+        private void evict() {
+            long now = System.nanoTime();
+            while (true) {
+                hand = (hand + 1) & mask;
+                if (values[hand] == null) {
+                    continue;
+                }
+                if (expires[hand] - now < 0) {
+                    remove(hand);
+                    expirations.increment();
+                    return;
+                }
+                if (referenced[hand]) {
+                    referenced[hand] = false;
+                } else {
+                    remove(hand);
+                    evictions.increment();
+                    return;
+                }
+            }
+        }
+
+        /** Empties a slot, moving later entries back so every entry stays reachable from its<br>
+         *  home slot without leaving tombstones
+         *
+         */
+        private void remove(int slot) {
+            values[slot] = null;
+            size--;
+
+            int gap = slot;
+            int i = slot;
+            while (true) {
+                i = (i + 1) & mask;
+                if (values[i] == null) {
+                    return;
+                }
+                int home = (hash(keys[i]) >>> 4) & mask;
+                //Move the entry into the gap unless its home is between the gap and it
+                boolean between = gap <= i ? (gap < home && home <= i)
+                                           : (gap < home || home <= i);
+                if (!between) {
+                    keys[gap] = keys[i];
+                    values[gap] = values[i];
+                    expires[gap] = expires[i];
+                    referenced[gap] = referenced[i];
+                    values[i] = null;
+                    gap = i;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/**The parts of an account that don't change between logins: its password hash, salt, type,<br>
+ * overdraft and hash cost. Immutable, so one instance can be shared by every session through the<br>
+ * {@code AccountCache}. The balance is not included, it is always read fresh
+ */
+public final class AccountCredentials
+{
+    /**Account ID*/
+    final int id;
+    /**Raw password hash, however it is stored in the database*/
+    final byte[] password;
+    /**Raw salt used in the hash*/
+    final byte[] salt;
+    /**{@code BasicAccount} or {@code StudentAccount}*/
+    final String accountType;
+    /**Overdraft limit*/
+    final int overdraft;
+    /**PBKDF2 iterations used for the hash, 0 for the old MD5 hash*/
+    final int kdfCost;
+
+    AccountCredentials(int id, byte[] password, byte[] salt, String accountType, int overdraft,
+                       int kdfCost) {
+        this.id = id;
+        this.password = password;
+        this.salt = salt;
+        this.accountType = accountType;
+        this.overdraft = overdraft;
+        this.kdfCost = kdfCost;
+    }
+}
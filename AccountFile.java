@@ -0,0 +1,575 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+/**Accounts kept in a memory-mapped file of fixed-width records, the storage behind<br>
+ * {@code MappedAccountStore}<br>
+ * Records are found through a second mapped file, an open-addressing index from account id<br>
+ * to record number, so a lookup is a few memory reads with no SQL, no strings and no hex.<br>
+ * Balances are changed in place with compare-and-set, and leases are a word in the record<br>
+ * changed the same way, so they also hold between processes mapping the same file. Writes<br>
+ * reach the disk when {@link #checkpoint} forces the mappings, every second once<br>
+ * {@link #startCheckpoints} is called. The index can always be rebuilt from the records.
+ * <p>
+ * File layout: a {@link #HEADER_SIZE} byte header<br>
+ * {@code magic int, version int, recordSize int, records int}<br>
+ * followed by {@link #RECORD_SIZE} byte records<br>
+ * {@code id int, balance int, overdraft int, kdfCost int, lease long, type byte,}<br>
+ * {@code digestLength byte, unused 6 bytes, salt 16 bytes, digest 32 bytes}<br>
+ * A lease is the owner's token in the high half and its expiry in epoch seconds in the low<br>
+ * half, 0 when free.
+ * <p>
+ * Index layout: a {@link #HEADER_SIZE} byte header {@code magic int, version int, slots int,}<br>
+ * {@code records int}, followed by 8 byte slots {@code id int, record + 1 int}, 0 when free
+ */
+public class AccountFile
+{
+    static final int MAGIC = 0x41544d41; //"ATMA"
+    static final int INDEX_MAGIC = 0x41544d49; //"ATMI"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 80;
+    static final int SLOT_SIZE = 8;
+    static final int SALT_SIZE = 16;
+    static final int DIGEST_SIZE = 32;
+    /**Records the file grows by when it fills up*/
+    static final int GROW_RECORDS = 1 << 14;
+    /**Time between checkpoints once {@link #startCheckpoints} is called*/
+    static final long DEFAULT_CHECKPOINT_MS = 1000;
+    /**Length of a lease, renewed by every heartbeat*/
+    static final int LEASE_SECONDS = (int) (AccountLockManager.DEFAULT_LEASE_MS / 1000);
+
+    //Header offsets
+    private static final int H_MAGIC = 0, H_VERSION = 4, H_SIZE = 8, H_RECORDS = 12;
+    //Record offsets
+    private static final int R_ID = 0, R_BALANCE = 4, R_OVERDRAFT = 8, R_COST = 12,
+                             R_LEASE = 16, R_TYPE = 24, R_DIGEST_LENGTH = 25, R_SALT = 32,
+                             R_DIGEST = 48;
+
+    /**Atomic access to the mapped files, in the buffers' own byte order*/
+    private static final VarHandle INTS =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /**Open files, keyed by canonical path*/
+    private static final Map<String, AccountFile> files = new HashMap<String, AccountFile>();
+    /**Lease owner tokens, starting at a random value so other processes don't share them*/
+    private static final AtomicInteger tokens = new AtomicInteger(new SecureRandom().nextInt());
+
+    /**An index mapping, replaced as a whole when it grows*/
+    private static final class Index {
+        final MappedByteBuffer map;
+        final int mask;
+
+        Index(MappedByteBuffer map, int slots) {
+            this.map = map;
+            this.mask = slots - 1;
+        }
+    }
+
+    final String path;
+    final RandomAccessFile file;
+    final FileChannel channel;
+    /**The mapped records, replaced when the file grows*/
+    private volatile MappedByteBuffer map;
+    /**The mapped index*/
+    private volatile Index index;
+    /**Guards password changes, so a reader never sees half a hash*/
+    private final StampedLock credentials = new StampedLock();
+    /**Held by a transfer on both its accounts*/
+    private final TransferLocks transfers = new TransferLocks();
+
+    //State, guarded by this
+    private int capacity;
+    private int records;
+
+    private ScheduledExecutorService checkpointer = null;
+
+    /** Opens an account file and its index, creating them if necessary
+     *
+     * @param path Path to the account file, the index is next to it
+     */
+    private AccountFile(String path) throws IOException {
+        this.path = path;
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        boolean fresh = channel.size() < HEADER_SIZE;
+        int existing = fresh ? 0 : (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+        mapCapacity(Math.max(existing, GROW_RECORDS));
+
+        if (fresh) {
+            map.putInt(H_MAGIC, MAGIC);
+            map.putInt(H_VERSION, VERSION);
+            map.putInt(H_SIZE, RECORD_SIZE);
+            map.putInt(H_RECORDS, 0);
+            map.force();
+        } else if (map.getInt(H_MAGIC) != MAGIC || map.getInt(H_VERSION) != VERSION ||
+                   map.getInt(H_SIZE) != RECORD_SIZE) {
+            throw new IOException("Not an account file: " + path);
+        }
+        records = map.getInt(H_RECORDS);
+        openIndex();
+    }
+
+    /** Returns the open account file at a path, opening it on first use
+     *
+     * @param path         Path to the account file
+     * @throws IOException If it couldn't be opened or isn't an account file
+     */
+    static synchronized AccountFile open(String path) throws IOException {
+        String key = new File(path).getCanonicalPath();
+        AccountFile accounts = files.get(key);
+        if (accounts == null) {
+            Debug.trace("AccountFile::open " + path);
+            accounts = new AccountFile(path);
+            files.put(key, accounts);
+        }
+        return accounts;
+    }
+
+    /** Returns a token to own leases with, unique to the caller
+     *
+     */
+    static int newOwner() {
+        int token;
+        do {
+            token = tokens.incrementAndGet();
+        } while (token == 0);
+        return token;
+    }
+
+    /** Maps enough of the file to hold a number of records
+     *
+     */
+    private void mapCapacity(int recordCount) throws IOException {
+        capacity = recordCount;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                          HEADER_SIZE + (long) capacity * RECORD_SIZE);
+    }
+
+    /** Maps the index, rebuilding it from the records if it is missing or out of date,<br>
+     *  e.g. after a crash between writing a record and indexing it
+     *
+     */
+    private void openIndex() throws IOException {
+        File indexFile = new File(path + ".idx");
+        if (indexFile.length() >= HEADER_SIZE) {
+            try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+                MappedByteBuffer existing = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                                                 raf.length());
+                int slots = existing.getInt(H_SIZE);
+                if (existing.getInt(H_MAGIC) == INDEX_MAGIC &&
+                    existing.getInt(H_VERSION) == VERSION &&
+                    existing.getInt(H_RECORDS) == records &&
+                    Integer.bitCount(slots) == 1 &&
+                    raf.length() == HEADER_SIZE + (long) slots * SLOT_SIZE) {
+                    index = new Index(existing, slots);
+                    return;
+                }
+            }
+        }
+        Debug.trace("AccountFile::openIndex::Rebuilding index of %d records", records);
+        rebuildIndex(Math.max(Integer.highestOneBit(Math.max(records, 1)) * 4, GROW_RECORDS * 2));
+    }
+
+    /** Writes a new index of every record to a temporary file and swaps it in<br>
+     *  Lookups carry on using the old mapping until the new one is published
+     *
+     * @param slots A power of two, at least twice the number of records
+     */
+    private void rebuildIndex(int slots) throws IOException {
+        File indexFile = new File(path + ".idx");
+        File temp = new File(path + ".idx.tmp");
+        MappedByteBuffer built;
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            raf.setLength(0);
+            built = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                         HEADER_SIZE + (long) slots * SLOT_SIZE);
+        }
+        Index rebuilt = new Index(built, slots);
+        for (int r = 0; r < records; r++) {
+            indexRecord(rebuilt, map.getInt(HEADER_SIZE + r * RECORD_SIZE + R_ID), r);
+        }
+        built.putInt(H_MAGIC, INDEX_MAGIC);
+        built.putInt(H_VERSION, VERSION);
+        built.putInt(H_SIZE, slots);
+        built.putInt(H_RECORDS, records);
+        built.force();
+        Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        index = rebuilt;
+    }
+
+    /** Adds an id to an index, the record number is written last so a lookup never sees<br>
+     *  a slot with an id but no record
+     *
+     */
+    private static void indexRecord(Index index, int id, int record) {
+        int slot = AccountTable.mix(id) & index.mask;
+        while ((int) INTS.getAcquire(index.map, HEADER_SIZE + slot * SLOT_SIZE + 4) != 0) {
+            slot = (slot + 1) & index.mask;
+        }
+        int pos = HEADER_SIZE + slot * SLOT_SIZE;
+        index.map.putInt(pos, id);
+        INTS.setRelease(index.map, pos + 4, record + 1);
+    }
+
+    /** Returns the position of an account's record in the file
+     *
+     * @return The byte offset, or -1 if there is no such account
+     */
+    int find(int id) {
+        Index current = index;
+        int slot = AccountTable.mix(id) & current.mask;
+        while (true) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            int record = (int) INTS.getAcquire(current.map, pos + 4);
+            if (record == 0) {
+                return -1;
+            }
+            if (current.map.getInt(pos) == id) {
+                return HEADER_SIZE + (record - 1) * RECORD_SIZE;
+            }
+            slot = (slot + 1) & current.mask;
+        }
+    }
+
+    /** Adds a new account
+     *
+     * @param hashPass    The password hash, at most {@link #DIGEST_SIZE} bytes
+     * @param salt        The salt used in the hash, {@link #SALT_SIZE} bytes
+     * @param cost        The hash cost, see {@code CryptoService}
+     * @param accountType {@code BasicAccount} or {@code StudentAccount}
+     * @return            {@code false} if there is an existing account with that id
+     * @throws IOException If the file couldn't grow
+     */
+    public synchronized boolean create(int id, byte[] hashPass, byte[] salt, int cost,
+                                       int balance, int overdraft, String accountType)
+            throws IOException {
+        int type = LocalBankAccount.typeCode(accountType);
+        if (type < 0 || hashPass.length > DIGEST_SIZE || salt.length != SALT_SIZE) {
+            throw new IllegalArgumentException("Can't store account " + id);
+        }
+        if (find(id) >= 0) {
+            return false;
+        }
+        if (records == capacity) {
+            mapCapacity(capacity + GROW_RECORDS);
+        }
+        //Keep the index at most half full so probes stay short
+        if ((records + 1) * 2 > index.mask + 1) {
+            rebuildIndex((index.mask + 1) * 2);
+        }
+
+        int pos = HEADER_SIZE + records * RECORD_SIZE;
+        map.putInt(pos + R_ID, id);
+        map.putInt(pos + R_BALANCE, balance);
+        map.putInt(pos + R_OVERDRAFT, overdraft);
+        map.putInt(pos + R_COST, cost);
+        map.putLong(pos + R_LEASE, 0);
+        map.put(pos + R_TYPE, (byte) type);
+        map.put(pos + R_DIGEST_LENGTH, (byte) hashPass.length);
+        map.put(pos + R_SALT, salt);
+        map.put(pos + R_DIGEST, hashPass);
+        records++;
+
+        //Header last, so a torn record is never counted
+        map.putInt(H_RECORDS, records);
+        indexRecord(index, id, records - 1);
+        index.map.putInt(H_RECORDS, records);
+        return true;
+    }
+
+    /** Returns an account's password hash, salt, type and overdraft
+     *
+     * @return A copy, or {@code null} if there is no such account
+     */
+    public AccountCredentials getCredentials(int id) {
+        int pos = find(id);
+        if (pos < 0) {
+            return null;
+        }
+        MappedByteBuffer current = map;
+        long stamp = credentials.tryOptimisticRead();
+        AccountCredentials account = readCredentials(current, pos, id);
+        if (!credentials.validate(stamp)) {
+            stamp = credentials.readLock();
+            try {
+                account = readCredentials(current, pos, id);
+            } finally {
+                credentials.unlockRead(stamp);
+            }
+        }
+        return account;
+    }
+
+    private static AccountCredentials readCredentials(MappedByteBuffer buffer, int pos, int id) {
+        byte[] salt = new byte[SALT_SIZE];
+        byte[] hashPass = new byte[Math.min(buffer.get(pos + R_DIGEST_LENGTH) & 0xFF, DIGEST_SIZE)];
+        buffer.get(pos + R_SALT, salt);
+        buffer.get(pos + R_DIGEST, hashPass);
+        return new AccountCredentials(id, hashPass, salt,
+                                      LocalBankAccount.TYPES[buffer.get(pos + R_TYPE)],
+                                      buffer.getInt(pos + R_OVERDRAFT),
+                                      buffer.getInt(pos + R_COST));
+    }
+
+    /** Replaces an account's password hash in place
+     *
+     * @return {@code false} if there is no such account
+     */
+    public boolean setPassword(int id, byte[] hashPass, byte[] salt, int cost) {
+        int pos = find(id);
+        if (pos < 0) {
+            return false;
+        }
+        long stamp = credentials.writeLock();
+        try {
+            MappedByteBuffer current = map;
+            current.put(pos + R_DIGEST_LENGTH, (byte) hashPass.length);
+            current.put(pos + R_SALT, salt);
+            current.put(pos + R_DIGEST, hashPass);
+            current.putInt(pos + R_COST, cost);
+            return true;
+        } finally {
+            credentials.unlockWrite(stamp);
+        }
+    }
+
+    /** Returns the balance in a record
+     *
+     * @param pos The record's position, from {@link #find}
+     */
+    int getBalance(int pos) {
+        return (int) INTS.getVolatile(map, pos + R_BALANCE);
+    }
+
+    /** Adds an amount to an account's balance in place, a withdrawal is refused if it would<br>
+     *  take the balance past the overdraft limit. On success the account object gets the<br>
+     *  new balance
+     *
+     * @param account The account to change
+     * @param delta   The amount to add, negative to withdraw
+     * @return        {@code false} if refused or there is no such account
+     */
+    public boolean applyDelta(LocalBankAccount account, int delta) {
+        int pos = find(account.id);
+        if (pos < 0) {
+            return false;
+        }
+        MappedByteBuffer current = map;
+        int overdraft = current.getInt(pos + R_OVERDRAFT);
+        while (true) {
+            int balance = (int) INTS.getVolatile(current, pos + R_BALANCE);
+            if (delta < 0 && balance + delta <= overdraft) {
+                return false;
+            }
+            if (INTS.compareAndSet(current, pos + R_BALANCE, balance, balance + delta)) {
+                account.balance = balance + delta;
+                return true;
+            }
+        }
+    }
+
+    /** Moves an amount from one account to another, refused if it would take {@code from}<br>
+     *  past its overdraft limit. The debit is checked and made first, then the credit,<br>
+     *  which can't fail, so the money is never lost between them. Transfers on the same<br>
+     *  accounts in this process take turns, see {@link TransferLocks}
+     *
+     * @param from   The account the money comes out of, gets its new balance on success
+     * @param toId   The account it goes into
+     * @param amount The amount, more than 0
+     * @return       {@code false} if refused or either account doesn't exist
+     */
+    public boolean transfer(LocalBankAccount from, int toId, int amount) {
+        int fromPos = find(from.id);
+        int toPos = find(toId);
+        if (fromPos < 0 || toPos < 0) {
+            return false;
+        }
+        MappedByteBuffer current = map;
+        int overdraft = current.getInt(fromPos + R_OVERDRAFT);
+
+        transfers.lock(from.id, toId);
+        try {
+            while (true) {
+                int balance = (int) INTS.getVolatile(current, fromPos + R_BALANCE);
+                if (balance - amount <= overdraft) {
+                    return false;
+                }
+                if (INTS.compareAndSet(current, fromPos + R_BALANCE, balance, balance - amount)) {
+                    from.balance = balance - amount;
+                    break;
+                }
+            }
+            INTS.getAndAdd(current, toPos + R_BALANCE, amount);
+            return true;
+        } finally {
+            transfers.unlock(from.id, toId);
+        }
+    }
+
+    /** Takes the lease on an account<br>
+     *  Succeeds if the account is free, its lease has expired, or the owner already holds it
+     *
+     * @param pos   The record's position, from {@link #find}
+     * @param owner The owner's token, from {@link #newOwner}
+     * @return      {@code true} if the owner now holds the lease
+     */
+    boolean acquire(int pos, int owner) {
+        MappedByteBuffer current = map;
+        long now = System.currentTimeMillis() / 1000;
+        while (true) {
+            long lease = (long) LONGS.getVolatile(current, pos + R_LEASE);
+            boolean free = lease == 0 || (int) (lease >>> 32) == owner ||
+                           (lease & 0xFFFFFFFFL) < now;
+            if (!free) {
+                return false;
+            }
+            if (LONGS.compareAndSet(current, pos + R_LEASE, lease, leaseFor(owner, now))) {
+                return true;
+            }
+        }
+    }
+
+    /** Renews the owner's lease on an account
+     *
+     * @return {@code false} if the owner no longer holds the lease
+     */
+    boolean heartbeat(int pos, int owner) {
+        MappedByteBuffer current = map;
+        while (true) {
+            long lease = (long) LONGS.getVolatile(current, pos + R_LEASE);
+            if ((int) (lease >>> 32) != owner) {
+                return false;
+            }
+            long renewed = leaseFor(owner, System.currentTimeMillis() / 1000);
+            if (LONGS.compareAndSet(current, pos + R_LEASE, lease, renewed)) {
+                return true;
+            }
+        }
+    }
+
+    /** Gives up the owner's lease on an account, does nothing if it isn't held
+     *
+     */
+    void release(int pos, int owner) {
+        MappedByteBuffer current = map;
+        long lease = (long) LONGS.getVolatile(current, pos + R_LEASE);
+        if ((int) (lease >>> 32) == owner) {
+            LONGS.compareAndSet(current, pos + R_LEASE, lease, 0L);
+        }
+    }
+
+    private static long leaseFor(int owner, long nowSeconds) {
+        return ((long) owner << 32) | ((nowSeconds + LEASE_SECONDS) & 0xFFFFFFFFL);
+    }
+
+    /** Copies every account in a database into the file, skipping ids it already has,<br>
+     *  then forces the file to disk. Used to start a new file with the bank's accounts
+     *
+     * @param pool          Connection pool for the database
+     * @return              The number of accounts copied
+     * @throws SQLException If the database couldn't be read
+     * @throws IOException  If the file couldn't grow
+     */
+    public int importFrom(ConnectionPool pool) throws SQLException, IOException {
+        long start = System.nanoTime();
+        int copied = 0;
+        PooledConnection pc = pool.borrow();
+        try (Statement select = pc.conn.createStatement();
+             ResultSet rs = select.executeQuery(AccountTable.SQL_SELECT_ALL)) {
+            while (rs.next()) {
+                //Password hash and salt are stored either raw or as hex
+                boolean binary = "blob".equals(rs.getString("storage"));
+                byte[] password = binary ? rs.getBytes("password")
+                                         : HexCodec.decode(rs.getString("password"));
+                byte[] salt = binary ? rs.getBytes("salt")
+                                     : HexCodec.decode(rs.getString("salt"));
+                if (create(rs.getInt("id"), password, salt, rs.getInt("kdfCost"),
+                           rs.getInt("balance"), rs.getInt("overdraft"),
+                           LocalBankAccount.TYPES[rs.getInt("accountType")])) {
+                    copied++;
+                }
+            }
+        } finally {
+            pool.release(pc);
+        }
+        checkpoint();
+        Debug.trace("AccountFile::importFrom::Copied %d accounts from %s in %d ms", copied,
+                    pool.url, (System.nanoTime() - start) / 1000000);
+        return copied;
+    }
+
+    /** Forces the records and index to disk
+     *
+     */
+    public void checkpoint() {
+        long start = System.nanoTime();
+        map.force();
+        index.map.force();
+        Debug.trace("AccountFile::checkpoint::%d records in %d us", getRecords(),
+                    (System.nanoTime() - start) / 1000);
+    }
+
+    /** Starts forcing the files to disk on a background thread, once
+     *
+     * @param periodMillis Time between checkpoints
+     */
+    public synchronized void startCheckpoints(long periodMillis) {
+        if (checkpointer != null) {
+            return;
+        }
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Account file checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, periodMillis, periodMillis,
+                                            TimeUnit.MILLISECONDS);
+    }
+
+    /** Takes a final checkpoint and closes the file
+     *
+     */
+    public void close() throws IOException {
+        Debug.trace("AccountFile::close");
+        synchronized (AccountFile.class) {
+            files.values().remove(this);
+        }
+        synchronized (this) {
+            if (checkpointer != null) {
+                checkpointer.shutdown();
+            }
+        }
+        checkpoint();
+        channel.close();
+        file.close();
+    }
+
+    /** Returns the number of accounts in the file
+     *
+     */
+    public synchronized int getRecords() {
+        return records;
+    }
+}
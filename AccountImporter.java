@@ -0,0 +1,334 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**Creates accounts in bulk from a CSV file, for onboarding many accounts at once<br>
+ * Each line is {@code id,password,balance,overdraft,accountType}; blank lines and lines<br>
+ * starting with {@code #} are skipped. The file is streamed in chunks of {@link #chunkSize}<br>
+ * rows. Salts and hashes for a chunk are computed in parallel on a fork-join pool while the<br>
+ * previous chunk is inserted, and each chunk is inserted with one {@code executeBatch} in its<br>
+ * own transaction. An id that already exists is skipped and reported for that row alone
+ */
+public class AccountImporter
+{
+    /**Rows inserted per transaction*/
+    static final int DEFAULT_CHUNK_SIZE = 1000;
+    /**Rows hashed by one fork-join task before it stops splitting*/
+    static final int HASH_THRESHOLD = 16;
+
+    /**Told about rows that were not imported and about progress after each chunk*/
+    public interface Listener {
+        /** A row was skipped because its id already exists
+         *
+         * @param line Line number in the file
+         * @param id   The account id
+         */
+        default void duplicate(long line, int id) {}
+
+        /** A row was skipped because it could not be read
+         *
+         * @param line  Line number in the file
+         * @param text  The line
+         * @param error Why it was rejected
+         */
+        default void rejected(long line, String text, String error) {}
+
+        /** A chunk has been committed
+         *
+         * @param progress Totals so far
+         */
+        default void progress(Progress progress) {}
+    }
+
+    /**Running totals of an import*/
+    public static final class Progress {
+        /**Rows read from the file, not counting skipped lines*/
+        public long read;
+        /**Accounts created*/
+        public long inserted;
+        /**Rows skipped because the id exists*/
+        public long duplicates;
+        /**Rows that could not be read*/
+        public long rejected;
+        /**When the import started*/
+        final long startNanos = System.nanoTime();
+
+        /** Returns the time since the import started, in seconds
+         *
+         */
+        public double elapsedSeconds() {
+            return (System.nanoTime() - startNanos) / 1e9;
+        }
+
+        /** Returns the number of rows read per second
+         *
+         */
+        public double rowsPerSecond() {
+            double elapsed = elapsedSeconds();
+            return elapsed == 0 ? 0 : read / elapsed;
+        }
+
+        public String toString() {
+            return String.format("read=%d inserted=%d duplicates=%d rejected=%d " +
+                                 "elapsed=%.1fs rate=%.0f rows/s", read, inserted, duplicates,
+                                 rejected, elapsedSeconds(), rowsPerSecond());
+        }
+    }
+
+    /**One account read from the file*/
+    private static final class Row {
+        final long line;
+        final int id;
+        final int password;
+        final int balance;
+        final int overdraft;
+        final String accountType;
+        byte[] salt;
+        byte[] hash;
+
+        Row(long line, int id, int password, int balance, int overdraft, String accountType) {
+            this.line = line;
+            this.id = id;
+            this.password = password;
+            this.balance = balance;
+            this.overdraft = overdraft;
+            this.accountType = accountType;
+        }
+    }
+
+    /**Salts and hashes a range of a chunk, splitting it between fork-join workers*/
+    private static final class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final CryptoService crypto;
+        final int cost;
+        final List<Row> rows;
+        final int from;
+        final int to;
+
+        HashTask(CryptoService crypto, int cost, List<Row> rows, int from, int to) {
+            this.crypto = crypto;
+            this.cost = cost;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= HASH_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    Row row = rows.get(i);
+                    row.salt = crypto.newSalt();
+                    row.hash = crypto.hash(row.password, row.salt, cost);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new HashTask(crypto, cost, rows, from, mid),
+                          new HashTask(crypto, cost, rows, mid, to));
+            }
+        }
+    }
+
+    /**Connections to the database*/
+    final ConnectionPool pool;
+    /**Hashes the passwords*/
+    final CryptoService crypto;
+    /**Runs the hashing*/
+    final ForkJoinPool forkJoin;
+    /**Hash cost given to the imported accounts*/
+    final int cost;
+    /**Rows inserted per transaction*/
+    final int chunkSize;
+
+    /** {@code AccountImporter} constructor, hashes at the current cost on the common pool
+     *
+     * @param pool Connection pool for the database
+     */
+    public AccountImporter(ConnectionPool pool) {
+        this(pool, CryptoService.shared().getCost(), DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /** {@code AccountImporter} constructor
+     *
+     * @param pool      Connection pool for the database
+     * @param cost      Hash cost given to the imported accounts
+     * @param chunkSize Rows inserted per transaction
+     * @param forkJoin  Pool to hash on
+     */
+    public AccountImporter(ConnectionPool pool, int cost, int chunkSize, ForkJoinPool forkJoin) {
+        this.pool = pool;
+        this.crypto = CryptoService.shared();
+        this.cost = cost;
+        this.chunkSize = chunkSize;
+        this.forkJoin = forkJoin;
+    }
+
+    /** Imports every account in a CSV stream
+     *
+     * @param in            The CSV, read line by line
+     * @param listener      Told about skipped rows and progress
+     * @return              The final totals
+     * @throws IOException  If the stream could not be read
+     * @throws SQLException If a chunk could not be inserted, earlier chunks stay committed
+     */
+    public Progress importCsv(Reader in, Listener listener) throws IOException, SQLException {
+        Debug.trace("AccountImporter::importCsv");
+
+        Progress progress = new Progress();
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in
+                                                              : new BufferedReader(in);
+        long[] line = {0};
+        //The chunk being hashed while the one before it is inserted
+        List<Row> chunk = readChunk(reader, line, progress, listener);
+        ForkJoinTask<Void> hashing = startHashing(chunk);
+
+        while (!chunk.isEmpty()) {
+            List<Row> next = readChunk(reader, line, progress, listener);
+            hashing.join();
+            ForkJoinTask<Void> nextHashing = startHashing(next);
+
+            insert(chunk, progress, listener);
+            listener.progress(progress);
+
+            chunk = next;
+            hashing = nextHashing;
+        }
+
+        Debug.trace("AccountImporter::importCsv::Done " + progress);
+        return progress;
+    }
+
+    /** Reads up to a chunk of rows, reporting lines that can't be read
+     *
+     */
+    private List<Row> readChunk(BufferedReader reader, long[] line, Progress progress,
+                                Listener listener) throws IOException {
+        List<Row> rows = new ArrayList<Row>(chunkSize);
+        String text;
+        while (rows.size() < chunkSize && (text = reader.readLine()) != null) {
+            line[0]++;
+            String trimmed = text.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            progress.read++;
+
+            String[] fields = trimmed.split(",");
+            if (fields.length != 5) {
+                progress.rejected++;
+                listener.rejected(line[0], text, "Expected 5 fields, found " + fields.length);
+                continue;
+            }
+            String accountType = fields[4].trim();
+            if (LocalBankAccount.typeCode(accountType) < 0) {
+                progress.rejected++;
+                listener.rejected(line[0], text, "Unknown account type " + accountType);
+                continue;
+            }
+            try {
+                rows.add(new Row(line[0], Integer.parseInt(fields[0].trim()),
+                                 Integer.parseInt(fields[1].trim()),
+                                 Integer.parseInt(fields[2].trim()),
+                                 Integer.parseInt(fields[3].trim()), accountType));
+            } catch (NumberFormatException e) {
+                progress.rejected++;
+                listener.rejected(line[0], text, e.getMessage());
+            }
+        }
+        return rows;
+    }
+
+    private ForkJoinTask<Void> startHashing(List<Row> rows) {
+        return forkJoin.submit(new HashTask(crypto, cost, rows, 0, rows.size()));
+    }
+
+    /** Inserts a hashed chunk in one transaction<br>
+     *  Existing ids are left alone by the insert, so a row that changed nothing is a duplicate
+     *
+     */
+    private void insert(List<Row> rows, Progress progress, Listener listener)
+            throws SQLException {
+        PooledConnection pc = pool.borrow();
+        int[] counts;
+        try {
+            pc.conn.setAutoCommit(false);
+            PreparedStatement pstmt = pc.prepare(DataHandler.SQL_INSERT_ACCOUNT);
+            for (Row row : rows) {
+                pstmt.setInt(1, row.id);
+                pstmt.setInt(2, row.balance);
+                pstmt.setInt(3, row.overdraft);
+                DataHandler.setCredentials(pstmt, 4, row.hash, row.salt);
+                pstmt.setInt(6, LocalBankAccount.typeCode(row.accountType));
+                pstmt.setInt(7, cost);
+                pstmt.addBatch();
+            }
+            counts = pstmt.executeBatch();
+            pc.conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            pc.conn.rollback();
+            throw e;
+        } finally {
+            pc.conn.setAutoCommit(true);
+            pool.release(pc);
+        }
+
+        AccountCache cache = AccountCache.forDatabase(pool.url);
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            if (counts[i] == 0) {
+                progress.duplicates++;
+                listener.duplicate(row.line, row.id);
+            } else {
+                progress.inserted++;
+                //Forget any earlier lookup that found no such account
+                cache.invalidate(row.id);
+            }
+        }
+    }
+
+    /** Imports a CSV file into the default database from the command line<br>
+     *  {@code java AccountImporter accounts.csv}
+     *
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: java AccountImporter <file.csv>");
+            return;
+        }
+
+        ConnectionPool pool = DataHandler.sharedPool();
+        Schema.migrate(pool);
+        CryptoService.shared().calibrate(pool, 50);
+
+        Listener listener = new Listener() {
+            public void duplicate(long line, int id) {
+                System.out.println("Line " + line + ": account " + id + " already exists");
+            }
+
+            public void rejected(long line, String text, String error) {
+                System.out.println("Line " + line + ": " + error + ": " + text);
+            }
+
+            public void progress(Progress progress) {
+                System.out.println(progress);
+            }
+        };
+
+        try (Reader in = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            Progress progress = new AccountImporter(pool).importCsv(in, listener);
+            System.out.println("Finished: " + progress);
+        } finally {
+            pool.close();
+        }
+    }
+}
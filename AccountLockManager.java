@@ -0,0 +1,225 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**In-memory table of which session is using which account<br>
+ * A session takes a time-limited lease on an account when it logs in, renews it with<br>
+ * heartbeats while in use and releases it on logout. Leases that aren't renewed expire,<br>
+ * so a crashed terminal can't lock an account forever. Leases are swapped in and out of<br>
+ * the table with compare-and-set, there is no global lock
+ */
+public class AccountLockManager
+{
+    /**Default length of a lease, renewed by every heartbeat*/
+    static final long DEFAULT_LEASE_MS = 120000;
+
+    /**One lock table per database, keyed by JDBC url*/
+    private static final Map<String, AccountLockManager> managers =
+            new ConcurrentHashMap<String, AccountLockManager>();
+    /**Sweeps expired leases out of every table*/
+    private static ScheduledExecutorService reaper = null;
+
+    /**An immutable lease, replaced rather than modified*/
+    private static final class Lease {
+        final Object owner;
+        final long expiresAt;
+
+        Lease(Object owner, long expiresAt) {
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean expired(long now) {
+            return expiresAt - now < 0;
+        }
+    }
+
+    /**Length of a lease in nanoseconds*/
+    final long leaseNanos;
+    /**Current leases keyed by account id*/
+    final ConcurrentHashMap<Integer, Lease> leases = new ConcurrentHashMap<Integer, Lease>();
+
+    //Statistics
+    final LongAdder acquired = new LongAdder();
+    final LongAdder contended = new LongAdder();
+    final LongAdder expired = new LongAdder();
+    /**Rejected acquires per account, for finding hot accounts*/
+    final ConcurrentHashMap<Integer, LongAdder> contentionByAccount =
+            new ConcurrentHashMap<Integer, LongAdder>();
+
+    /** {@code AccountLockManager} constructor
+     *
+     * @param leaseMillis How long a lease lasts without a heartbeat
+     */
+    public AccountLockManager(long leaseMillis) {
+        leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+    }
+
+    /** Returns the lock table shared by everything using a database, publishing its<br>
+     *  statistics to JMX when it is first made
+     *
+     * @param url JDBC url of the database
+     */
+    static AccountLockManager forDatabase(String url) {
+        return managers.computeIfAbsent(url, u -> {
+            startReaper();
+            AccountLockManager manager = new AccountLockManager(DEFAULT_LEASE_MS);
+            Metrics.registerLeases(u, manager);
+            return manager;
+        });
+    }
+
+    /** Starts the background thread that expires old leases, once
+     *
+     */
+    private static synchronized void startReaper() {
+        if (reaper == null) {
+            reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Account lease reaper");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = DEFAULT_LEASE_MS / 4;
+            reaper.scheduleAtFixedRate(() -> {
+                for (AccountLockManager manager : managers.values()) {
+                    manager.expireLeases();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Takes the lease on an account<br>
+     *  Succeeds if the account is free, its lease has expired, or the owner already holds it
+     *
+     * @param id    The account id
+     * @param owner The session taking the lease
+     * @return      {@code true} if the owner now holds the lease
+     */
+    public boolean acquire(int id, Object owner) {
+        long now = System.nanoTime();
+        Lease fresh = new Lease(owner, now + leaseNanos);
+
+        while (true) {
+            Lease current = leases.putIfAbsent(id, fresh);
+            if (current == null) {
+                acquired.increment();
+                return true;
+            }
+
+            boolean ours = current.owner == owner;
+            if (ours || current.expired(now)) {
+                if (leases.replace(id, current, fresh)) {
+                    if (!ours) {
+                        expired.increment();
+                        Debug.trace("AccountLockManager::acquire::Lease on %d expired", id);
+                    }
+                    acquired.increment();
+                    return true;
+                }
+                continue; //Someone else changed it, look again
+            }
+
+            contended.increment();
+            contentionByAccount.computeIfAbsent(id, k -> new LongAdder()).increment();
+            return false;
+        }
+    }
+
+    /** Renews the owner's lease on an account
+     *
+     * @param id    The account id
+     * @param owner The session holding the lease
+     * @return      {@code false} if the owner no longer holds the lease
+     */
+    public boolean heartbeat(int id, Object owner) {
+        while (true) {
+            Lease current = leases.get(id);
+            if (current == null || current.owner != owner) {
+                return false;
+            }
+            if (leases.replace(id, current, new Lease(owner, System.nanoTime() + leaseNanos))) {
+                return true;
+            }
+        }
+    }
+
+    /** Checks whether the owner holds an unexpired lease on an account
+     *
+     */
+    public boolean holds(int id, Object owner) {
+        Lease current = leases.get(id);
+        return current != null && current.owner == owner && !current.expired(System.nanoTime());
+    }
+
+    /** Gives up the owner's lease on an account, does nothing if it isn't held
+     *
+     * @param id    The account id
+     * @param owner The session holding the lease
+     */
+    public void release(int id, Object owner) {
+        Lease current = leases.get(id);
+        if (current != null && current.owner == owner) {
+            leases.remove(id, current);
+        }
+    }
+
+    /** Removes every lease that has expired
+     *
+     */
+    void expireLeases() {
+        long now = System.nanoTime();
+        for (Map.Entry<Integer, Lease> entry : leases.entrySet()) {
+            if (entry.getValue().expired(now) && leases.remove(entry.getKey(), entry.getValue())) {
+                expired.increment();
+                Debug.trace("AccountLockManager::expireLeases::Lease on %d expired", entry.getKey());
+            }
+        }
+    }
+
+    /** Returns the number of leases handed out
+     *
+     */
+    public long getAcquired() {
+        return acquired.sum();
+    }
+
+    /** Returns the number of times an account was refused because it was in use
+     *
+     */
+    public long getContended() {
+        return contended.sum();
+    }
+
+    /** Returns the number of leases that expired instead of being released
+     *
+     */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /** Returns the number of accounts currently leased
+     *
+     */
+    public int getActive() {
+        return leases.size();
+    }
+
+    /** Returns the accounts refused most often, most contended first
+     *
+     * @param limit The most accounts to return
+     * @return      Pairs of {account id, times refused}
+     */
+    public List<long[]> getHotAccounts(int limit) {
+        List<long[]> hot = new ArrayList<long[]>();
+        for (Map.Entry<Integer, LongAdder> entry : contentionByAccount.entrySet()) {
+            hot.add(new long[] {entry.getKey(), entry.getValue().sum()});
+        }
+        hot.sort((a, b) -> Long.compare(b[1], a[1]));
+        return hot.size() > limit ? hot.subList(0, limit) : hot;
+    }
+}
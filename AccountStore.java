@@ -0,0 +1,72 @@
+/**Where a {@code LocalBank} session keeps its accounts<br>
+ * One store belongs to one session: a successful {@link #checkPassword} leases the account<br>
+ * to that session and sets its {@code currentAccount}, and {@link #saveAccount} gives the<br>
+ * lease back. {@code DataHandler} keeps accounts in SQLite, {@code MemoryAccountStore}<br>
+ * keeps them in an {@code AccountTable} in memory and {@code MappedAccountStore} in an<br>
+ * {@code AccountFile}, both through {@code AbstractAccountStore}
+ */
+public interface AccountStore
+{
+    /** Creates a new account
+     *
+     *  @param  id              Account ID
+     *  @param  password        Account password
+     *  @param  balance         Starting balance
+     *  @param  overdraft       Overdraft limit
+     *  @param  accountType     {@code BasicAccount} or {@code StudentAccount}
+     *  @return                 {@code false} if there is an existing account with that id or on error
+     */
+    boolean createAccount(int id, int password, int balance, int overdraft, String accountType);
+
+    /** Checks a password and, if it matches, leases the account to the session and makes<br>
+     *  it the session's current account
+     *
+     * @param id    ID to check password against
+     * @param pass  Password to check
+     * @return      {@code true} if passwords match and the account was free
+     */
+    boolean checkPassword(int id, int pass);
+
+    /** Finishes with an account at logout, releasing its lease
+     *
+     * @param account The account that was in use, may be {@code null}
+     */
+    void saveAccount(LocalBankAccount account);
+
+    /** Adds an amount to an account's stored balance, refusing a withdrawal that would<br>
+     *  take it past the overdraft limit. On success the account object gets the new balance
+     *
+     * @param account The account to change
+     * @param delta   The amount to add, negative to withdraw
+     * @return        {@code true} if applied, {@code false} if refused or on error
+     */
+    boolean applyDelta(LocalBankAccount account, int delta);
+
+    /** Moves money from an account to another, both balances change or neither does.<br>
+     *  Refused if it would take the stored balance of {@code from} past its overdraft limit,<br>
+     *  or if there is no account {@code toId}. On success {@code from} gets its new balance
+     *
+     * @param from   The session's account, the money comes out of it
+     * @param toId   The account the money goes into, may be in use by another session
+     * @param amount The amount to move, more than 0
+     * @return       {@code true} if moved, {@code false} if refused or on error
+     */
+    boolean transfer(LocalBankAccount from, int toId, int amount);
+
+    /** Renews the lease on an account that is still in use
+     *
+     * @param account The account in use
+     * @return        {@code false} if the lease has been lost
+     */
+    boolean heartbeat(LocalBankAccount account);
+
+    /** Returns the ledger transactions are recorded in instead of {@link #applyDelta}<br>
+     *  Only {@code DataHandler} on a single database has one, other stores ignore an open<br>
+     *  ledger and {@code LocalBank#configuredStores} warns when they are picked with one
+     *
+     * @return The ledger, or {@code null} if balances are changed with {@link #applyDelta}
+     */
+    default Ledger getLedger() {
+        return null;
+    }
+}
@@ -0,0 +1,559 @@
+import java.sql.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**Every account held in memory in primitive arrays, the storage behind {@code MemoryAccountStore}<br>
+ * An open-addressing hash table keyed by account id, with linear probing. Each slot's<br>
+ * balance, overdraft, type ordinal and hash cost are kept in parallel {@code int} and<br>
+ * {@code byte} arrays, and its password hash and salt are packed into one byte arena at<br>
+ * an offset. There are no boxed keys and no object per account, so a million accounts cost<br>
+ * a handful of arrays. Changed slots are marked dirty and {@link #snapshot} copies them into<br>
+ * SQLite, every few seconds once {@link #startSnapshots} has been called
+ */
+public class AccountTable
+{
+    /**Marks a free slot, so it can't be used as an account id*/
+    static final int FREE = Integer.MIN_VALUE;
+    /**Slots in a new table, always a power of two*/
+    static final int DEFAULT_CAPACITY = 1024;
+    /**Time between snapshots of a table opened with {@link #forDatabase}*/
+    static final long DEFAULT_SNAPSHOT_MS = 5000;
+
+    static final String SQL_SELECT_ALL = "SELECT id, balance, overdraft, password, salt, " +
+            "accountType, kdfCost, typeof(password) AS storage FROM bank";
+    /**Writes a snapshot row, leaving the ledger sequence alone*/
+    static final String SQL_UPSERT_ACCOUNT = "INSERT INTO bank(id, balance, overdraft, " +
+            "password, salt, accountType, kdfCost) VALUES (?,?,?,?,?,?,?) " +
+            "ON CONFLICT(id) DO UPDATE SET balance = excluded.balance, " +
+            "overdraft = excluded.overdraft, password = excluded.password, " +
+            "salt = excluded.salt, accountType = excluded.accountType, " +
+            "kdfCost = excluded.kdfCost";
+
+    /**One table per database, keyed by JDBC url*/
+    private static final Map<String, AccountTable> tables = new HashMap<String, AccountTable>();
+    /**Numbers each table's lease table*/
+    private static final AtomicInteger tableCount = new AtomicInteger();
+
+    /**Guards every array below, reads share it and changes take it alone*/
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //The slots, FREE in ids[] where unused
+    int[] ids;
+    int[] balances;
+    int[] overdrafts;
+    byte[] types;
+    int[] costs;
+    /**Offset of each slot's hash and salt in {@link #arena}*/
+    int[] credentials;
+    /**Slots changed since the last snapshot*/
+    boolean[] dirty;
+    int mask;
+    int size = 0;
+
+    /**Hash and salt of every slot, each stored as {@code [hash length][salt length][hash][salt]}*/
+    byte[] arena = new byte[DEFAULT_CAPACITY * 32];
+    int arenaEnd = 0;
+
+    /**Database snapshots are written to, {@code null} for a table that is only in memory*/
+    final ConnectionPool pool;
+    /**Leases on the accounts in use*/
+    final AccountLockManager locks;
+    private ScheduledExecutorService snapshotter = null;
+
+    //Statistics
+    int snapshots = 0;
+    int snapshotRows = 0;
+
+    /** {@code AccountTable} constructor for a table that is only in memory
+     *
+     */
+    public AccountTable() {
+        this(null);
+    }
+
+    /** {@code AccountTable} constructor, starts empty, see {@link #load}
+     *
+     * @param pool Database to snapshot to, or {@code null}
+     */
+    public AccountTable(ConnectionPool pool) {
+        this.pool = pool;
+        locks = AccountLockManager.forDatabase("memory:" + tableCount.incrementAndGet());
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    /** Returns the table holding a database's accounts, loading it and starting its<br>
+     *  snapshots on first use. The table is closed when the JVM exits, so changes made<br>
+     *  since the last snapshot are written
+     *
+     * @param pool          Connection pool for the database
+     * @throws SQLException If the accounts could not be loaded
+     */
+    static synchronized AccountTable forDatabase(ConnectionPool pool) throws SQLException {
+        AccountTable table = tables.get(pool.url);
+        if (table == null) {
+            table = new AccountTable(pool);
+            table.load();
+            table.startSnapshots(DEFAULT_SNAPSHOT_MS);
+            tables.put(pool.url, table);
+            AccountTable opened = table;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    opened.close();
+                } catch (SQLException e) {
+                    Debug.trace("AccountTable::close DBerror::" + e);
+                }
+            }, "Account table close"));
+        }
+        return table;
+    }
+
+    private void allocate(int capacity) {
+        ids = new int[capacity];
+        Arrays.fill(ids, FREE);
+        balances = new int[capacity];
+        overdrafts = new int[capacity];
+        types = new byte[capacity];
+        costs = new int[capacity];
+        credentials = new int[capacity];
+        dirty = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    /** Spreads ids so consecutive ones don't fill consecutive slots
+     *
+     */
+    static int mix(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Returns the slot holding an id, or the free slot it would go in
+     *
+     */
+    private int slotOf(int id) {
+        int slot = mix(id) & mask;
+        while (ids[slot] != FREE && ids[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /** Doubles the slots, rehashing every account and packing the arena,<br>
+     *  which drops the hashes replaced by {@link #setPassword}
+     *
+     */
+    private void grow() {
+        int[] oldIds = ids, oldBalances = balances, oldOverdrafts = overdrafts;
+        int[] oldCosts = costs, oldCredentials = credentials;
+        byte[] oldTypes = types, oldArena = arena;
+        boolean[] oldDirty = dirty;
+
+        allocate(oldIds.length * 2);
+        arena = new byte[Math.max(arenaEnd, DEFAULT_CAPACITY * 32)];
+        arenaEnd = 0;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != FREE) {
+                int slot = slotOf(oldIds[i]);
+                ids[slot] = oldIds[i];
+                balances[slot] = oldBalances[i];
+                overdrafts[slot] = oldOverdrafts[i];
+                types[slot] = oldTypes[i];
+                costs[slot] = oldCosts[i];
+                dirty[slot] = oldDirty[i];
+                int from = oldCredentials[i];
+                int length = 2 + (oldArena[from] & 0xFF) + (oldArena[from + 1] & 0xFF);
+                credentials[slot] = arenaEnd;
+                System.arraycopy(oldArena, from, arena, arenaEnd, length);
+                arenaEnd += length;
+            }
+        }
+    }
+
+    /** Packs a hash and salt onto the end of the arena
+     *
+     * @return Their offset
+     */
+    private int appendCredentials(byte[] hashPass, byte[] salt) {
+        int length = 2 + hashPass.length + salt.length;
+        if (arenaEnd + length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaEnd + length));
+        }
+        int offset = arenaEnd;
+        arena[offset] = (byte) hashPass.length;
+        arena[offset + 1] = (byte) salt.length;
+        System.arraycopy(hashPass, 0, arena, offset + 2, hashPass.length);
+        System.arraycopy(salt, 0, arena, offset + 2 + hashPass.length, salt.length);
+        arenaEnd += length;
+        return offset;
+    }
+
+    /** Adds an account, hashes and salts are at most 255 bytes
+     *
+     * @param dirty Whether the next snapshot should write it
+     * @return      {@code false} if the id is taken, invalid or the type unknown
+     */
+    private boolean insert(int id, byte[] hashPass, byte[] salt, int cost, int balance,
+                           int overdraft, int type, boolean dirty) {
+        if (id == FREE || type < 0) {
+            return false;
+        }
+        int slot = slotOf(id);
+        if (ids[slot] == id) {
+            return false;
+        }
+        //Keep the table at most half full so probes stay short
+        if ((size + 1) * 2 > ids.length) {
+            grow();
+            slot = slotOf(id);
+        }
+        ids[slot] = id;
+        balances[slot] = balance;
+        overdrafts[slot] = overdraft;
+        types[slot] = (byte) type;
+        costs[slot] = cost;
+        credentials[slot] = appendCredentials(hashPass, salt);
+        this.dirty[slot] = dirty;
+        size++;
+        return true;
+    }
+
+    /** Adds a new account
+     *
+     * @param hashPass    The password hash
+     * @param salt        The salt used in the hash
+     * @param cost        The hash cost, see {@code CryptoService}
+     * @param accountType {@code BasicAccount} or {@code StudentAccount}
+     * @return            {@code false} if there is an existing account with that id
+     */
+    public boolean create(int id, byte[] hashPass, byte[] salt, int cost, int balance,
+                          int overdraft, String accountType) {
+        lock.writeLock().lock();
+        try {
+            return insert(id, hashPass, salt, cost, balance, overdraft,
+                          LocalBankAccount.typeCode(accountType), true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Returns an account's password hash, salt, type and overdraft
+     *
+     * @return A copy, or {@code null} if there is no such account
+     */
+    public AccountCredentials getCredentials(int id) {
+        lock.readLock().lock();
+        try {
+            int slot = slotOf(id);
+            if (ids[slot] != id) {
+                return null;
+            }
+            int offset = credentials[slot];
+            int hashLength = arena[offset] & 0xFF;
+            int saltLength = arena[offset + 1] & 0xFF;
+            int start = offset + 2;
+            return new AccountCredentials(id,
+                    Arrays.copyOfRange(arena, start, start + hashLength),
+                    Arrays.copyOfRange(arena, start + hashLength, start + hashLength + saltLength),
+                    LocalBankAccount.TYPES[types[slot]], overdrafts[slot], costs[slot]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns an account's balance
+     *
+     * @throws IllegalArgumentException If there is no such account
+     */
+    public int getBalance(int id) {
+        lock.readLock().lock();
+        try {
+            int slot = slotOf(id);
+            if (ids[slot] != id) {
+                throw new IllegalArgumentException("No account " + id);
+            }
+            return balances[slot];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Adds an amount to an account's balance, a withdrawal is refused if it would take<br>
+     *  the balance past the overdraft limit. On success the account object gets the new balance
+     *
+     * @param account The account to change
+     * @param delta   The amount to add, negative to withdraw
+     * @return        {@code false} if refused or there is no such account
+     */
+    public boolean applyDelta(LocalBankAccount account, int delta) {
+        lock.writeLock().lock();
+        try {
+            int slot = slotOf(account.id);
+            if (ids[slot] != account.id) {
+                return false;
+            }
+            if (delta < 0 && balances[slot] + delta <= overdrafts[slot]) {
+                return false;
+            }
+            balances[slot] += delta;
+            dirty[slot] = true;
+            account.balance = balances[slot];
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Moves an amount from one account to another, refused if it would take {@code from}<br>
+     *  past its overdraft limit. Both change in one hold of the table's lock, so a snapshot<br>
+     *  sees both or neither. On success the account object gets its new balance
+     *
+     * @param from   The account the money comes out of
+     * @param toId   The account it goes into
+     * @param amount The amount, more than 0
+     * @return       {@code false} if refused or either account doesn't exist
+     */
+    public boolean transfer(LocalBankAccount from, int toId, int amount) {
+        lock.writeLock().lock();
+        try {
+            int fromSlot = slotOf(from.id);
+            int toSlot = slotOf(toId);
+            if (ids[fromSlot] != from.id || ids[toSlot] != toId) {
+                return false;
+            }
+            if (balances[fromSlot] - amount <= overdrafts[fromSlot]) {
+                return false;
+            }
+            balances[fromSlot] -= amount;
+            balances[toSlot] += amount;
+            dirty[fromSlot] = true;
+            dirty[toSlot] = true;
+            from.balance = balances[fromSlot];
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Replaces an account's password hash, the old one stays in the arena until it grows
+     *
+     * @return {@code false} if there is no such account
+     */
+    public boolean setPassword(int id, byte[] hashPass, byte[] salt, int cost) {
+        lock.writeLock().lock();
+        try {
+            int slot = slotOf(id);
+            if (ids[slot] != id) {
+                return false;
+            }
+            credentials[slot] = appendCredentials(hashPass, salt);
+            costs[slot] = cost;
+            dirty[slot] = true;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Returns the number of accounts
+     *
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Reads every account in the database into the table, skipping ids already held
+     *
+     * @return              The number of accounts read
+     * @throws SQLException If the database could not be read
+     */
+    int load() throws SQLException {
+        Debug.trace("AccountTable::load");
+        int loaded = 0;
+        PooledConnection pc = pool.borrow();
+        lock.writeLock().lock();
+        try (Statement select = pc.conn.createStatement();
+             ResultSet rs = select.executeQuery(SQL_SELECT_ALL)) {
+            while (rs.next()) {
+                //Password hash and salt are stored either raw or as hex
+                boolean binary = "blob".equals(rs.getString("storage"));
+                byte[] password = binary ? rs.getBytes("password")
+                                         : HexCodec.decode(rs.getString("password"));
+                byte[] salt = binary ? rs.getBytes("salt")
+                                     : HexCodec.decode(rs.getString("salt"));
+                int id = rs.getInt("id");
+                if (insert(id, password, salt, rs.getInt("kdfCost"), rs.getInt("balance"),
+                           rs.getInt("overdraft"), rs.getInt("accountType"), false)) {
+                    loaded++;
+                } else {
+                    Debug.trace("AccountTable::load::Skipped account %d", id);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+            pool.release(pc);
+        }
+        Debug.trace("AccountTable::load::Loaded %d accounts", loaded);
+        return loaded;
+    }
+
+    /** Writes every account changed since the last snapshot to the database in one transaction<br>
+     *  The changed slots are copied out under the lock, so sessions only wait for the copy,<br>
+     *  not the write. If the write fails they are marked dirty again for the next snapshot
+     *
+     * @return              The number of accounts written
+     * @throws SQLException If the snapshot could not be written
+     */
+    public synchronized int snapshot() throws SQLException {
+        if (pool == null) {
+            return 0;
+        }
+
+        int count = 0;
+        int[] snapIds, snapBalances, snapOverdrafts, snapCosts;
+        byte[] snapTypes;
+        byte[][] snapHashes, snapSalts;
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                if (dirty[i]) {
+                    count++;
+                }
+            }
+            snapIds = new int[count];
+            snapBalances = new int[count];
+            snapOverdrafts = new int[count];
+            snapCosts = new int[count];
+            snapTypes = new byte[count];
+            snapHashes = new byte[count][];
+            snapSalts = new byte[count][];
+            int n = 0;
+            for (int i = 0; i < ids.length && n < count; i++) {
+                if (dirty[i]) {
+                    dirty[i] = false;
+                    snapIds[n] = ids[i];
+                    snapBalances[n] = balances[i];
+                    snapOverdrafts[n] = overdrafts[i];
+                    snapCosts[n] = costs[i];
+                    snapTypes[n] = types[i];
+                    int offset = credentials[i];
+                    int hashLength = arena[offset] & 0xFF;
+                    int start = offset + 2;
+                    snapHashes[n] = Arrays.copyOfRange(arena, start, start + hashLength);
+                    snapSalts[n] = Arrays.copyOfRange(arena, start + hashLength,
+                                                      start + hashLength + (arena[offset + 1] & 0xFF));
+                    n++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        PooledConnection pc = pool.borrow();
+        try {
+            pc.conn.setAutoCommit(false);
+            PreparedStatement upsert = pc.prepare(SQL_UPSERT_ACCOUNT);
+            for (int n = 0; n < count; n++) {
+                upsert.setInt(1, snapIds[n]);
+                upsert.setInt(2, snapBalances[n]);
+                upsert.setInt(3, snapOverdrafts[n]);
+                DataHandler.setCredentials(upsert, 4, snapHashes[n], snapSalts[n]);
+                upsert.setInt(6, snapTypes[n]);
+                upsert.setInt(7, snapCosts[n]);
+                upsert.addBatch();
+            }
+            upsert.executeBatch();
+            pc.conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            pc.conn.rollback();
+            remarkDirty(snapIds);
+            throw e;
+        } finally {
+            pc.conn.setAutoCommit(true);
+            pool.release(pc);
+        }
+
+        //Sessions reading the database directly must not keep the old credentials
+        AccountCache cache = AccountCache.forDatabase(pool.url);
+        for (int id : snapIds) {
+            cache.invalidate(id);
+        }
+        snapshots++;
+        snapshotRows += count;
+        Debug.trace("AccountTable::snapshot::Wrote %d accounts", count);
+        return count;
+    }
+
+    private void remarkDirty(int[] snapIds) {
+        lock.writeLock().lock();
+        try {
+            for (int id : snapIds) {
+                int slot = slotOf(id);
+                if (ids[slot] == id) {
+                    dirty[slot] = true;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Starts snapshotting to the database on a background thread, once
+     *
+     * @param periodMillis Time between the end of one snapshot and the start of the next
+     */
+    public synchronized void startSnapshots(long periodMillis) {
+        if (snapshotter != null || pool == null) {
+            return;
+        }
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Account table snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (Exception e) {
+                Debug.trace("AccountTable::snapshot DBerror::" + e);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops the background snapshots and writes a final one
+     *
+     * @throws SQLException If the final snapshot could not be written
+     */
+    public void close() throws SQLException {
+        synchronized (this) {
+            if (snapshotter != null) {
+                snapshotter.shutdown();
+                snapshotter = null;
+            }
+        }
+        snapshot();
+    }
+
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return String.format("accounts=%d slots=%d arenaBytes=%d snapshots=%d rows=%d",
+                                 size, ids.length, arenaEnd, snapshots, snapshotRows);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
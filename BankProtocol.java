@@ -0,0 +1,89 @@
+import java.nio.ByteBuffer;
+
+/**The binary protocol spoken between a {@code RemoteBank} and a {@code BankServer}<br>
+ * Every message is a frame: a 4 byte length followed by that many bytes. A request is<br>
+ * {@code [id:int][op:byte][arg1:int][arg2:int]} and its response is<br>
+ * {@code [id:int][status:byte][value:int]}, all big-endian. Requests can be pipelined,<br>
+ * a client may send more before the first is answered. Each connection is one session,<br>
+ * its requests are run and answered in the order they were sent
+ */
+public final class BankProtocol
+{
+    /**Default port of the server*/
+    static final int DEFAULT_PORT = 4747;
+
+    //Operations
+    /**Log in, arg1 is the account number and arg2 the password, value is the balance*/
+    static final byte LOGIN = 1;
+    /**Withdraw arg1 from the account, value is the new balance*/
+    static final byte WITHDRAW = 2;
+    /**Deposit arg1 into the account, value is the new balance*/
+    static final byte DEPOSIT = 3;
+    /**Value is the account's balance*/
+    static final byte BALANCE = 4;
+    /**Save and release the account*/
+    static final byte LOGOUT = 5;
+    /**Keep the account's lease alive*/
+    static final byte HEARTBEAT = 6;
+    /**Move arg1 from the account to account arg2, value is the new balance*/
+    static final byte TRANSFER = 7;
+
+    //Statuses
+    /**The operation succeeded*/
+    static final byte OK = 0;
+    /**The operation was refused, e.g. a wrong password or insufficient funds*/
+    static final byte REFUSED = 1;
+    /**The operation needs a logged in account and there isn't one*/
+    static final byte NOT_LOGGED_IN = 2;
+    /**The request was not understood or the server failed*/
+    static final byte ERROR = 3;
+    /**A withdrawal was refused because it would pass a withdrawal limit, value is the balance*/
+    static final byte OVER_LIMIT = 4;
+    /**A login was refused without checking it, the account or terminal has failed too often*/
+    static final byte THROTTLED = 5;
+
+    /**Size of the length prefix*/
+    static final int LENGTH_BYTES = 4;
+    /**Length of a request after its prefix*/
+    static final int REQUEST_BYTES = 13;
+    /**Length of a response after its prefix*/
+    static final int RESPONSE_BYTES = 9;
+
+    private BankProtocol() {
+    }
+
+    /** Writes a request frame
+     *
+     * @param buffer Where to write it, needs {@code LENGTH_BYTES + REQUEST_BYTES} remaining
+     */
+    static void putRequest(ByteBuffer buffer, int id, byte op, int arg1, int arg2) {
+        buffer.putInt(REQUEST_BYTES).putInt(id).put(op).putInt(arg1).putInt(arg2);
+    }
+
+    /** Writes a response frame
+     *
+     * @param buffer Where to write it, needs {@code LENGTH_BYTES + RESPONSE_BYTES} remaining
+     */
+    static void putResponse(ByteBuffer buffer, int id, byte status, int value) {
+        buffer.putInt(RESPONSE_BYTES).putInt(id).put(status).putInt(value);
+    }
+
+    /** Returns the length of the next complete frame in a buffer being read, without<br>
+     *  consuming anything
+     *
+     * @param buffer   The buffer, flipped for reading
+     * @param expected The length a frame must have
+     * @return         {@code expected} if a whole frame is there, 0 if more bytes are needed
+     * @throws IllegalStateException If the frame has the wrong length
+     */
+    static int frameReady(ByteBuffer buffer, int expected) {
+        if (buffer.remaining() < LENGTH_BYTES) {
+            return 0;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length != expected) {
+            throw new IllegalStateException("Bad frame length " + length);
+        }
+        return buffer.remaining() >= LENGTH_BYTES + length ? length : 0;
+    }
+}
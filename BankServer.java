@@ -0,0 +1,406 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**TCP server giving ATMs on other machines access to the bank, see {@link BankProtocol}<br>
+ * One selector thread accepts connections, reads request frames and writes responses<br>
+ * without blocking. Each connection is a session with its own {@code LocalBank}. Its<br>
+ * requests are run in order on {@link LocalBank#EXECUTOR}, since they wait on the database,<br>
+ * and their responses are queued for the selector thread to write. A client can pipeline<br>
+ * requests, reading is never held up by a slow operation. Once a session has<br>
+ * {@link #MAX_IN_FLIGHT} requests without written responses it isn't read from until some<br>
+ * are written, so a client that never reads can't queue up unbounded work
+ */
+public class BankServer
+{
+    /**Largest number of bytes read from a connection at once*/
+    static final int READ_BUFFER_BYTES = 4096;
+    /**Most requests a session can have running or unwritten before reading from it stops*/
+    static final int MAX_IN_FLIGHT = 64;
+
+    /**One client connection and its bank session*/
+    private final class Session {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final LocalBank bank;
+        final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        /**Responses waiting to be written*/
+        final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+        /**The last request queued, each request runs after the one before it*/
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        /**Requests queued whose responses haven't been written, used by the selector thread*/
+        int inFlight = 0;
+
+        Session(SocketChannel channel, SelectionKey key, LocalBank bank) {
+            this.channel = channel;
+            this.key = key;
+            this.bank = bank;
+        }
+    }
+
+    /**Creates the bank for each new session*/
+    final Supplier<LocalBank> banks;
+    /**Port asked for, 0 for any free port*/
+    final int requestedPort;
+    /**Sessions with responses to write, picked up by the selector thread*/
+    final Queue<Session> pendingWrites = new ConcurrentLinkedQueue<Session>();
+    final AtomicInteger sessionCount = new AtomicInteger();
+
+    Selector selector;
+    ServerSocketChannel serverChannel;
+    Thread thread;
+    volatile boolean closed = false;
+
+    //Statistics
+    final LongAdder connections = new LongAdder();
+    final LongAdder requests = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    /** {@code BankServer} constructor, call {@link #start} to begin serving
+     *
+     * @param banks Creates the bank for each connection, e.g. {@code () -> new LocalBank(pool)}
+     * @param port  Port to listen on, 0 for any free port
+     */
+    public BankServer(Supplier<LocalBank> banks, int port) {
+        this.banks = banks;
+        this.requestedPort = port;
+    }
+
+    /** Listens on every interface and starts the selector thread
+     *
+     * @return             The port listened on
+     * @throws IOException If the port could not be bound
+     */
+    public int start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(requestedPort));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        thread = new Thread(this::run, "Bank server");
+        thread.setDaemon(true);
+        thread.start();
+
+        int port = getPort();
+        Debug.trace("BankServer::start:: Listening on %d", port);
+        return port;
+    }
+
+    /** Returns the port listened on
+     *
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    /** Stops accepting and closes every connection, logging their accounts out
+     *
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The selector thread
+     *
+     */
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                //Sessions with new responses want to know when they can write
+                Session pending;
+                while ((pending = pendingWrites.poll()) != null) {
+                    if (pending.key.isValid()) {
+                        pending.key.interestOps(interest(pending));
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Session session = (Session) key.attachment();
+                            if (key.isReadable()) {
+                                read(session);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(session);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        Debug.trace("BankServer::run:: Dropping connection::" + e);
+                        errors.increment();
+                        if (key.attachment() != null) {
+                            disconnect((Session) key.attachment());
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Debug.trace("BankServer::run::" + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    disconnect((Session) key.attachment());
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                Debug.trace("BankServer::close::" + e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+
+        LocalBank bank = banks.get();
+        bank.terminalId = sessionCount.incrementAndGet();
+        //Failed logins count against the address, so reconnecting doesn't start afresh
+        SocketAddress remote = channel.getRemoteAddress();
+        if (remote instanceof InetSocketAddress) {
+            bank.terminalAddress = ((InetSocketAddress) remote).getAddress().hashCode();
+        }
+        key.attach(new Session(channel, key, bank));
+        connections.increment();
+        Debug.trace("BankServer::accept:: Session %d from %s", bank.terminalId, remote);
+    }
+
+    /** Reads whatever has arrived and queues the complete requests
+     *
+     */
+    private void read(Session session) throws IOException {
+        if (session.channel.read(session.in) < 0) {
+            disconnect(session);
+            return;
+        }
+        queueRequests(session);
+    }
+
+    /** Queues the complete requests read so far, up to {@link #MAX_IN_FLIGHT}. The rest stay<br>
+     *  in the buffer, and the session isn't read from again until responses are written
+     *
+     */
+    private void queueRequests(Session session) {
+        ByteBuffer in = session.in;
+        in.flip();
+        while (session.inFlight < MAX_IN_FLIGHT &&
+               BankProtocol.frameReady(in, BankProtocol.REQUEST_BYTES) > 0) {
+            in.getInt();
+            int id = in.getInt();
+            byte op = in.get();
+            int arg1 = in.getInt();
+            int arg2 = in.getInt();
+            requests.increment();
+            session.inFlight++;
+            session.tail = session.tail.thenRunAsync(() -> handle(session, id, op, arg1, arg2),
+                                                     LocalBank.EXECUTOR);
+        }
+        in.compact();
+        session.key.interestOps(interest(session));
+    }
+
+    /** Returns the events a session waits for: reads while it has room for more requests,<br>
+     *  writes while it has responses queued
+     *
+     */
+    private static int interest(Session session) {
+        return (session.inFlight < MAX_IN_FLIGHT ? SelectionKey.OP_READ : 0) |
+               (session.out.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+    }
+
+    /** Writes queued responses until they are all sent or the socket is full
+     *
+     */
+    private void write(Session session) throws IOException {
+        ByteBuffer response;
+        while ((response = session.out.peek()) != null) {
+            session.channel.write(response);
+            if (response.hasRemaining()) {
+                return; //Socket full, wait until it is writable again
+            }
+            session.out.poll();
+            session.inFlight--;
+        }
+        //Room for more requests, including any read while the session was full. A response
+        //queued after the queue looked empty is picked up through pendingWrites
+        queueRequests(session);
+    }
+
+    /** Closes a connection, logging its account out once its queued requests are done
+     *
+     */
+    private void disconnect(Session session) {
+        if (!session.channel.isOpen()) {
+            return;
+        }
+        Debug.trace("BankServer::disconnect:: Session %d", session.bank.terminalId);
+        session.key.cancel();
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            Debug.trace("BankServer::disconnect::" + e);
+        }
+        session.tail.thenRunAsync(session.bank::logOut, LocalBank.EXECUTOR);
+    }
+
+    /** Runs one request on the session's bank and queues the response
+     *
+     */
+    private void handle(Session session, int id, byte op, int arg1, int arg2) {
+        LocalBank bank = session.bank;
+        byte status = BankProtocol.OK;
+        int value = 0;
+
+        try {
+            boolean loggedIn = bank.currentAccount != null;
+            if (loggedIn) {
+                //Any request keeps the account's lease alive
+                bank.heartbeat();
+            }
+
+            switch (op) {
+                case BankProtocol.LOGIN:
+                    if (loggedIn) {
+                        bank.logOut();
+                    }
+                    bank.setAccNumber(arg1);
+                    bank.setAccPasswd(arg2);
+                    if (bank.checkValid()) {
+                        value = bank.getBalance();
+                    } else {
+                        bank.logOut();
+                        status = bank.throttled ? BankProtocol.THROTTLED : BankProtocol.REFUSED;
+                    }
+                    break;
+
+                case BankProtocol.WITHDRAW:
+                case BankProtocol.DEPOSIT:
+                    if (!loggedIn) {
+                        status = BankProtocol.NOT_LOGGED_IN;
+                        break;
+                    }
+                    boolean done = op == BankProtocol.WITHDRAW ? bank.withdraw(arg1)
+                                                               : bank.deposit(arg1);
+                    if (done) {
+                        status = BankProtocol.OK;
+                    } else {
+                        boolean limited = op == BankProtocol.WITHDRAW && bank.overLimit;
+                        status = limited ? BankProtocol.OVER_LIMIT : BankProtocol.REFUSED;
+                    }
+                    if (bank.leaseLost) {
+                        //Another session took the account and this one was logged out
+                        status = BankProtocol.NOT_LOGGED_IN;
+                        break;
+                    }
+                    value = bank.getBalance();
+                    break;
+
+                case BankProtocol.TRANSFER:
+                    if (!loggedIn) {
+                        status = BankProtocol.NOT_LOGGED_IN;
+                        break;
+                    }
+                    status = bank.transfer(arg2, arg1) ? BankProtocol.OK : BankProtocol.REFUSED;
+                    value = bank.getBalance();
+                    break;
+
+                case BankProtocol.BALANCE:
+                    if (!loggedIn) {
+                        status = BankProtocol.NOT_LOGGED_IN;
+                    } else {
+                        value = bank.getBalance();
+                    }
+                    break;
+
+                case BankProtocol.LOGOUT:
+                    bank.logOut();
+                    break;
+
+                case BankProtocol.HEARTBEAT:
+                    if (!loggedIn) {
+                        status = BankProtocol.NOT_LOGGED_IN;
+                    }
+                    break;
+
+                default:
+                    status = BankProtocol.ERROR;
+            }
+        } catch (RuntimeException e) {
+            Debug.trace("BankServer::handle::" + e);
+            errors.increment();
+            status = BankProtocol.ERROR;
+        }
+
+        ByteBuffer response = ByteBuffer.allocate(BankProtocol.LENGTH_BYTES +
+                                                  BankProtocol.RESPONSE_BYTES);
+        BankProtocol.putResponse(response, id, status, value);
+        response.flip();
+        session.out.add(response);
+        pendingWrites.add(session);
+        selector.wakeup();
+    }
+
+    public String toString() {
+        return String.format("connections=%d requests=%d errors=%d", connections.sum(),
+                             requests.sum(), errors.sum());
+    }
+
+    /** Runs a bank server on the default database from the command line<br>
+     *  {@code java [-Datm.store=memory|mapped] BankServer [port]}, ATMs connect with<br>
+     *  {@code -Datm.server=host:port}
+     *
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : BankProtocol.DEFAULT_PORT;
+        Metrics.register();
+
+        ConnectionPool pool = DataHandler.sharedPool();
+        Schema.migrate(pool);
+        CryptoService.shared().calibrate(pool, 50);
+        Ledger.open("atm.ledger", pool);
+        WithdrawalLimits.open(pool);
+        LoginThrottle.enable();
+
+        //Keep accounts where -Datm.store says, the database by default
+        Function<LocalBank, AccountStore> stores = LocalBank.configuredStores(pool);
+        Supplier<LocalBank> banks = () -> new LocalBank(stores);
+
+        BankServer server = new BankServer(banks, port);
+        System.out.println("Bank server listening on port " + server.start());
+        server.thread.join();
+    }
+}
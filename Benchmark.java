@@ -0,0 +1,192 @@
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**Micro-benchmarks for the login, keystroke and persistence hot paths<br>
+ * Run with {@code java Benchmark [filter]}, only benchmarks whose name contains the filter run.<br>
+ * Each benchmark is warmed up, then measured over several fixed-length iterations. Like JMH with<br>
+ * {@code -prof gc} it reports throughput alongside the allocation rate, bytes allocated per<br>
+ * operation and the number of collections, so regressions show up as numbers.<br>
+ * Database benchmarks run against a temporary SQLite file which is deleted afterwards
+ */
+public class Benchmark
+{
+    /**Warmup iterations before measuring*/
+    static final int WARMUP_ITERATIONS = 3;
+    /**Measured iterations*/
+    static final int MEASURE_ITERATIONS = 5;
+    /**Length of each iteration in milliseconds*/
+    static final long ITERATION_MS = 1000;
+    /**Operations run between clock checks*/
+    static final int BATCH = 16;
+
+    /**Keys pressed for a full session: log in, withdraw 20, deposit 20, balance, exit*/
+    static final String[] SESSION_KEYS = {
+            "1", "0", "4", "7", "8", "ENT",
+            "5", "4", "3", "2", "1", "ENT",
+            "W/D", "20", "ENT",
+            "Dep", "20", "ENT",
+            "Bal", "EXIT"};
+    /**Keys pressed entering an account number, never touches the database*/
+    static final String[] TYPING_KEYS = {"1", "2", "3", "4", "5", "6", "CLR"};
+
+    /**A single benchmarked operation*/
+    interface Op {
+        /**Runs the operation once, the result is kept so it can't be optimised away*/
+        Object run() throws Exception;
+    }
+
+    /**Result of the last operation, stops the JIT removing the work*/
+    static volatile Object sink;
+
+    /**Allocation counter of the running JVM*/
+    static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        Debug.set(false);
+
+        //Temporary database with the usual test account
+        File dbFile = File.createTempFile("atm-bench", ".db");
+        dbFile.deleteOnExit();
+        ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + dbFile.getPath(),
+                                                 DataHandler.POOL_SIZE);
+        Schema.migrate(pool);
+
+        LocalBank bank = new LocalBank(pool);
+        DataHandler data = (DataHandler) bank.data;
+        data.createAccount(10478, 54321, 0, 0, "BasicAccount");
+
+        byte[] salt = data.getSalt();
+        byte[] digest = data.hexToByte(data.hashPassword(54321, salt));
+        String hex = data.byteToHex(digest);
+
+        //A session whose rendering goes nowhere
+        Model model = new Model(new LocalBank(pool), 1);
+        model.addListener(new ModelListener() {
+            public void displayChanged(Model source) { }
+            public void optionsChanged(Model source, String[] options) { }
+        });
+
+        LocalBankAccount account = new LocalBankAccount(10478, 0, 0);
+
+        System.out.printf("%-28s %14s %10s %12s %12s %9s%n", "Benchmark", "ops/s", "error",
+                          "alloc MB/s", "alloc B/op", "gc.count");
+
+        run(filter, "DataHandler.hashPassword", () -> data.hashPassword(54321, salt));
+        run(filter, "DataHandler.getSalt", () -> data.getSalt());
+        run(filter, "DataHandler.byteToHex", () -> data.byteToHex(digest));
+        run(filter, "DataHandler.hexToByte", () -> data.hexToByte(hex));
+        run(filter, "DataHandler.checkPassword", () -> {
+            boolean ok = data.checkPassword(10478, 54321);
+            data.saveAccount(bank.currentAccount);
+            return ok;
+        });
+        run(filter, "DataHandler.checkPasswordWrong", () -> data.checkPassword(10478, 11111));
+        run(filter, "DataHandler.saveAccount", () -> {
+            data.locks.acquire(account.id, bank);
+            data.saveAccount(account);
+            return account;
+        });
+        //Enough money that the withdrawals never run out
+        bank.currentAccount = account;
+        data.applyDelta(account, 1000000000);
+        run(filter, "LocalBank.withdraw", () -> bank.withdraw(1));
+        run(filter, "LocalBank.deposit", () -> bank.deposit(1));
+        run(filter, "Model.processTyping", () -> {
+            for (String key : TYPING_KEYS) {
+                model.process(key);
+            }
+            return model.getDisplay1();
+        });
+        run(filter, "Model.processSession", () -> {
+            for (String key : SESSION_KEYS) {
+                model.process(key);
+            }
+            return model.getDisplay2();
+        });
+
+        pool.close();
+        dbFile.delete();
+    }
+
+    /** Warms up and measures one benchmark, then prints its results
+     *
+     * @param filter Only run if the name contains this
+     * @param name   Name of the benchmark
+     * @param op     The operation to measure
+     */
+    static void run(String filter, String name, Op op) throws Exception {
+        if (!name.contains(filter)) {
+            return;
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(op);
+        }
+
+        List<double[]> results = new ArrayList<double[]>();
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            results.add(iteration(op));
+        }
+
+        //Mean and spread of throughput, totals for allocation
+        double sum = 0, ops = 0, bytes = 0, seconds = 0, gcs = 0;
+        for (double[] r : results) {
+            sum += r[0] / r[3];
+            ops += r[0];
+            bytes += r[1];
+            gcs += r[2];
+            seconds += r[3];
+        }
+        double mean = sum / results.size();
+        double variance = 0;
+        for (double[] r : results) {
+            double d = r[0] / r[3] - mean;
+            variance += d * d;
+        }
+        double error = Math.sqrt(variance / Math.max(1, results.size() - 1));
+
+        System.out.printf("%-28s %14.1f %10.1f %12.2f %12.1f %9.0f%n", name, mean, error,
+                          bytes / seconds / (1024 * 1024), bytes / ops, gcs);
+    }
+
+    /** Runs the operation repeatedly for {@link #ITERATION_MS}
+     *
+     * @return {operations, bytes allocated, collections, seconds}
+     */
+    static double[] iteration(Op op) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long gcBefore = gcCount();
+        long allocBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long deadline = start + ITERATION_MS * 1000000L;
+
+        long count = 0;
+        long now;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                sink = op.run();
+            }
+            count += BATCH;
+            now = System.nanoTime();
+        } while (now < deadline);
+
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocBefore;
+        return new double[] {count, allocated, gcCount() - gcBefore, (now - start) / 1e9};
+    }
+
+    /** Returns the total number of collections run by every collector so far
+     *
+     */
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+}
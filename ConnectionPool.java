@@ -0,0 +1,171 @@
+import java.sql.*;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**Pool of long-lived connections to the database, shared by every {@code DataHandler}<br>
+ * Connections are opened lazily up to {@link #size} and handed out one borrower at a time.<br>
+ * Each connection keeps its own cache of {@code PreparedStatement}s, see {@link PooledConnection}
+ */
+public class ConnectionPool
+{
+    /**How long {@link #borrow} waits for a free connection before giving up*/
+    static final long BORROW_TIMEOUT_MS = 30000;
+
+    /**JDBC url of the database*/
+    final String url;
+    /**Maximum number of open connections*/
+    final int size;
+    /**Settings passed to the driver with every new connection, see {@link Schema#pragmas}*/
+    final Properties pragmas;
+
+    /**Connections that are open but not currently borrowed*/
+    final BlockingQueue<PooledConnection> idle;
+    /**Number of connections opened so far*/
+    final AtomicInteger created = new AtomicInteger();
+    /**Number of connections currently borrowed*/
+    final AtomicInteger active = new AtomicInteger();
+
+    //Statistics, see getStats()
+    final LongAdder borrows = new LongAdder();
+    final LongAdder waitNanos = new LongAdder();
+    final AtomicLong maxWaitNanos = new AtomicLong();
+    final LongAdder cacheHits = new LongAdder();
+    final LongAdder cacheMisses = new LongAdder();
+
+    /**Set once the pool has been closed*/
+    volatile boolean closed = false;
+
+    /** {@code ConnectionPool} constructor, loads the SQLite driver and opens connections<br>
+     *  with the default {@link Schema#pragmas}
+     *
+     * @param url  JDBC url of the database, e.g. {@code jdbc:sqlite:atm.db}
+     * @param size Maximum number of connections to keep open
+     */
+    public ConnectionPool(String url, int size) {
+        this(url, size, Schema.pragmas());
+    }
+
+    /** {@code ConnectionPool} constructor, loads the SQLite driver
+     *
+     * @param url     JDBC url of the database, e.g. {@code jdbc:sqlite:atm.db}
+     * @param size    Maximum number of connections to keep open
+     * @param pragmas Settings for each connection, e.g. {@code journal_mode}
+     */
+    public ConnectionPool(String url, int size, Properties pragmas) {
+        Debug.trace("ConnectionPool::<constructor> " + url + " size = " + size);
+
+        this.url = url;
+        this.size = size;
+        this.pragmas = pragmas;
+        idle = new ArrayBlockingQueue<PooledConnection>(size);
+
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            Debug.trace("ConnectionPool::" + e.toString());
+        }
+    }
+
+    /** Takes a connection out of the pool, opening a new one if the pool is not full<br>
+     *  The caller must hand it back with {@link #release} when finished
+     *
+     * @return              A connection for the sole use of the caller
+     * @throws SQLException If the pool is closed, a connection could not be opened or<br>
+     *                      none became free within {@link #BORROW_TIMEOUT_MS}
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long start = System.nanoTime();
+        PooledConnection pc = idle.poll();
+
+        if (pc == null) {
+            //Open a new connection if there is room for one
+            int count = created.get();
+            while (count < size) {
+                if (created.compareAndSet(count, count + 1)) {
+                    try {
+                        pc = new PooledConnection(this, DriverManager.getConnection(url, pragmas));
+                    } catch (SQLException e) {
+                        created.decrementAndGet();
+                        throw e;
+                    }
+                    break;
+                }
+                count = created.get();
+            }
+        }
+
+        if (pc == null) {
+            //Pool is full, wait for another borrower to release
+            try {
+                pc = idle.poll(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (pc == null) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        }
+
+        long waited = System.nanoTime() - start;
+        borrows.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        active.incrementAndGet();
+        return pc;
+    }
+
+    /** Returns a borrowed connection to the pool<br>
+     *  Connections that have been closed underneath us are dropped instead
+     *
+     * @param pc The connection returned by {@link #borrow}, may be {@code null}
+     */
+    public void release(PooledConnection pc) {
+        if (pc == null) {
+            return;
+        }
+        active.decrementAndGet();
+
+        boolean usable;
+        try {
+            usable = !closed && !pc.conn.isClosed() && pc.conn.getAutoCommit();
+        } catch (SQLException e) {
+            usable = false;
+        }
+
+        if (!usable || !idle.offer(pc)) {
+            pc.close();
+            created.decrementAndGet();
+        }
+    }
+
+    /** Closes every idle connection, borrowed connections are closed when released
+     *
+     */
+    public void close() {
+        Debug.trace("ConnectionPool::close");
+
+        closed = true;
+        PooledConnection pc;
+        while ((pc = idle.poll()) != null) {
+            pc.close();
+            created.decrementAndGet();
+        }
+    }
+
+    /** Returns a snapshot of the pool's statistics, used for sizing the pool
+     *
+     */
+    public PoolStats getStats() {
+        return new PoolStats(borrows.sum(), waitNanos.sum(), maxWaitNanos.get(),
+                             active.get(), created.get(), cacheHits.sum(), cacheMisses.sum());
+    }
+}
@@ -23,7 +23,7 @@ public class Controller
     // process method of the model
     public void process( String action )
     {
-        Debug.trace("Controller::process: action = " + action);
+        Debug.trace("Controller::process: action = %s", action);
         // Try setting a breakpoint here
         model.process( action );
     }
@@ -0,0 +1,242 @@
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**Password hashing and salt generation for {@code DataHandler}<br>
+ * Digests and random generators are expensive to create, so each thread keeps its own.<br>
+ * Hashing can be run on a small dedicated executor with a bounded queue, returning futures,<br>
+ * so slow hashes never run on the JavaFX thread and a flood of logins is turned away<br>
+ * instead of queueing forever.
+ * <p>
+ * Passwords are hashed with PBKDF2, whose cost (the number of iterations) is stored with each<br>
+ * account. A cost of 0 means the old salted MD5 hash, which is still accepted so existing<br>
+ * accounts can log in and be rehashed. {@link #calibrate} picks a cost for this machine
+ */
+public class CryptoService
+{
+    /**Cost that marks the old salted MD5 hash*/
+    static final int LEGACY_MD5 = 0;
+    /**Cost used until {@link #calibrate} is run*/
+    static final int DEFAULT_COST = 10000;
+    /**Length of a PBKDF2 hash in bits*/
+    static final int KEY_BITS = 256;
+    /**Length of a salt in bytes*/
+    static final int SALT_BYTES = 16;
+    /**Hashes waiting for a thread before new ones are refused*/
+    static final int QUEUE_SIZE = 256;
+
+    /**The instance shared by every {@code DataHandler}*/
+    private static CryptoService shared = null;
+
+    /**Each thread's MD5 digest*/
+    private final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("md5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    /**Each thread's PBKDF2 factory*/
+    private final ThreadLocal<SecretKeyFactory> pbkdf2 = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    /**Each thread's random number generator*/
+    private final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(() -> {
+        try {
+            return SecureRandom.getInstance("SHA1PRNG", "SUN");
+        } catch (GeneralSecurityException e) {
+            return new SecureRandom();
+        }
+    });
+
+    /**Runs hashes off the caller's thread*/
+    final ThreadPoolExecutor executor;
+    /**Cost given to new hashes*/
+    private volatile int cost = DEFAULT_COST;
+
+    /** {@code CryptoService} constructor
+     *
+     * @param threads Threads hashing at once
+     */
+    public CryptoService(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), r -> {
+                    Thread t = new Thread(r, "Crypto " + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /** Returns the instance shared by every {@code DataHandler}, one thread per core
+     *
+     */
+    static synchronized CryptoService shared() {
+        if (shared == null) {
+            shared = new CryptoService(Runtime.getRuntime().availableProcessors());
+        }
+        return shared;
+    }
+
+    /** Returns the cost given to new hashes
+     *
+     */
+    public int getCost() {
+        return cost;
+    }
+
+    /** Sets the cost given to new hashes, existing hashes keep theirs
+     *
+     * @param cost PBKDF2 iterations, at least 1
+     */
+    public void setCost(int cost) {
+        this.cost = Math.max(1, cost);
+    }
+
+    /** Finds the cost at which one hash takes about the target time on this machine<br>
+     *  and uses it for new hashes
+     *
+     * @param targetMillis The time a login should spend hashing
+     * @return             The chosen cost
+     */
+    public int calibrate(long targetMillis) {
+        byte[] salt = newSalt();
+        int iterations = 1000;
+        //Warm up the JIT so the first timings aren't misleading
+        hash(12345, salt, iterations);
+
+        while (true) {
+            long start = System.nanoTime();
+            hash(12345, salt, iterations);
+            long took = System.nanoTime() - start;
+
+            long target = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+            if (took >= target / 2 || iterations > (1 << 24)) {
+                //Close enough to scale linearly from here
+                long scaled = (long) iterations * target / Math.max(1, took);
+                setCost((int) Math.min(Integer.MAX_VALUE, Math.max(1000, scaled)));
+                break;
+            }
+            iterations *= 2;
+        }
+
+        Debug.trace("CryptoService::calibrate::Cost %d for %d ms", cost, targetMillis);
+        return cost;
+    }
+
+    /** Uses the cost saved for a database by an earlier calibration, or calibrates and saves<br>
+     *  it, so startup only pays for calibration once. Saved costs are kept per target time,<br>
+     *  {@code -Datm.recalibrate=true} calibrates again, e.g. after moving to a new machine
+     *
+     * @param pool          Connection pool for the database, already migrated
+     * @param targetMillis  The time a login should spend hashing
+     * @return              The cost in use
+     * @throws SQLException If the saved cost couldn't be read or written
+     */
+    public int calibrate(ConnectionPool pool, long targetMillis) throws SQLException {
+        String setting = "kdfCost." + targetMillis + "ms";
+        int saved = Boolean.getBoolean("atm.recalibrate") ? 0 :
+                    Schema.getSetting(pool, setting, 0);
+        if (saved > 0) {
+            setCost(saved);
+            Debug.trace("CryptoService::calibrate::Saved cost %d for %d ms", cost, targetMillis);
+            return cost;
+        }
+        int calibrated = calibrate(targetMillis);
+        Schema.putSetting(pool, setting, calibrated);
+        return calibrated;
+    }
+
+    /** Creates a random salt
+     *
+     */
+    public byte[] newSalt() {
+        byte[] salt = new byte[SALT_BYTES];
+        random.get().nextBytes(salt);
+        return salt;
+    }
+
+    /** Hashes a password with the old salted MD5 scheme
+     *
+     * @param pass The password
+     * @param salt The salt
+     * @return     The 16 byte hash
+     */
+    public byte[] md5(int pass, byte[] salt) {
+        MessageDigest md = md5.get();
+        md.reset();
+        md.update(salt);
+        return md.digest(Integer.toString(pass).getBytes());
+    }
+
+    /** Hashes a password at a given cost
+     *
+     * @param pass The password
+     * @param salt The salt
+     * @param cost PBKDF2 iterations, or {@link #LEGACY_MD5}
+     * @return     The hash
+     */
+    public byte[] hash(int pass, byte[] salt, int cost) {
+        long start = System.nanoTime();
+        try {
+            if (cost == LEGACY_MD5) {
+                return md5(pass, salt);
+            }
+
+            char[] chars = Integer.toString(pass).toCharArray();
+            KeySpec spec = new PBEKeySpec(chars, salt, cost, KEY_BITS);
+            return pbkdf2.get().generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            Metrics.hashPassword.record(System.nanoTime() - start);
+        }
+    }
+
+    /** Hashes a password on the executor
+     *
+     * @return Completes with the hash, or exceptionally if the executor is too busy
+     */
+    public CompletableFuture<byte[]> hashAsync(int pass, byte[] salt, int cost) {
+        return submit(() -> hash(pass, salt, cost));
+    }
+
+    /** Checks a password against an account's stored hash on the executor
+     *
+     * @param pass    The password entered
+     * @param account The account's credentials
+     * @return        Completes with {@code true} if they match, or exceptionally if the<br>
+     *                executor is too busy
+     */
+    public CompletableFuture<Boolean> verifyAsync(int pass, AccountCredentials account) {
+        return submit(() -> MessageDigest.isEqual(hash(pass, account.salt, account.kdfCost),
+                                                  account.password));
+    }
+
+    /** Runs a task on the executor, failing the future straight away if its queue is full
+     *
+     */
+    private <T> CompletableFuture<T> submit(java.util.function.Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor);
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            CompletableFuture<T> failed = new CompletableFuture<T>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+}
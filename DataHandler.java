@@ -1,190 +1,533 @@
 import java.sql.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**Handles all operations that require access to the database
  * 
  */
-public class DataHandler
+public class DataHandler extends AbstractAccountStore
 {
-    /**Link to {@code LocalBank}*/
-    public LocalBank localBank; 
+    /**Location of the database*/
+    static final String DB_URL = "jdbc:sqlite:atm.db";
+    /**Number of connections in the shared pool*/
+    static final int POOL_SIZE = 4;
     
-    /**Connection to the database*/ 
-    Connection conn = null; 
-    /**Statement used to execute SQL*/
-    Statement stmt = null; 
-    /**SQL string used by the statement*/
-    String sql = ""; 
+    //The fixed set of queries, prepared once per pooled connection
+    static final String SQL_INSERT_ACCOUNT = "INSERT INTO bank(id, balance, overdraft, " +
+            "password, salt, accountType, kdfCost) VALUES (?,?,?,?,?,?,?) " +
+            "ON CONFLICT(id) DO NOTHING";
+    static final String SQL_SELECT_CREDENTIALS = "SELECT password, salt, accountType, " +
+            "overdraft, kdfCost, typeof(password) AS storage FROM bank WHERE id = ?";
+    static final String SQL_APPLY_DELTA = "UPDATE bank SET balance = balance + ? " +
+            "WHERE id = ? AND (? >= 0 OR balance + ? > overdraft)";
+    static final String SQL_SELECT_BALANCE = "SELECT balance FROM bank WHERE id = ?";
+    static final String SQL_SET_PASSWORD = "UPDATE bank SET password = ?, salt = ?, " +
+            "kdfCost = ? WHERE id = ?";
     
-    /** {@code DataHandler} constructor, links instance back to {@code LocalBank}
+    /**Whether new password hashes and salts are stored as raw BLOBs instead of hex strings*/
+    private static volatile boolean binaryCredentials = false;
+    
+    /**Pool shared by every {@code DataHandler} using the default database*/
+    private static ConnectionPool sharedPool = null;
+    
+    /**Pool of connections to the database*/ 
+    final ConnectionPool pool; 
+    /**Leases on the accounts in use, shared by everything using the same database*/
+    final AccountLockManager locks;
+    /**Commits changes to the database in batches, shared like {@link #locks}*/
+    final GroupCommitWriter writer;
+    /**Credentials of recently used accounts, shared like {@link #locks}*/
+    final AccountCache cache;
+    /**The shards holding the accounts, or {@code null} for one database*/
+    final ShardMap shards;
+    
+    /** {@code DataHandler} constructor, links instance back to {@code LocalBank}<br>
+     *  and uses the connection pool shared by all banks
      * 
      * @param parent The {@code LocalBank} instance to link to
      */
     public DataHandler(LocalBank parent) {
-        localBank = parent;
-    }
-    
-    /** Creates a new account in the database, used to setup a test but could be extended to<br>
-    *   an admin system for creating new accounts
-    *   
-    *  @param  id              Account ID
-    *  @param  password        Account password
-    *  @param  balance         Starting balance
-    *  @param  overdraft       Overdraft limit
-    *  @throws ConstraintError If there is an existing account with that id
-    */
-    public void createAccount(int id, int password, int balance, int overdraft,
-                              String accountType) {
-        Debug.trace("DataHandler::createAccount");
+        this(parent, sharedPool());
+    }
+    
+    /** {@code DataHandler} constructor, links instance back to {@code LocalBank}
+     * 
+     * @param parent The {@code LocalBank} instance to link to
+     * @param pool   The connection pool to use, allows a different database
+     */
+    public DataHandler(LocalBank parent, ConnectionPool pool) {
+        super(parent);
+        this.pool = pool;
+        locks = pool != null ? AccountLockManager.forDatabase(pool.url) : null;
+        writer = pool != null ? GroupCommitWriter.forDatabase(pool) : null;
+        cache = pool != null ? AccountCache.forDatabase(pool.url) : null;
+        shards = null;
+    }
+    
+    /** {@code DataHandler} constructor for accounts spread across several databases<br>
+     *  Each operation goes to the pool, writer and cache of the shard holding its account
+     * 
+     * @param parent The {@code LocalBank} instance to link to
+     * @param shards The shard map
+     */
+    public DataHandler(LocalBank parent, ShardMap shards) {
+        super(parent);
+        this.shards = shards;
+        pool = null;
+        locks = shards.locks;
+        writer = null;
+        cache = null;
+    }
+    
+    /** Returns the pool for {@link #DB_URL}, creating it on first use
+     * 
+     */
+    static synchronized ConnectionPool sharedPool() {
+        if (sharedPool == null) {
+            sharedPool = new ConnectionPool(DB_URL, POOL_SIZE);
+        }
+        return sharedPool;
+    }
+    
+    /** Set true to store password hashes and salts as raw BLOBs, {@link Schema#migrate}<br>
+     *  turns it on. Either form can always be read, so this only affects new writes
+     * 
+     * @param binary {@code true} for BLOBs, {@code false} for hex strings
+     */
+    public static void setBinaryCredentials(boolean binary) {
+        binaryCredentials = binary;
+    }
+    
+    /** Returns the statistics of this handler's connection pool
+     * 
+     */
+    public PoolStats getPoolStats() {
+        return pool != null ? pool.getStats() : shards.shardOf(0).pool.getStats();
+    }
+    
+    /** Queues a change to an account on the writer of its database
+     * 
+     * @param id       The account the change is to
+     * @param mutation The change
+     */
+    private <T> CompletableFuture<T> submit(int id, GroupCommitWriter.Mutation<T> mutation) {
+        if (shards == null) {
+            return writer.submit(mutation);
+        }
         try {
-            //Connect to database
-            Class.forName("org.sqlite.JDBC");
-            conn = DriverManager.getConnection("jdbc:sqlite:atm.db");
-            
-            sql = "INSERT INTO bank(id, balance, overdraft, password, salt," +
-                    "accountType, datalocked) VALUES (?,?,?,?,?,?,?)";
-            
+            //Queued under the bucket lock, so a move waits for it to commit
+            return shards.onShard(id, shard -> shard.writer.submit(mutation));
+        } catch (SQLException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    /** Drops an account from the credential cache of its database
+     * 
+     */
+    private void invalidate(int id) {
+        (shards == null ? cache : shards.shardOf(id).cache).invalidate(id);
+    }
+    
+    /** Creates a new account in the database, waiting for the group commit writer
+     * 
+     */
+    boolean create(int id, byte[] hashPass, byte[] salt, int cost, int balance, int overdraft,
+                   String accountType) {
+        int type = LocalBankAccount.typeCode(accountType);
+        if (type < 0) {
+            throw new IllegalArgumentException("Unknown account type " + accountType);
+        }
+        return insert(id, hashPass, salt, cost, balance, overdraft, type).join();
+    }
+    
+    /** Queues a new account to be created by the group commit writer<br>
+     *  The password is hashed at the current cost on the crypto executor before queueing
+     *   
+     *  @param  id              Account ID
+     *  @param  password        Account password
+     *  @param  balance         Starting balance
+     *  @param  overdraft       Overdraft limit
+     *  @return                 Completes with {@code true} once the account is committed,<br>
+     *                          or {@code false} if there is an existing account with that id
+     */
+    public CompletableFuture<Boolean> createAccountAsync(int id, int password, int balance,
+                                                         int overdraft, String accountType) {
+        int type = LocalBankAccount.typeCode(accountType);
+        if (type < 0) {
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("Unknown account type " + accountType));
+        }
+        
+        //Hash password
+        byte[] salt = crypto.newSalt();
+        int cost = crypto.getCost();
+        
+        return crypto.hashAsync(password, salt, cost).thenCompose(hashPass ->
+            insert(id, hashPass, salt, cost, balance, overdraft, type));
+    }
+    
+    /** Queues a new account with its password already hashed
+     * 
+     * @param type The account type code
+     * @return     Completes with {@code false} if there is an existing account with that id
+     */
+    private CompletableFuture<Boolean> insert(int id, byte[] hashPass, byte[] salt, int cost,
+                                              int balance, int overdraft, int type) {
+        return submit(id, pc -> {
             //PreparedStatement protects against SQL injections
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            
-            //Hash password
-            byte[] salt = getSalt();
-            String hashPass = hashPassword(password, salt);
-            String strSalt = byteToHex(salt);
+            PreparedStatement pstmt = pc.prepare(SQL_INSERT_ACCOUNT);
             
             //Execute INSERT
             pstmt.setInt(1, id);
             pstmt.setInt(2, balance);
             pstmt.setInt(3, overdraft);
-            pstmt.setString(4, hashPass);
-            pstmt.setString(5, strSalt);
-            pstmt.setString(6, accountType);
-            pstmt.setBoolean(7, false);
-            pstmt.executeUpdate();
-            
-            Debug.trace("DataHandler::createAccount::Created account " + id);
-            
-            //Close connection to database
-            pstmt.close();
-            conn.close();
-        } catch (Exception e) {
-            String error = e.toString();
-            if (error.contains("CONSTRAINT")) { 
-                //Attempted to make non-unique account
-                Debug.trace("DataHandler::createAccount::Account " + id + " already exists");   
-            } else { 
-                //Unexpected error
-                Debug.trace("DataHandler::createAccount::DBError::" + error);
-            }
+            setCredentials(pstmt, 4, hashPass, salt);
+            pstmt.setInt(6, type);
+            pstmt.setInt(7, cost);
+            //An existing id is left alone and changes no rows
+            return pstmt.executeUpdate() == 1;
+        }).whenComplete((r, e) -> invalidate(id));
+    }
+    
+    boolean acquire(int id) {
+        //Lease the account to stop other sessions updating it, refused if
+        //another session holds an unexpired lease
+        return locks.acquire(id, localBank);
+    }
+    
+    void release(int id) {
+        locks.release(id, localBank);
+    }
+    
+    /** Applies the account's changes in an open {@link Ledger} to the database<br>
+     *  At login a session whose lease ran out without logging out may have left some
+     * 
+     */
+    void flush(int id) throws SQLException {
+        Ledger ledger = getLedger();
+        if (ledger != null) {
+            ledger.flushAccount(id);
         }
     }
     
-    /** Checks entered password against one stored in the database<br>
-     *  If equal, creates new {@code CurrentAccount} object with {@link LocalBank#makeAccount}
+    /** Returns an account's password hash, salt, type and overdraft, from the cache if possible
      * 
-     * @param i     ID to check password against
-     * @param pass  Password to check
-     * @return      {@code true} if passwords match, otherwise {@code false}
+     * @param id            The account id
+     * @return              The credentials, or {@code null} if there is no such account
+     * @throws SQLException If they couldn't be read from the database
      */
-    public boolean checkPassword(int i, int pass) {    
-        Debug.trace("DataHandler::checkPassword");
+    AccountCredentials getCredentials(int id) throws SQLException {
+        if (shards != null) {
+            return shards.onShard(id, shard -> getCredentials(id, shard.pool, shard.cache));
+        }
+        return getCredentials(id, pool, cache);
+    }
+    
+    private static AccountCredentials getCredentials(int id, ConnectionPool pool,
+                                                     AccountCache cache) throws SQLException {
+        AccountCredentials account = cache.get(id);
+        if (account != null) {
+            return account == AccountCache.MISSING ? null : account;
+        }
         
-        try { 
-            //Connect to database
-            Class.forName("org.sqlite.JDBC");
-            Connection conn = DriverManager.getConnection("jdbc:sqlite:atm.db");
-            Statement stmt = conn.createStatement();
-       
-            //Select result with target ID
-            String sql = "SELECT * FROM bank WHERE id = " + i;
-            ResultSet rs = stmt.executeQuery(sql);
-            rs.next(); //Selects 1st result
-            
-            //Retrieve hashed password from database
-            String password = rs.getString("password");
-            String salt = rs.getString("salt");
-            //Convert salt to byte form
-            byte[] byteSalt = hexToByte(salt);
-            
-            //Hash entered password using same salt
-            String hashPass = hashPassword(pass, byteSalt);
-            
-            //Check entered password against one in database
-            if (hashPass.equals(password)) {
-                //Variables needed for account object
-                int id = rs.getInt("id");
-                int balance = rs.getInt("balance");
-                int overdraft = rs.getInt("overdraft");
-                String accountType = rs.getString("accountType");
-                
-                //Check if account is in use
-                boolean datalocked = rs.getBoolean("datalocked");
-                Debug.trace("--------------");
-                if (datalocked == true) { 
-                    throw new Exception("Account data is locked"); 
+        long version = cache.version(id);
+        PooledConnection pc = pool.borrow();
+        try {
+            PreparedStatement select = pc.prepare(SQL_SELECT_CREDENTIALS);
+            select.setInt(1, id);
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    account = AccountCache.MISSING;
                 } else {
-                   //Lock the account to stop other sources updating it, necessary for
-                   //multi-access systems.
-                   sql = "UPDATE bank SET datalocked = true WHERE id = " + i;
-                   stmt.executeUpdate(sql);
+                    //Password hash and salt are stored either raw or as hex
+                    boolean binary = "blob".equals(rs.getString("storage"));
+                    byte[] password = binary ? rs.getBytes("password")
+                                             : HexCodec.decode(rs.getString("password"));
+                    byte[] salt = binary ? rs.getBytes("salt")
+                                         : HexCodec.decode(rs.getString("salt"));
+                    account = new AccountCredentials(id, password, salt,
+                                                     LocalBankAccount.TYPES[rs.getInt("accountType")],
+                                                     rs.getInt("overdraft"),
+                                                     rs.getInt("kdfCost"));
                 }
-                                   
-                //Create new account object with same properties as database
-                localBank.currentAccount = localBank.makeAccount(accountType, id, balance, overdraft);
-               
-                //Close connection to database
-                rs.close();
-                stmt.close();
-                conn.close();
-                return true;
             }
-        } catch (Exception e) {
-            String error = e.toString();
-            Debug.trace("DataHandler::checkPassword DBerror::" + error);
-        } 
+        } finally {
+            pool.release(pc);
+        }
+        
+        cache.put(id, account, version);
+        return account == AccountCache.MISSING ? null : account;
+    }
+    
+    /** Reads an account's balance from the database
+     * 
+     * @param id            The account id
+     * @return              The stored balance
+     * @throws SQLException If there is no such account
+     */
+    int getBalance(int id) throws SQLException {
+        if (shards != null) {
+            return shards.onShard(id, shard -> getBalance(id, shard.pool));
+        }
+        return getBalance(id, pool);
+    }
+    
+    private static int getBalance(int id, ConnectionPool pool) throws SQLException {
+        PooledConnection pc = pool.borrow();
+        try {
+            PreparedStatement select = pc.prepare(SQL_SELECT_BALANCE);
+            select.setInt(1, id);
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("No account " + id);
+                }
+                return rs.getInt("balance");
+            }
+        } finally {
+            pool.release(pc);
+        }
+    }
+    
+    /** Changes an account's password, giving it a new salt and the current cost
+     * 
+     * @param id       The account id
+     * @param password The new password
+     * @return         {@code true} if changed, {@code false} if there is no such account or on error
+     */
+    public boolean changePassword(int id, int password) {
+        Debug.trace("DataHandler::changePassword");
+        
+        try {
+            return setPasswordAsync(id, password).join();
+        } catch (CompletionException e) {
+            Debug.trace("DataHandler::changePassword DBerror::" + e.getCause());
+        }
         return false;
     }
     
-    /** Saves the updated balance to the database
+    /** Hashes a password at the current cost on the crypto executor, then queues it<br>
+     *  for the group commit writer
+     * 
+     * @param id       The account id
+     * @param password The new password
+     * @return         Completes with {@code false} if there is no such account
+     */
+    CompletableFuture<Boolean> setPasswordAsync(int id, int password) {
+        byte[] salt = crypto.newSalt();
+        int cost = crypto.getCost();
+        
+        return crypto.hashAsync(password, salt, cost).thenCompose(hashPass ->
+            storePassword(id, hashPass, salt, cost));
+    }
+    
+    /** Queues an already hashed password for the group commit writer
+     * 
+     * @return Completes with {@code false} if there is no such account
+     */
+    private CompletableFuture<Boolean> storePassword(int id, byte[] hashPass, byte[] salt,
+                                                     int cost) {
+        return submit(id, pc -> {
+            PreparedStatement update = pc.prepare(SQL_SET_PASSWORD);
+            setCredentials(update, 1, hashPass, salt);
+            update.setInt(3, cost);
+            update.setInt(4, id);
+            return update.executeUpdate() == 1;
+        }).whenComplete((changed, e) -> invalidate(id));
+    }
+    
+    /** Replaces an account's password hash without waiting, used to upgrade an MD5 hash<br>
+     *  If it fails the account keeps its MD5 hash and is tried again at its next login
      * 
-     * @param account The account with unsaved data
      */
-    public void saveAccount(LocalBankAccount account) {
-        Debug.trace("DataHandler::saveAccount");
+    void setPassword(int id, byte[] hashPass, byte[] salt, int cost) {
+        Debug.trace("DataHandler::rehash::Upgrading account %d", id);
         
-        if (account == null) {
-            Debug.trace("DataHandler::saveAccount::No account to save");
-            return;
+        storePassword(id, hashPass, salt, cost).whenComplete((changed, e) -> {
+            if (e != null) {
+                Debug.trace("DataHandler::rehash DBerror::" + e);
+            }
+        });
+    }
+    
+    /** Sets a password hash and its salt on a statement, as BLOBs or hex strings<br>
+     *  depending on {@link #setBinaryCredentials}
+     * 
+     * @param stmt  The statement
+     * @param index Parameter index of the hash, the salt follows it
+     */
+    static void setCredentials(PreparedStatement stmt, int index, byte[] hashPass,
+                               byte[] salt) throws SQLException {
+        if (binaryCredentials) {
+            stmt.setBytes(index, hashPass);
+            stmt.setBytes(index + 1, salt);
+        } else {
+            stmt.setString(index, HexCodec.encode(hashPass));
+            stmt.setString(index + 1, HexCodec.encode(salt));
         }
+    }
+    
+    /** Returns the ledger open for this database, if any
+     * 
+     * @return The ledger, or {@code null} if transactions go straight to the database,<br>
+     *         as they always do when the accounts are sharded
+     */
+    public Ledger getLedger() {
+        return pool != null ? Ledger.forDatabase(pool.url) : null;
+    }
+    
+    /** Adds an amount to an account's balance in the database<br>
+     *  The change is applied relative to the stored balance, so changes made elsewhere are<br>
+     *  never overwritten. A withdrawal is refused if it would take the stored balance<br>
+     *  past the overdraft limit. On success the account object gets the new stored balance
+     * 
+     * @param account The account to change
+     * @param delta   The amount to add, negative to withdraw
+     * @return        {@code true} if applied, {@code false} if refused or on error
+     */
+    public boolean applyDelta(LocalBankAccount account, int delta) {
+        Debug.trace("DataHandler::applyDelta:: id = %d delta = %d", account.id, delta);
         
         try {
-            //Connect to database
-            Class.forName("org.sqlite.JDBC");
-            conn = DriverManager.getConnection("jdbc:sqlite:atm.db");
-            stmt = conn.createStatement();
-           
-            //Update values in database under account id
-            int id = account.id;
-            int balance = account.balance;
-            
-            sql = "UPDATE bank SET balance = " + balance +
-                " WHERE id = " + id;
-            stmt.executeUpdate(sql);
-            
-            //Unlock the account data
-            sql = "UPDATE bank SET datalocked = false WHERE id = " + id;
-            stmt.executeUpdate(sql);
-            
-            //Close connection to database
-            stmt.close();
-            conn.close();
-        } catch (Exception e) {
-            String error = e.toString();
-            Debug.trace("DataHandler::saveAccount DBerror::" + error);
+            Integer balance = applyDeltaAsync(account.id, delta).join();
+            if (balance == null) {
+                Debug.trace("DataHandler::applyDelta::Refused for %d", account.id);
+                return false;
+            }
+            account.balance = balance;
+            return true;
+        } catch (CompletionException e) {
+            String error = e.getCause().toString();
+            Debug.trace("DataHandler::applyDelta DBerror::" + error);
+        }
+        return false;
+    }
+    
+    /** Queues a change to an account's balance for the group commit writer, see {@link #applyDelta}
+     * 
+     * @param id    The account to change
+     * @param delta The amount to add, negative to withdraw
+     * @return      Completes with the new stored balance once committed, or with<br>
+     *              {@code null} if there is no such account or the overdraft guard refused it
+     */
+    public CompletableFuture<Integer> applyDeltaAsync(int id, int delta) {
+        return submit(id, pc -> applyDelta(pc, id, delta));
+    }
+    
+    /** Adds an amount to an account's balance on the writer's connection
+     * 
+     * @return The new balance, or {@code null} if there is no such account or the overdraft<br>
+     *         guard refused it
+     */
+    private static Integer applyDelta(PooledConnection pc, int id, int delta) throws SQLException {
+        PreparedStatement update = pc.prepare(SQL_APPLY_DELTA);
+        update.setInt(1, delta);
+        update.setInt(2, id);
+        update.setInt(3, delta);
+        update.setInt(4, delta);
+        
+        //No row changed means no such account or the overdraft guard failed
+        if (update.executeUpdate() != 1) {
+            return null;
+        }
+        
+        PreparedStatement select = pc.prepare(SQL_SELECT_BALANCE);
+        select.setInt(1, id);
+        try (ResultSet rs = select.executeQuery()) {
+            rs.next();
+            return rs.getInt("balance");
+        }
+    }
+    
+    /** Moves money from the session's account to another<br>
+     *  In one database the debit and credit are a single change for the group commit writer,<br>
+     *  so they commit together, and the one writer thread puts every transfer in order.<br>
+     *  Across shards both accounts are held with the map's {@link TransferLocks}, the debit<br>
+     *  is committed on one shard and then the credit on the other, and a credit that fails<br>
+     *  is paid back to the first account
+     * 
+     * @param from   The session's account, gets its new stored balance on success
+     * @param toId   The account the money goes into
+     * @param amount The amount to move, more than 0
+     * @return       {@code true} if moved, {@code false} if refused or on error
+     */
+    public boolean transfer(LocalBankAccount from, int toId, int amount) {
+        Debug.trace("DataHandler::transfer:: %d to %d amount = %d", from.id, toId, amount);
+        
+        try {
+            Integer balance = shards == null
+                    ? writer.submit(pc -> transfer(pc, from.id, toId, amount)).join()
+                    : transferAcrossShards(from.id, toId, amount);
+            if (balance == null) {
+                Debug.trace("DataHandler::transfer::Refused for %d", from.id);
+                return false;
+            }
+            from.balance = balance;
+            return true;
+        } catch (CompletionException e) {
+            Debug.trace("DataHandler::transfer DBerror::" + e.getCause());
+        } catch (SQLException e) {
+            Debug.trace("DataHandler::transfer DBerror::" + e);
+        }
+        return false;
+    }
+    
+    /** Debits one account and credits another on the writer's connection, in its transaction
+     * 
+     * @return The new balance of {@code fromId}, or {@code null} if refused, in which case<br>
+     *         neither balance has changed
+     */
+    private static Integer transfer(PooledConnection pc, int fromId, int toId, int amount)
+            throws SQLException {
+        Integer balance = applyDelta(pc, fromId, -amount);
+        if (balance == null) {
+            return null;
+        }
+        if (applyDelta(pc, toId, amount) == null) {
+            //No such account, put the money back
+            applyDelta(pc, fromId, amount);
+            return null;
         }
+        return balance;
+    }
+    
+    /** Does the work of {@link #transfer} when the accounts are sharded
+     * 
+     */
+    private Integer transferAcrossShards(int fromId, int toId, int amount) throws SQLException {
+        shards.transfers.lock(fromId, toId);
+        try {
+            return shards.onShards(fromId, toId, (source, target) -> {
+                if (source == target) {
+                    return source.writer.submit(pc -> transfer(pc, fromId, toId, amount)).join();
+                }
+                
+                Integer balance = source.writer.submit(pc -> applyDelta(pc, fromId, -amount)).join();
+                if (balance == null) {
+                    return null;
+                }
+                Integer credited = null;
+                try {
+                    credited = target.writer.submit(pc -> applyDelta(pc, toId, amount)).join();
+                } finally {
+                    if (credited == null) {
+                        source.writer.submit(pc -> applyDelta(pc, fromId, amount)).join();
+                    }
+                }
+                return credited != null ? balance : null;
+            });
+        } finally {
+            shards.transfers.unlock(fromId, toId);
+        }
+    }
+    
+    /** Renews the lease on an account that is still in use
+     * 
+     * @param account The account in use
+     * @return        {@code false} if the lease has been lost
+     */
+    public boolean heartbeat(LocalBankAccount account) {
+        return account != null && locks.heartbeat(account.id, localBank);
     }
     
     /** Hashes and salts passwords using MD5
@@ -192,102 +535,54 @@ public class DataHandler
      * @param password  Password that is being hashed
      * @param salt      Salt to be used in hash
      * @return          A hexadecimal string, the hashed password
-     * @throws          NoSuchAlgorithmException
      */
     public String hashPassword(int pass, byte[] salt) {
+        return byteToHex(hashPasswordBytes(pass, salt));
+    }
+    
+    /** Hashes and salts passwords using MD5, the hash of accounts with no cost<br>
+     *  The digest is reused by each thread, see {@link CryptoService}
+     * 
+     * @param password  Password that is being hashed
+     * @param salt      Salt to be used in hash
+     * @return          The raw 16 byte hash
+     */
+    public byte[] hashPasswordBytes(int pass, byte[] salt) {
         Debug.trace("DataHandler::hashPassword");
         
-        try {
-            String password = Integer.toString(pass);
-            String generatedPassword = null;
-            
-            //Chosen hash algorithm, should swap for more secure one
-            MessageDigest md = MessageDigest.getInstance("md5");
-            //Update the digest algorithm with the salt 
-            md.update(salt);
-            //Hash the password using the digest algorithm
-            byte[] bytes = md.digest(password.getBytes());
-            
-            //Convert the hash to hexadecimal
-            generatedPassword = byteToHex(bytes);
-            
-            return generatedPassword;
-        } catch (NoSuchAlgorithmException e) {
-            Debug.trace(e.toString());
-            System.exit(0);
-        }
-        return null;
+        return crypto.md5(pass, salt);
     }
     
-    /** Creates a random 16 byte salt to be used in hashing
+    /** Creates a random 16 byte salt to be used in hashing<br>
+     *  The random number generator is reused by each thread, see {@link CryptoService}
      * 
      * @return A 16 byte salt
      */
     public byte[] getSalt() {
         Debug.trace("DataHandler::getSalt");
         
-        try {
-        //Secure random number generator
-        SecureRandom sr = SecureRandom.getInstance("SHA1PRNG", "SUN");
-        //Create a random salt
-        byte[] salt = new byte[16];
-        sr.nextBytes(salt);
-        
-        return salt;
-        } catch (NoSuchAlgorithmException e) {
-            Debug.trace(e.toString());
-            System.exit(0);
-        } catch (NoSuchProviderException e) {
-            Debug.trace(e.toString());
-            System.exit(0);
-        }
-        return null;
+        return crypto.newSalt();
     }
     
     /** Converts decimal bytes into hexadecimal string
      * 
      * @param bytes The bytes to be converted
-     * @return      The bytes converted into a hexadecimal string;
-     * 
-     * @author Lokesh Gupta
-     * @see <a href = https://howtodoinjava.com/security/how-to-generate-secure-password-hash-md5-sha-pbkdf2-bcrypt-examples/> Source
+     * @return      The bytes converted into a hexadecimal string
      */
     public String byteToHex(byte[] bytes) {
         Debug.trace("DataHandler::byteToHex");
         
-        String hex = null;
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-        }
-        hex = sb.toString();
-        
-        return hex;
+        return HexCodec.encode(bytes);
     }
     
     /**Converts hexadecimal string into decimal bytes
      * 
      * @param hex The string to be converted
      * @return    The string converted into decimal bytes
-     * 
-     * @author Samual Sam
-     * @see <a href = https://www.tutorialspoint.com/convert-hex-string-to-byte-array-in-java> Source
      */
     public byte[] hexToByte(String hex) {
         Debug.trace("DataHandler::hexToByte");
         
-        byte[] bytes = new byte[hex.length() / 2];
-        for (int i = 0; i < hex.length(); i++) {
-            int index = i * 2;
-            try {
-                int j = Integer.parseInt(hex.substring(index, index + 2), 16);
-                bytes[i] = (byte) j;
-            } catch (Exception e){
-                Debug.trace(e.toString());
-                break;
-            }
-        }
-        
-        return bytes;
+        return HexCodec.decode(hex);
     }
 }
\ No newline at end of file
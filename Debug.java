@@ -6,7 +6,7 @@
 
 public class Debug
 {
-  private static boolean debug = true;
+  private static volatile boolean debug = true;
 
   /**
    * Set true/false to print debugging information
@@ -22,6 +22,8 @@ public class Debug
 
   /**
    * Display text for debugging purposes
+   * Formatting and output happen later on the {@link Trace} writer thread,
+   * so pass values as params rather than concatenating them into fmt
    * @param fmt  The same as printf etc
    * @param params The parameters to fmt
    */
@@ -29,11 +31,7 @@ public class Debug
   {
     if ( debug )
     {
-      synchronized( Debug.class )
-      {
-          System.out.printf( fmt, params );
-          System.out.println();
-      }
+      Trace.log( Trace.categoryOf( fmt ), Trace.Level.DEBUG, fmt, params );
     }
   }
 
@@ -57,10 +55,9 @@ public class Debug
    * @param fmt The same as printf etc
    * @param params The parameters to fmt
    */
-  public static synchronized void error(String fmt, Object... params )
+  public static void error(String fmt, Object... params )
   {
-    System.out.printf( "ERROR: " + fmt, params );
-    System.out.println();
+    Trace.log( Trace.Category.OTHER, Trace.Level.ERROR, "ERROR: " + fmt, params );
   }
 
 }
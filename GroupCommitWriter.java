@@ -0,0 +1,292 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**Single writer thread that commits database changes from every session in batches<br>
+ * Changes are queued by any thread and run by the writer inside one transaction per batch,<br>
+ * so many changes share one commit. A batch is committed once it holds {@link #maxBatch}<br>
+ * changes or its oldest change has waited {@link #maxDelayNanos}, whichever comes first.<br>
+ * Each caller gets a {@code CompletableFuture} that completes once its change is committed
+ */
+public class GroupCommitWriter
+{
+    /**Most changes committed together*/
+    static final int DEFAULT_MAX_BATCH = 256;
+    /**Longest a change waits for its batch to fill up*/
+    static final long DEFAULT_MAX_DELAY_MS = 5;
+
+    /**One writer per database, keyed by JDBC url*/
+    private static final Map<String, GroupCommitWriter> writers =
+            new ConcurrentHashMap<String, GroupCommitWriter>();
+
+    /**A change to the database, run on the writer thread inside the batch's transaction*/
+    public interface Mutation<T> {
+        /** Makes the change
+         *
+         * @param pc The writer's connection, with auto-commit off
+         * @return   The result passed to the caller's future
+         */
+        T apply(PooledConnection pc) throws SQLException;
+    }
+
+    /**A queued change and the future waiting for it*/
+    private static final class Pending<T> {
+        final Mutation<T> mutation;
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        final long queuedAt = System.nanoTime();
+        T result;
+
+        Pending(Mutation<T> mutation) {
+            this.mutation = mutation;
+        }
+
+        void apply(PooledConnection pc) throws SQLException {
+            result = mutation.apply(pc);
+        }
+
+        void complete() {
+            future.complete(result);
+        }
+    }
+
+    /**Connections to the database*/
+    final ConnectionPool pool;
+    /**Most changes in one batch*/
+    final int maxBatch;
+    /**Longest the first change in a batch waits, in nanoseconds*/
+    final long maxDelayNanos;
+    /**Changes waiting for the writer*/
+    final BlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<Pending<?>>();
+    /**The writer thread*/
+    final Thread thread;
+    /**Set to stop the writer once the queue is empty*/
+    volatile boolean closed = false;
+
+    //Statistics
+    final LongAdder batches = new LongAdder();
+    final LongAdder mutations = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final AtomicLong largestBatch = new AtomicLong();
+    final LongAdder commitNanos = new LongAdder();
+    final AtomicLong maxCommitNanos = new AtomicLong();
+    final LongAdder latencyNanos = new LongAdder();
+
+    /** {@code GroupCommitWriter} constructor, starts the writer thread
+     *
+     * @param pool        Connection pool for the database
+     * @param maxBatch    Most changes committed together
+     * @param maxDelayMs  Longest a change waits for its batch to fill up
+     */
+    public GroupCommitWriter(ConnectionPool pool, int maxBatch, long maxDelayMs) {
+        Debug.trace("GroupCommitWriter::<constructor> " + pool.url);
+
+        this.pool = pool;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+
+        thread = new Thread(this::run, "Group commit writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Returns the writer shared by everything using a database
+     *
+     * @param pool Connection pool for the database
+     */
+    static GroupCommitWriter forDatabase(ConnectionPool pool) {
+        return writers.computeIfAbsent(pool.url, url ->
+                new GroupCommitWriter(pool, DEFAULT_MAX_BATCH, DEFAULT_MAX_DELAY_MS));
+    }
+
+    /** Queues a change for the next batch
+     *
+     * @param mutation The change to make
+     * @return         Completes with the change's result once committed, or exceptionally<br>
+     *                 if the change failed
+     */
+    public <T> CompletableFuture<T> submit(Mutation<T> mutation) {
+        Pending<T> pending = new Pending<T>(mutation);
+        if (closed) {
+            pending.future.completeExceptionally(new SQLException("Writer is closed"));
+        } else {
+            queue.add(pending);
+        }
+        return pending.future;
+    }
+
+    /** Stops the writer once everything already queued is committed
+     *
+     */
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.NANOSECONDS.toMillis(maxDelayNanos) + 5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The writer thread, gathers changes into batches and commits them
+     *
+     */
+    private void run() {
+        List<Pending<?>> batch = new ArrayList<Pending<?>>(maxBatch);
+
+        while (!(closed && queue.isEmpty())) {
+            try {
+                Pending<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                //Fill the batch until it is full or the first change has waited long enough
+                long deadline = first.queuedAt + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    long wait = deadline - System.nanoTime();
+                    Pending<?> next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS)
+                                               : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                //Closing, drain whatever is left
+                queue.drainTo(batch, maxBatch - batch.size());
+            }
+
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /** Runs a batch of changes in one transaction and completes their futures<br>
+     *  If the batch fails it is rolled back and each change retried on its own,<br>
+     *  so one bad change doesn't fail the others
+     *
+     */
+    private void commit(List<Pending<?>> batch) {
+        long start = System.nanoTime();
+        PooledConnection pc = null;
+
+        try {
+            pc = pool.borrow();
+            pc.conn.setAutoCommit(false);
+            try {
+                for (Pending<?> pending : batch) {
+                    pending.apply(pc);
+                }
+                pc.conn.commit();
+                for (Pending<?> pending : batch) {
+                    pending.complete();
+                }
+            } catch (SQLException | RuntimeException e) {
+                pc.conn.rollback();
+                Debug.trace("GroupCommitWriter::commit::Batch failed, retrying singly::" + e);
+                for (Pending<?> pending : batch) {
+                    commitSingle(pc, pending);
+                }
+            } finally {
+                pc.conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            //Couldn't get or reset a connection, fail everything not already done
+            for (Pending<?> pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+        } finally {
+            pool.release(pc);
+        }
+
+        long now = System.nanoTime();
+        long took = now - start;
+        batches.increment();
+        mutations.add(batch.size());
+        largestBatch.accumulateAndGet(batch.size(), Math::max);
+        commitNanos.add(took);
+        maxCommitNanos.accumulateAndGet(took, Math::max);
+        for (Pending<?> pending : batch) {
+            latencyNanos.add(now - pending.queuedAt);
+        }
+    }
+
+    /** Runs one change in its own transaction
+     *
+     */
+    private void commitSingle(PooledConnection pc, Pending<?> pending) throws SQLException {
+        try {
+            pending.apply(pc);
+            pc.conn.commit();
+            pending.complete();
+        } catch (SQLException | RuntimeException e) {
+            pc.conn.rollback();
+            failures.increment();
+            pending.future.completeExceptionally(e);
+        }
+    }
+
+    /** Returns the number of batches committed
+     *
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /** Returns the average number of changes per batch
+     *
+     */
+    public double getAverageBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) mutations.sum() / count;
+    }
+
+    /** Returns the average time to run and commit a batch, in microseconds
+     *
+     */
+    public double getAverageCommitMicros() {
+        long count = batches.sum();
+        return count == 0 ? 0 : commitNanos.sum() / 1000.0 / count;
+    }
+
+    /** Returns the average time from queueing a change to its commit, in microseconds
+     *
+     */
+    public double getAverageLatencyMicros() {
+        long count = mutations.sum();
+        return count == 0 ? 0 : latencyNanos.sum() / 1000.0 / count;
+    }
+
+    /** Returns the number of changes that failed
+     *
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /** Returns the number of changes waiting for the writer
+     *
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public String toString() {
+        return String.format("batches=%d avgBatch=%.1f largestBatch=%d avgCommit=%.1fus " +
+                             "maxCommit=%.1fus avgLatency=%.1fus failures=%d queued=%d",
+                             getBatches(), getAverageBatchSize(), largestBatch.get(),
+                             getAverageCommitMicros(), maxCommitNanos.get() / 1000.0,
+                             getAverageLatencyMicros(), getFailures(), getQueued());
+    }
+}
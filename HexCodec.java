@@ -0,0 +1,114 @@
+/**Table-driven conversion between bytes and lowercase hexadecimal<br>
+ * The buffer methods write into arrays supplied by the caller, so converting<br>
+ * in a loop allocates nothing
+ */
+public class HexCodec
+{
+    /**Hex digit for each value 0-15*/
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    /**Value of each ASCII character as a hex digit, -1 if it isn't one*/
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        java.util.Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            VALUES['a' + i] = (byte) (10 + i);
+            VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    /** Writes the hex form of some bytes into a buffer
+     *
+     * @param src    The bytes to convert
+     * @param off    Index of the first byte
+     * @param len    Number of bytes
+     * @param dst    Buffer to write into, needs room for {@code len * 2} chars
+     * @param dstOff Index to start writing at
+     */
+    public static void encode(byte[] src, int off, int len, char[] dst, int dstOff) {
+        for (int i = 0; i < len; i++) {
+            int b = src[off + i] & 0xff;
+            dst[dstOff++] = DIGITS[b >>> 4];
+            dst[dstOff++] = DIGITS[b & 0x0f];
+        }
+    }
+
+    /** Converts bytes into a hex string
+     *
+     * @param bytes The bytes to convert
+     * @return      The lowercase hex string, two chars per byte
+     */
+    public static String encode(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        encode(bytes, 0, bytes.length, chars, 0);
+        return new String(chars);
+    }
+
+    /** Reads a hex string into a buffer
+     *
+     * @param hex The hex to convert, upper or lower case
+     * @param dst Buffer to write into, needs room for {@code hex.length() / 2} bytes
+     * @return    The number of bytes written
+     * @throws IllegalArgumentException If the length is odd or there is a non-hex char
+     */
+    public static int decode(CharSequence hex, byte[] dst) {
+        int len = hex.length();
+        if ((len & 1) != 0) {
+            throw new IllegalArgumentException("Odd length hex string");
+        }
+
+        for (int i = 0, j = 0; i < len; i += 2, j++) {
+            int hi = value(hex.charAt(i));
+            int lo = value(hex.charAt(i + 1));
+            dst[j] = (byte) ((hi << 4) | lo);
+        }
+        return len / 2;
+    }
+
+    /** Converts a hex string into bytes
+     *
+     * @param hex The hex to convert, upper or lower case
+     * @return    The bytes, half the length of the string
+     */
+    public static byte[] decode(CharSequence hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        decode(hex, bytes);
+        return bytes;
+    }
+
+    /** Checks whether some bytes are equal to a hex string without converting either<br>
+     *  Always looks at every byte, so the time taken doesn't reveal where they differ
+     *
+     * @param bytes The bytes, e.g. a freshly computed hash
+     * @param hex   The hex string, e.g. a stored hash
+     * @return      {@code true} if the hex string represents exactly those bytes
+     */
+    public static boolean matches(byte[] bytes, CharSequence hex) {
+        if (hex == null || hex.length() != bytes.length * 2) {
+            return false;
+        }
+
+        int diff = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xff;
+            diff |= Character.toLowerCase(hex.charAt(i * 2)) ^ DIGITS[b >>> 4];
+            diff |= Character.toLowerCase(hex.charAt(i * 2 + 1)) ^ DIGITS[b & 0x0f];
+        }
+        return diff == 0;
+    }
+
+    /** Returns the value of a single hex digit
+     *
+     * @throws IllegalArgumentException If the char isn't a hex digit
+     */
+    private static int value(char c) {
+        int v = c < 128 ? VALUES[c] : -1;
+        if (v < 0) {
+            throw new IllegalArgumentException("Invalid hex digit '" + c + "'");
+        }
+        return v;
+    }
+}
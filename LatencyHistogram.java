@@ -0,0 +1,117 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**Histogram of latencies in nanoseconds with fixed memory and about 1.6% precision<br>
+ * Buckets are log-linear like HdrHistogram's: each power of two is split into 64 equal<br>
+ * buckets, so any value from 1ns to hours is counted with the same relative error, at<br>
+ * most 1/64 of the value. Values below {@link #SUB_BUCKETS} are counted exactly.<br>
+ * Recording is lock-free and can be done by many threads at once. The bucket counts are<br>
+ * striped by thread, so threads recording similar latencies don't fight over one counter
+ */
+public class LatencyHistogram
+{
+    /**Bits of each value kept exactly, the rest are rounded away*/
+    static final int SUB_BUCKET_BITS = 7;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    /**Enough buckets for any positive {@code long}*/
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKETS;
+    /**Number of copies of the counts, a power of two at most the number of cores*/
+    static final int STRIPES = Math.min(8,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+
+    /**Bucket counts, one copy per stripe, summed when read*/
+    final AtomicLongArray[] counts = new AtomicLongArray[STRIPES];
+    final LongAdder count = new LongAdder();
+    final LongAdder sum = new LongAdder();
+    final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            counts[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /** Returns the bucket a value is counted in
+     *
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /** Returns the largest value counted in a bucket
+     *
+     */
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / HALF_SUB_BUCKETS - 1;
+        long subBucket = bucket % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /** Counts one latency
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(long nanos) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts[stripe].incrementAndGet(bucketOf(nanos));
+        count.increment();
+        sum.add(nanos);
+        if (nanos > max.get()) {
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    /** Returns the number of latencies counted
+     *
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** Returns the mean latency in nanoseconds
+     *
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /** Returns the largest latency in nanoseconds
+     *
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /** Returns the latency that a percentage of latencies are at or below
+     *
+     * @param percentile From 0 to 100
+     * @return           The latency in nanoseconds, rounded up to its bucket, never above the max
+     */
+    public long getPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            for (AtomicLongArray stripe : counts) {
+                seen += stripe.get(i);
+            }
+            if (seen >= target) {
+                return Math.min(highestValueIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
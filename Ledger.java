@@ -0,0 +1,510 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**Append-only, memory-mapped record of every withdrawal and deposit<br>
+ * While a ledger is open, {@code LocalBank} writes a fixed-width record here for each<br>
+ * successful transaction instead of updating the database. The balances in the {@code bank}<br>
+ * table are brought up to date by periodic snapshots, which apply each account's total change<br>
+ * in one batch and then move the ledger's checkpoint forward. A single account is also brought<br>
+ * up to date when a session logs in to it or out of it. Every row remembers the last ledger<br>
+ * sequence number applied to it, so at startup {@link #recover} only has to replay the<br>
+ * records after the checkpoint, at most one snapshot interval's worth.<br>
+ * After a snapshot the records before the checkpoint are no longer needed, so the ones after<br>
+ * it are moved to the front of the file and the rest cut off. Only a window of records is<br>
+ * mapped at a time, so the file isn't bounded by the size of one mapping.
+ * <p>
+ * File layout: a {@link #HEADER_SIZE} byte header<br>
+ * {@code magic int, version int, nextSeq long, records long, checkpointSeq long, checkpointRecords long}<br>
+ * followed by {@link #RECORD_SIZE} byte records<br>
+ * {@code seq long, timestamp long, accountId int, type int, amount int, terminal int, balance int, unused int}
+ */
+public class Ledger
+{
+    /**Record types*/
+    static final int WITHDRAW = 1;
+    static final int DEPOSIT = 2;
+
+    static final int MAGIC = 0x41544d4c; //"ATML"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 40;
+    /**Records in each mapped window, the file grows by this much when the window fills up*/
+    static final int GROW_RECORDS = 1 << 16;
+    /**Bytes copied at a time when compacting*/
+    static final int COPY_CHUNK = 1 << 20;
+
+    /**Seconds between snapshots*/
+    static final long SNAPSHOT_INTERVAL_S = 30;
+    /**Records after which a snapshot is taken early*/
+    static final long SNAPSHOT_RECORDS = 50000;
+
+    //Header offsets
+    private static final int H_MAGIC = 0, H_VERSION = 4, H_NEXT_SEQ = 8, H_RECORDS = 16,
+                             H_CHECKPOINT_SEQ = 24, H_CHECKPOINT_RECORDS = 32;
+
+    static final String SQL_SELECT_LEDGER_SEQ = "SELECT ledgerSeq FROM bank WHERE id = ?";
+    static final String SQL_APPLY_SNAPSHOT = "UPDATE bank SET balance = balance + ?, " +
+            "ledgerSeq = ? WHERE id = ? AND ledgerSeq < ?";
+
+    /**Open ledgers, keyed by JDBC url of their database*/
+    private static final Map<String, Ledger> ledgers = new ConcurrentHashMap<String, Ledger>();
+
+    /**The ledger file*/
+    final RandomAccessFile file;
+    final FileChannel channel;
+    /**Connections to the database the ledger is a log for*/
+    final ConnectionPool pool;
+    /**Writer used to apply snapshots*/
+    final GroupCommitWriter writer;
+    /**The mapped header*/
+    private final MappedByteBuffer header;
+    /**The mapped window records are appended to, replaced when it fills up*/
+    private volatile MappedByteBuffer map;
+    /**Number of the first record in the window*/
+    private long windowStart;
+
+    //State, guarded by this
+    private long nextSeq;
+    private long records;
+    /**Each account's change since the last snapshot: {total, last seq}*/
+    private Map<Integer, long[]> pending = new HashMap<Integer, long[]>();
+
+    /**Takes snapshots in the background*/
+    private final ScheduledExecutorService snapshotter;
+    /**Held while changes are being applied to the database, so only one snapshot runs*/
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    /**Set when an early snapshot has been asked for but not started*/
+    private volatile boolean snapshotQueued = false;
+
+    /** Opens a ledger file, creating it if necessary, and maps it into memory
+     *
+     * @param path Path to the ledger file
+     * @param pool Connection pool for the database it logs
+     */
+    private Ledger(String path, ConnectionPool pool) throws IOException {
+        this.pool = pool;
+        this.writer = GroupCommitWriter.forDatabase(pool);
+
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        boolean fresh = channel.size() < HEADER_SIZE;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+        if (fresh) {
+            header.putInt(H_MAGIC, MAGIC);
+            header.putInt(H_VERSION, VERSION);
+            header.putLong(H_NEXT_SEQ, 1);
+            header.putLong(H_RECORDS, 0);
+            header.putLong(H_CHECKPOINT_SEQ, 0);
+            header.putLong(H_CHECKPOINT_RECORDS, 0);
+            header.force();
+        } else if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION) {
+            throw new IOException("Not a ledger file: " + path);
+        }
+        nextSeq = header.getLong(H_NEXT_SEQ);
+        records = header.getLong(H_RECORDS);
+        mapWindow(records);
+
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Ledger snapshotter");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Opens the ledger for a database, replays anything not yet in the database, and starts<br>
+     *  taking periodic snapshots. Sessions on that database then record transactions here
+     *
+     * @param path          Path to the ledger file
+     * @param pool          Connection pool for the database
+     * @return              The open ledger
+     * @throws IOException  If the file couldn't be opened or isn't a ledger
+     * @throws SQLException If recovery failed
+     */
+    public static Ledger open(String path, ConnectionPool pool) throws IOException, SQLException {
+        Debug.trace("Ledger::open " + path);
+
+        Ledger ledger = new Ledger(path, pool);
+        ledger.recover();
+        ledger.snapshotter.scheduleWithFixedDelay(ledger::snapshotQuietly, SNAPSHOT_INTERVAL_S,
+                                                  SNAPSHOT_INTERVAL_S, TimeUnit.SECONDS);
+        ledgers.put(pool.url, ledger);
+        return ledger;
+    }
+
+    /** Returns the open ledger for a database
+     *
+     * @param url JDBC url of the database
+     * @return    The ledger, or {@code null} if none is open
+     */
+    static Ledger forDatabase(String url) {
+        return ledgers.get(url);
+    }
+
+    /** Maps the window of {@link #GROW_RECORDS} records starting at a record, growing the<br>
+     *  file if it ends before the window does
+     *
+     */
+    private void mapWindow(long first) throws IOException {
+        windowStart = first;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, offset(first),
+                          (long) GROW_RECORDS * RECORD_SIZE);
+    }
+
+    /** Returns the position of a record in the file
+     *
+     */
+    private static long offset(long record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    /** Forces the header and the current window to disk. Earlier windows were forced when<br>
+     *  they filled up, and records moved by {@link #compact} when they were moved
+     *
+     */
+    private void force() {
+        map.force();
+        header.force();
+    }
+
+    /** Appends a transaction record
+     *
+     * @param accountId The account changed
+     * @param type      {@link #WITHDRAW} or {@link #DEPOSIT}
+     * @param amount    The change to the balance, negative for withdrawals
+     * @param terminal  The terminal it happened on
+     * @param balance   The account's balance afterwards
+     * @return          The record's sequence number
+     */
+    public long append(int accountId, int type, int amount, int terminal, int balance) {
+        long seq;
+        boolean snapshotDue;
+
+        synchronized (this) {
+            if (records == windowStart + GROW_RECORDS) {
+                try {
+                    map.force();
+                    mapWindow(records);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Ledger full", e);
+                }
+            }
+
+            seq = nextSeq++;
+            int pos = (int) (records - windowStart) * RECORD_SIZE;
+            map.putLong(pos, seq);
+            map.putLong(pos + 8, System.currentTimeMillis());
+            map.putInt(pos + 16, accountId);
+            map.putInt(pos + 20, type);
+            map.putInt(pos + 24, amount);
+            map.putInt(pos + 28, terminal);
+            map.putInt(pos + 32, balance);
+            records++;
+
+            //Header last, so a torn record is never counted
+            header.putLong(H_NEXT_SEQ, nextSeq);
+            header.putLong(H_RECORDS, records);
+
+            long[] change = pending.computeIfAbsent(accountId, k -> new long[2]);
+            change[0] += amount;
+            change[1] = seq;
+
+            snapshotDue = !snapshotQueued &&
+                          records - header.getLong(H_CHECKPOINT_RECORDS) >= SNAPSHOT_RECORDS;
+            if (snapshotDue) {
+                snapshotQueued = true;
+            }
+        }
+
+        if (snapshotDue) {
+            snapshotter.execute(this::snapshotQuietly);
+        }
+        return seq;
+    }
+
+    /** Applies one account's change since the last snapshot to the database<br>
+     *  Called when a session logs in or out, so the balance in the database is up to date
+     *
+     * @param accountId     The account
+     * @throws SQLException If the change couldn't be applied, it is kept for the next snapshot
+     */
+    public void flushAccount(int accountId) throws SQLException {
+        snapshotLock.lock();
+        try {
+            Map<Integer, long[]> taken = new HashMap<Integer, long[]>();
+            synchronized (this) {
+                long[] change = pending.remove(accountId);
+                if (change == null) {
+                    return;
+                }
+                taken.put(accountId, change);
+            }
+            apply(taken);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /** Applies every account's change since the last snapshot to the database, then moves<br>
+     *  the checkpoint past those records, drops the records before it and forces the file<br>
+     *  to disk
+     *
+     * @throws SQLException If the changes couldn't be applied, they are kept for next time
+     */
+    public void snapshot() throws SQLException {
+        snapshotLock.lock();
+        try {
+            snapshotQueued = false;
+            
+            Map<Integer, long[]> taken;
+            long upToSeq, upToRecords;
+            synchronized (this) {
+                taken = pending;
+                pending = new HashMap<Integer, long[]>();
+                upToSeq = nextSeq - 1;
+                upToRecords = records;
+            }
+
+            apply(taken);
+
+            synchronized (this) {
+                header.putLong(H_CHECKPOINT_SEQ, upToSeq);
+                header.putLong(H_CHECKPOINT_RECORDS, upToRecords);
+                compactQuietly();
+            }
+            force();
+            Debug.trace("Ledger::snapshot::%d accounts up to seq %d", taken.size(), upToSeq);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /** Applies accounts' changes to the database as one batch of the group commit writer
+     *
+     * @param taken         Each account's {total, last seq}, removed from {@link #pending}
+     * @throws SQLException If some couldn't be applied, those are put back in {@link #pending}
+     */
+    private void apply(Map<Integer, long[]> taken) throws SQLException {
+        Map<Integer, CompletableFuture<Integer>> applied =
+                new HashMap<Integer, CompletableFuture<Integer>>();
+        try {
+            //Record contents must be on disk before the database says they are applied
+            force();
+
+            for (Map.Entry<Integer, long[]> entry : taken.entrySet()) {
+                int id = entry.getKey();
+                long[] change = entry.getValue();
+                applied.put(id, writer.submit(pc -> {
+                    PreparedStatement update = pc.prepare(SQL_APPLY_SNAPSHOT);
+                    update.setLong(1, change[0]);
+                    update.setLong(2, change[1]);
+                    update.setInt(3, id);
+                    update.setLong(4, change[1]);
+                    return update.executeUpdate();
+                }));
+            }
+            CompletableFuture.allOf(applied.values().toArray(new CompletableFuture<?>[0])).join();
+        } catch (RuntimeException e) {
+            //Put back only the changes that weren't committed, so the next snapshot applies
+            //them. One that was committed mustn't be merged with newer records, its row's
+            //ledgerSeq would then be below the merged seq and let it through a second time
+            List<Integer> failed = new ArrayList<Integer>();
+            for (Integer id : taken.keySet()) {
+                CompletableFuture<Integer> future = applied.get(id);
+                if (future == null || !future.handle((rows, x) -> x == null).join()) {
+                    failed.add(id);
+                }
+            }
+            synchronized (this) {
+                for (Integer id : failed) {
+                    long[] old = taken.get(id);
+                    long[] change = pending.computeIfAbsent(id, k -> new long[2]);
+                    change[0] += old[0];
+                    change[1] = Math.max(change[1], old[1]);
+                }
+            }
+            throw new SQLException("Snapshot failed for " + failed.size() + " accounts", e);
+        }
+    }
+
+    /** Moves the records after the checkpoint to the front of the file and cuts off the rest.<br>
+     *  Left for a later snapshot while there are more of them than before the checkpoint,<br>
+     *  so they are never copied over themselves and a crash part way leaves them intact.<br>
+     *  The checkpoint is cleared before the record count, a crash between the two leaves<br>
+     *  records {@link #recover} skips by sequence number. Called holding this
+     *
+     * @throws IOException If the file couldn't be written, it is still usable
+     */
+    private void compact() throws IOException {
+        long from = header.getLong(H_CHECKPOINT_RECORDS);
+        long kept = records - from;
+        if (from == 0 || kept > from) {
+            return;
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate(COPY_CHUNK);
+        for (long read = offset(from), written = offset(0); read < offset(records); ) {
+            chunk.clear().limit((int) Math.min(COPY_CHUNK, offset(records) - read));
+            read += channel.read(chunk, read);
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                written += channel.write(chunk, written);
+            }
+        }
+        channel.force(false);
+
+        header.putLong(H_CHECKPOINT_RECORDS, 0);
+        header.force();
+        header.putLong(H_RECORDS, kept);
+        header.force();
+        records = kept;
+
+        channel.truncate(offset(records));
+        mapWindow(records);
+        Debug.trace("Ledger::compact::Dropped %d records, kept %d", from, kept);
+    }
+
+    /** Compacts the file, tracing any failure
+     *
+     */
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            Debug.trace("Ledger::compact::" + e);
+        }
+    }
+
+    /** Takes a snapshot from the background thread, tracing any failure
+     *
+     */
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (SQLException e) {
+            Debug.trace("Ledger::snapshot::" + e.getCause());
+        }
+    }
+
+    /** Replays the records after the checkpoint into the database<br>
+     *  Records an account's row already includes, going by its {@code ledgerSeq}, are skipped,<br>
+     *  so this is safe after a crash part way through a snapshot. So are records whose<br>
+     *  sequence number isn't above every one before it, left by a crash part way through<br>
+     *  {@link #compact}
+     *
+     * @throws SQLException If the database couldn't be updated
+     */
+    void recover() throws SQLException {
+        long start = System.nanoTime();
+        long from = header.getLong(H_CHECKPOINT_RECORDS);
+
+        //Group the tail by account: {seq, amount} pairs, a window at a time
+        Map<Integer, List<long[]>> tail = new HashMap<Integer, List<long[]>>();
+        long replayed = records - from;
+        long lastSeq = header.getLong(H_CHECKPOINT_SEQ);
+        for (long first = from; first < records; first += GROW_RECORDS) {
+            int count = (int) Math.min(GROW_RECORDS, records - first);
+            ByteBuffer window;
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, offset(first),
+                                     (long) count * RECORD_SIZE);
+            } catch (IOException e) {
+                throw new SQLException("Couldn't read ledger", e);
+            }
+            for (int pos = 0; pos < count * RECORD_SIZE; pos += RECORD_SIZE) {
+                long seq = window.getLong(pos);
+                if (seq <= lastSeq) {
+                    continue;
+                }
+                lastSeq = seq;
+                tail.computeIfAbsent(window.getInt(pos + 16), k -> new ArrayList<long[]>())
+                    .add(new long[] {seq, window.getInt(pos + 24)});
+            }
+        }
+
+        PooledConnection pc = pool.borrow();
+        try {
+            pc.conn.setAutoCommit(false);
+            PreparedStatement select = pc.prepare(SQL_SELECT_LEDGER_SEQ);
+            PreparedStatement update = pc.prepare(SQL_APPLY_SNAPSHOT);
+            for (Map.Entry<Integer, List<long[]>> entry : tail.entrySet()) {
+                select.setInt(1, entry.getKey());
+                long applied;
+                try (ResultSet rs = select.executeQuery()) {
+                    if (!rs.next()) {
+                        continue;
+                    }
+                    applied = rs.getLong("ledgerSeq");
+                }
+
+                long total = 0, last = applied;
+                for (long[] record : entry.getValue()) {
+                    if (record[0] > applied) {
+                        total += record[1];
+                        last = Math.max(last, record[0]);
+                    }
+                }
+                if (last > applied) {
+                    update.setLong(1, total);
+                    update.setLong(2, last);
+                    update.setInt(3, entry.getKey());
+                    update.setLong(4, last);
+                    update.executeUpdate();
+                }
+            }
+            pc.conn.commit();
+        } catch (SQLException e) {
+            pc.conn.rollback();
+            throw e;
+        } finally {
+            pc.conn.setAutoCommit(true);
+            pool.release(pc);
+        }
+
+        synchronized (this) {
+            header.putLong(H_CHECKPOINT_SEQ, nextSeq - 1);
+            header.putLong(H_CHECKPOINT_RECORDS, records);
+            compactQuietly();
+        }
+        force();
+        Debug.trace("Ledger::recover::Replayed %d records for %d accounts in %d ms",
+                    replayed, tail.size(), (System.nanoTime() - start) / 1000000);
+    }
+
+    /** Takes a final snapshot and closes the file
+     *
+     */
+    public void close() throws IOException, SQLException {
+        Debug.trace("Ledger::close");
+        ledgers.remove(pool.url, this);
+        snapshotter.shutdown();
+        try {
+            snapshot();
+        } finally {
+            force();
+            channel.close();
+            file.close();
+        }
+    }
+
+    /** Returns the number of records in the ledger
+     *
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+}
@@ -0,0 +1,354 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**Simulates a fleet of ATM terminals to find how many one bank backend can carry<br>
+ * Each terminal is a headless {@code Model} pressing a scripted session: account number,<br>
+ * password, withdraw 20, deposit 20, exit. Sessions arrive at a fixed average rate (open<br>
+ * loop, Poisson arrivals) or back to back on every terminal (closed loop, rate 0).<br>
+ * Latency is measured from when an operation should have started, not when a busy terminal<br>
+ * got round to it, so queueing delay is counted rather than hidden (coordinated omission).<br>
+ * The results are printed as percentiles and written to a CSV file for comparing builds.
+ * <p>
+ * {@code java LoadGenerator [--terminals 50] [--rate 20] [--duration 60] [--warmup 10]}<br>
+ * {@code [--accounts 50] [--think 0] [--cost n] [--db atm-load.db] [--server host:port]}<br>
+ * {@code [--out load-report.csv]}
+ */
+public class LoadGenerator
+{
+    /**The operations timed*/
+    enum Operation { LOGIN, WITHDRAW, DEPOSIT, LOGOUT }
+
+    /**First account number created for the load*/
+    static final int FIRST_ACCOUNT = 500000;
+    static final int PASSWORD = 13579;
+    static final int STARTING_BALANCE = 1000000;
+    /**How long terminals keep working through queued sessions after the run ends*/
+    static final long DRAIN_MS = 5000;
+
+    /**One key press in a session, timed if it starts an operation*/
+    private static final class Step {
+        final int key;
+        final Operation op;
+
+        Step(String button, Operation op) {
+            this.key = Model.keyOf(button);
+            this.op = op;
+        }
+    }
+
+    //Configuration
+    final int terminals;
+    /**Sessions started per second across all terminals, 0 for back to back*/
+    final double rate;
+    final long durationMs;
+    final long warmupMs;
+    final int accounts;
+    final long thinkMs;
+
+    /**Latency of each operation, in nanoseconds*/
+    final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+    /**Operations that completed but didn't succeed*/
+    final LongAdder[] failures = new LongAdder[Operation.values().length];
+    final LongAdder sessions = new LongAdder();
+    /**Sessions still queued when the run was stopped*/
+    final LongAdder dropped = new LongAdder();
+
+    /** {@code LoadGenerator} constructor
+     *
+     * @param terminals  Number of simulated terminals
+     * @param rate       Sessions started per second, 0 to run them back to back
+     * @param durationMs How long to generate load, after the warmup
+     * @param warmupMs   How long to run before recording latencies
+     * @param accounts   Number of accounts the terminals share
+     * @param thinkMs    Pause before each operation after the first
+     */
+    public LoadGenerator(int terminals, double rate, long durationMs, long warmupMs,
+                         int accounts, long thinkMs) {
+        this.terminals = terminals;
+        this.rate = rate;
+        this.durationMs = durationMs;
+        this.warmupMs = warmupMs;
+        this.accounts = accounts;
+        this.thinkMs = thinkMs;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            failures[i] = new LongAdder();
+        }
+    }
+
+    /** Creates the accounts used by the load, leaving any that already exist
+     *
+     * @param pool Connection pool for the database
+     */
+    void createAccounts(ConnectionPool pool) {
+        Debug.trace("LoadGenerator::createAccounts:: %d accounts", accounts);
+
+        DataHandler data = new DataHandler(null, pool);
+        List<CompletableFuture<Boolean>> created = new ArrayList<CompletableFuture<Boolean>>();
+        for (int i = 0; i < accounts; i++) {
+            created.add(data.createAccountAsync(FIRST_ACCOUNT + i, PASSWORD, STARTING_BALANCE, 0,
+                                                "BasicAccount"));
+        }
+        CompletableFuture.allOf(created.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /** Builds the key presses for one session
+     *
+     * @param account The account to use
+     */
+    static Step[] script(int account) {
+        List<Step> steps = new ArrayList<Step>();
+        for (char c : Integer.toString(account).toCharArray()) {
+            steps.add(new Step(String.valueOf(c), null));
+        }
+        steps.add(new Step("ENT", null));
+        for (char c : Integer.toString(PASSWORD).toCharArray()) {
+            steps.add(new Step(String.valueOf(c), null));
+        }
+        steps.add(new Step("ENT", Operation.LOGIN));
+        steps.add(new Step("W/D", null));
+        steps.add(new Step("20", null));
+        steps.add(new Step("ENT", Operation.WITHDRAW));
+        steps.add(new Step("Dep", null));
+        steps.add(new Step("20", null));
+        steps.add(new Step("ENT", Operation.DEPOSIT));
+        steps.add(new Step("EXIT", Operation.LOGOUT));
+        return steps.toArray(new Step[0]);
+    }
+
+    /** Runs the load against banks made by a factory, one bank per terminal
+     *
+     * @param banks Creates each terminal's bank
+     */
+    public void run(BankFactory banks) throws Exception {
+        long start = System.nanoTime();
+        long recordFrom = start + TimeUnit.MILLISECONDS.toNanos(warmupMs);
+        long end = recordFrom + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        long drainUntil = end + TimeUnit.MILLISECONDS.toNanos(DRAIN_MS);
+        //Intended start times of sessions not yet picked up by a terminal
+        BlockingQueue<Long> arrivals = new LinkedBlockingQueue<Long>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < terminals; t++) {
+            Model model = new Model(banks.create(), t + 1);
+            Step[] steps = script(FIRST_ACCOUNT + t % accounts);
+            Thread thread = new Thread(() -> terminal(model, steps, arrivals, recordFrom, end,
+                                                      drainUntil), "Terminal " + (t + 1));
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        if (rate > 0) {
+            //Poisson arrivals: exponentially distributed gaps averaging 1/rate seconds
+            double elapsed = 0;
+            long next = start;
+            while (next - end < 0) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                arrivals.add(next);
+                elapsed += -Math.log(1 - ThreadLocalRandom.current().nextDouble()) / rate;
+                next = start + (long) (elapsed * 1e9);
+            }
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        dropped.add(arrivals.size());
+    }
+
+    /** One terminal, runs sessions until the run ends
+     *
+     */
+    private void terminal(Model model, Step[] steps, BlockingQueue<Long> arrivals,
+                          long recordFrom, long end, long drainUntil) {
+        try {
+            while (true) {
+                long intended;
+                if (rate > 0) {
+                    Long arrival = arrivals.poll(100, TimeUnit.MILLISECONDS);
+                    long now = System.nanoTime();
+                    if (arrival == null) {
+                        if (now >= end) {
+                            return;
+                        }
+                        continue;
+                    }
+                    if (now >= drainUntil) {
+                        arrivals.add(arrival); //Counted as dropped
+                        return;
+                    }
+                    intended = arrival;
+                } else {
+                    intended = System.nanoTime();
+                    if (intended >= end) {
+                        return;
+                    }
+                }
+                session(model, steps, intended, intended >= recordFrom);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Presses one session's keys, timing each operation from when it should have started
+     *
+     * @param intended When the session should have started
+     * @param record   Whether to record its latencies, {@code false} during warmup
+     */
+    private void session(Model model, Step[] steps, long intended, boolean record) {
+        boolean first = true;
+        for (Step step : steps) {
+            if (step.op == null) {
+                model.process(step.key);
+                continue;
+            }
+
+            if (!first) {
+                if (thinkMs > 0) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(thinkMs));
+                }
+                intended = System.nanoTime();
+            }
+            first = false;
+
+            model.process(step.key);
+            long latency = System.nanoTime() - intended;
+            boolean ok = succeeded(model, step.op);
+            if (record) {
+                histograms[step.op.ordinal()].record(latency);
+                if (!ok) {
+                    failures[step.op.ordinal()].increment();
+                }
+            }
+            if (!ok && step.op == Operation.LOGIN) {
+                break; //Back at the start, nothing else in the session would work
+            }
+        }
+        sessions.increment();
+
+        //Leave the terminal ready for the next session, EXIT backs out one level at a time
+        for (int i = 0; i < 3 && model.state != Model.State.ACCOUNT_NO; i++) {
+            model.process(Model.KEY_EXIT);
+        }
+    }
+
+    /** Checks the model shows an operation succeeded
+     *
+     */
+    private static boolean succeeded(Model model, Operation op) {
+        switch (op) {
+            case LOGIN:  return model.state == Model.State.LOGGED_IN;
+            case LOGOUT: return model.state == Model.State.ACCOUNT_NO;
+            default:     return model.getDisplay2().startsWith("Successfully");
+        }
+    }
+
+    /** Prints the percentile report
+     *
+     */
+    void report(PrintWriter out) {
+        out.printf("%d terminals, %s, %d s measured, %d sessions, %d dropped%n", terminals,
+                   rate > 0 ? rate + " sessions/s" : "closed loop", durationMs / 1000,
+                   sessions.sum(), dropped.sum());
+        out.printf("%-10s %8s %7s %9s %9s %9s %9s %9s %9s%n", "operation", "count", "failed",
+                   "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Operation op : Operation.values()) {
+            LatencyHistogram h = histograms[op.ordinal()];
+            out.printf("%-10s %8d %7d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", op, h.getCount(),
+                       failures[op.ordinal()].sum(), h.getMean() / 1e6,
+                       h.getPercentile(50) / 1e6, h.getPercentile(90) / 1e6,
+                       h.getPercentile(99) / 1e6, h.getPercentile(99.9) / 1e6, h.getMax() / 1e6);
+        }
+        out.flush();
+    }
+
+    /** Writes the results as CSV, one line per operation, latencies in microseconds
+     *
+     */
+    void writeCsv(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.printf("# terminals=%d rate=%s durationMs=%d warmupMs=%d accounts=%d " +
+                       "thinkMs=%d sessions=%d dropped=%d%n", terminals, rate, durationMs,
+                       warmupMs, accounts, thinkMs, sessions.sum(), dropped.sum());
+            out.println("operation,count,failed,mean_us,p50_us,p90_us,p99_us,p999_us,max_us");
+            for (Operation op : Operation.values()) {
+                LatencyHistogram h = histograms[op.ordinal()];
+                out.printf("%s,%d,%d,%.1f,%d,%d,%d,%d,%d%n", op, h.getCount(),
+                           failures[op.ordinal()].sum(), h.getMean() / 1e3,
+                           h.getPercentile(50) / 1000, h.getPercentile(90) / 1000,
+                           h.getPercentile(99) / 1000, h.getPercentile(99.9) / 1000,
+                           h.getMax() / 1000);
+            }
+        }
+    }
+
+    /**Creates the bank for each terminal*/
+    interface BankFactory {
+        LocalBank create() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+
+        int terminals = Integer.parseInt(options.getOrDefault("terminals", "50"));
+        LoadGenerator load = new LoadGenerator(terminals,
+                Double.parseDouble(options.getOrDefault("rate", "20")),
+                Long.parseLong(options.getOrDefault("duration", "60")) * 1000,
+                Long.parseLong(options.getOrDefault("warmup", "10")) * 1000,
+                Integer.parseInt(options.getOrDefault("accounts", Integer.toString(terminals))),
+                Long.parseLong(options.getOrDefault("think", "0")));
+
+        String server = options.get("server");
+        ConnectionPool pool = null;
+        BankFactory banks;
+        if (server != null) {
+            //The server must already have the accounts, e.g. from AccountImporter
+            banks = () -> RemoteBank.connect(server);
+        } else {
+            pool = new ConnectionPool("jdbc:sqlite:" + options.getOrDefault("db", "atm-load.db"),
+                                      DataHandler.POOL_SIZE);
+            Schema.migrate(pool);
+            if (options.containsKey("cost")) {
+                CryptoService.shared().setCost(Integer.parseInt(options.get("cost")));
+            }
+            load.createAccounts(pool);
+            ConnectionPool shared = pool;
+            banks = () -> new LocalBank(shared);
+        }
+
+        load.run(banks);
+
+        PrintWriter out = new PrintWriter(System.out);
+        load.report(out);
+        File csv = new File(options.getOrDefault("out", "load-report.csv"));
+        load.writeCsv(csv);
+        out.println("Results written to " + csv);
+        out.flush();
+
+        if (pool != null) {
+            pool.close();
+        }
+    }
+}
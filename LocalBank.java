@@ -1,27 +1,156 @@
+import java.io.IOException;
 import java.util.ArrayList;
 import java.sql.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
-/**Handles all operations that interact with the bank*/
+/**Handles all operations that interact with the bank<br>
+ * The {@code ...Async} methods run the same operations on {@link #EXECUTOR}, so a slow<br>
+ * database or password hash doesn't block the caller, e.g. the JavaFX application thread
+ */
 public class LocalBank 
 {
+    /**The accounts used for testing: {id, password, balance, overdraft, type code}*/
+    static final int[][] TEST_ACCOUNTS = {
+        {10478, 54321, 0, 0, 0},        //Basic
+        {24601, 12345, 0, -1200, 1},    //Student
+    };
+    
+    /**Runs the asynchronous operations, shared by every session*/
+    static final ExecutorService EXECUTOR = newExecutor();
+    
     /**The current login account number*/
     int theAccNumber = 0;
     /**The current login password*/
     int theAccPasswd = 0;
     
-    /**{@code DataHandler} instance that interacts with the database*/
-    public DataHandler data = new DataHandler(this);
+    /**Where the accounts are kept, a {@code DataHandler} unless another store was given*/
+    public final AccountStore data;
     /**{@code LocalBankAccount} object for recording unsaved changes*/
     LocalBankAccount currentAccount = null;
+    /**The terminal this bank session is running on, recorded in the ledger*/
+    int terminalId = 0;
+    /**Where a remote terminal connects from, 0 for a local one. The {@code LoginThrottle}<br>
+     * counts failures against it rather than the {@link #terminalId}, which is new each time*/
+    int terminalAddress = 0;
+    /**Set when the last withdrawal was refused by a {@code WithdrawalLimits} limit*/
+    boolean overLimit = false;
+    /**Set when the last login was refused by the {@code LoginThrottle} without checking it*/
+    boolean throttled = false;
+    /**Set when the last withdrawal or deposit was refused because another session had taken<br>
+     * the account's lease, the session has been logged out*/
+    boolean leaseLost = false;
 
-    /**{@code LocalBank} constructor, creates accounts for testing*/
+    /**{@code LocalBank} constructor using the shared database, whose test accounts are<br>
+     * created by {@link Schema#migrate} when it is new*/
     public LocalBank() {
+        this(DataHandler.sharedPool());
+    }
+    
+    /**{@code LocalBank} constructor for one of many sessions sharing a database
+     * 
+     * @param pool The connection pool shared between sessions
+     */
+    public LocalBank(ConnectionPool pool) {
+        this(bank -> new DataHandler(bank, pool));
+    }
+    
+    /**{@code LocalBank} constructor for a session using another kind of account store
+     * 
+     * @param stores Creates this session's store, e.g.<br>
+     *               {@code bank -> new MemoryAccountStore(bank, table)}
+     */
+    public LocalBank(Function<LocalBank, AccountStore> stores) {
         Debug.trace( "LocalBank::<constructor>"); 
         
-        //Basic
-        data.createAccount(10478, 54321, 0, 0, "BasicAccount");
-        //Student
-        data.createAccount(24601, 12345, 0, -1200, "StudentAccount");
+        data = stores.apply(this);
+    }
+    
+    /** Returns what creates each session's store, picked with {@code -Datm.store}:<br>
+     *  {@code memory} keeps accounts in an {@code AccountTable} snapshotted to the database,<br>
+     *  {@code mapped} keeps them in the {@code atm.accounts} file, {@code sharded} spreads<br>
+     *  them across the databases in the {@code atm.shards} map, {@code -Datm.shards} of them<br>
+     *  when it is created, otherwise they are kept in the database. A new file or map starts<br>
+     *  with a copy of the database's accounts. Only the database records transactions in an<br>
+     *  open {@code Ledger}, the other stores change balances directly and a warning is traced
+     * 
+     * @param pool          The database, shared between sessions
+     * @throws IOException  If the account file or shard map couldn't be opened
+     * @throws SQLException If the accounts couldn't be loaded from the database
+     */
+    static Function<LocalBank, AccountStore> configuredStores(ConnectionPool pool)
+            throws IOException, SQLException {
+        String store = System.getProperty("atm.store", "sqlite");
+        Debug.trace("LocalBank::configuredStores:: %s", store);
+        
+        boolean ledgerIgnored = store.equals("memory") || store.equals("mapped") ||
+                                store.equals("sharded");
+        if (ledgerIgnored && Ledger.forDatabase(pool.url) != null) {
+            Trace.log(Trace.Category.LOCALBANK, Trace.Level.INFO,
+                      "LocalBank::configuredStores:: WARNING the %s store doesn't use the open " +
+                      "ledger, transactions change its balances directly", store);
+        }
+        
+        switch (store) {
+            case "memory":
+                AccountTable table = AccountTable.forDatabase(pool);
+                return bank -> new MemoryAccountStore(bank, table);
+                
+            case "mapped":
+                AccountFile accounts = AccountFile.open("atm.accounts");
+                accounts.startCheckpoints(AccountFile.DEFAULT_CHECKPOINT_MS);
+                Function<LocalBank, AccountStore> mapped =
+                        bank -> new MappedAccountStore(bank, accounts);
+                //A new file starts with the accounts already in the database
+                if (accounts.getRecords() == 0 && accounts.importFrom(pool) == 0) {
+                    new LocalBank(mapped).createTestAccounts();
+                }
+                return mapped;
+                
+            case "sharded":
+                //A new map's shards start with the accounts already in the database
+                ShardMap map = ShardMap.open("atm.shards", Integer.getInteger("atm.shards", 4),
+                                             pool);
+                Function<LocalBank, AccountStore> sharded = bank -> new DataHandler(bank, map);
+                if (map.created && map.imported == 0) {
+                    new LocalBank(sharded).createTestAccounts();
+                }
+                return sharded;
+                
+            default:
+                return bank -> new DataHandler(bank, pool);
+        }
+    }
+    
+    /**Creates the accounts used for testing, if they don't already exist*/
+    public void createTestAccounts() {
+        for (int[] account : TEST_ACCOUNTS) {
+            data.createAccount(account[0], account[1], account[2], account[3],
+                               LocalBankAccount.TYPES[account[4]]);
+        }
+    }
+    
+    /** Creates the executor for the asynchronous operations, one virtual thread per operation<br>
+     *  when the JVM has them (Java 21 and later), otherwise a pool of daemon threads.<br>
+     *  Looked up by reflection so the project still builds on older JDKs
+     * 
+     */
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Debug.trace("LocalBank::newExecutor:: No virtual threads, using a thread pool");
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "Bank worker " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
     }
     
     /** Creates a {@code LocalBankAccount} object that mimics the user's data<br>
@@ -35,15 +164,17 @@ public class LocalBank
      *                    or {@code StudentAccount}
      */
     public LocalBankAccount makeAccount(String accountType, int id, int bal, int over) {
-        Debug.trace("LocalBank::makeAccount " + accountType);
+        Debug.trace("LocalBank::makeAccount %s", accountType);
         LocalBankAccount newAccount = null;
         
         switch (accountType) {
             case "BasicAccount":
                 newAccount = new BasicAccount(id, bal, over);
+                break;
                 
             case "StudentAccount":
                 newAccount = new StudentAccount(id, bal, over);
+                break;
         }
         
         return newAccount;
@@ -53,7 +184,7 @@ public class LocalBank
      * @param accNumber Newly entered account number
      */
     public void setAccNumber( int accNumber ) { 
-        Debug.trace( "LocalBank::setAccNumber: accNumber = " + accNumber ); 
+        Debug.trace( "LocalBank::setAccNumber: accNumber = %d", accNumber ); 
 
         theAccNumber = accNumber;
     }
@@ -62,19 +193,32 @@ public class LocalBank
      * @param accPasswd Newly entered account password
      */
     public void setAccPasswd( int accPasswd ) { 
-        Debug.trace( "LocalBank::setAccPasswd: accPassword = " + accPasswd ); 
+        Debug.trace( "LocalBank::setAccPasswd: accPassword = %d", accPasswd ); 
 
         theAccPasswd = accPasswd;
     }
 
     /** Checks whether the entered username/password are valid<br>
-     *  If not valid, resets the login variables
+     *  If not valid, resets the login variables. If the {@link LoginThrottle} is enabled,<br>
+     *  an account or terminal with too many recent failures is refused before the account<br>
+     *  is looked up or the password hashed
      */
     public boolean checkValid() { 
         Debug.trace( "LocalBank::checkValid" ); 
         
-        if (data.checkPassword(theAccNumber, theAccPasswd)) {
+        LoginThrottle throttle = LoginThrottle.get();
+        int terminal = terminalAddress != 0 ? terminalAddress : terminalId;
+        throttled = throttle != null && !throttle.allow(theAccNumber, terminal);
+        if (throttled) {
+            Debug.trace( "LocalBank::checkValid:: Throttled %d", theAccNumber );
+            Metrics.throttledLogins.increment();
+        } else if (data.checkPassword(theAccNumber, theAccPasswd)) {
+            if (throttle != null) {
+                throttle.succeeded(theAccNumber);
+            }
             return true;
+        } else if (throttle != null) {
+            throttle.failed(theAccNumber, terminal);
         }
             
         //Not valid - reset everything and return false
@@ -84,7 +228,51 @@ public class LocalBank
         return false;
     }
 
-    /** Saves new balance and resets login variables
+    /** Runs {@link #checkValid} on {@link #EXECUTOR}
+     * 
+     * @return Completes with {@code true} if the account number and password are valid
+     */
+    public CompletableFuture<Boolean> checkValidAsync() {
+        return CompletableFuture.supplyAsync(this::checkValid, EXECUTOR);
+    }
+    
+    /** Runs {@link #logOut} on {@link #EXECUTOR}
+     * 
+     * @return Completes once the account has been saved and released
+     */
+    public CompletableFuture<Void> logOutAsync() {
+        return CompletableFuture.runAsync(this::logOut, EXECUTOR);
+    }
+    
+    /** Runs {@link #withdraw} on {@link #EXECUTOR}
+     * 
+     * @param withdrawAmount Value to remove from balance
+     * @return               Completes with {@code true} if money withdrawn
+     */
+    public CompletableFuture<Boolean> withdrawAsync(int withdrawAmount) {
+        return CompletableFuture.supplyAsync(() -> withdraw(withdrawAmount), EXECUTOR);
+    }
+    
+    /** Runs {@link #deposit} on {@link #EXECUTOR}
+     * 
+     * @param depositAmount Value to add to the balance
+     * @return              Completes with {@code true} if money deposited
+     */
+    public CompletableFuture<Boolean> depositAsync(int depositAmount) {
+        return CompletableFuture.supplyAsync(() -> deposit(depositAmount), EXECUTOR);
+    }
+    
+    /** Runs {@link #transfer} on {@link #EXECUTOR}
+     * 
+     * @param toId   The account to move the money to
+     * @param amount Value to move
+     * @return       Completes with {@code true} if money moved
+     */
+    public CompletableFuture<Boolean> transferAsync(int toId, int amount) {
+        return CompletableFuture.supplyAsync(() -> transfer(toId, amount), EXECUTOR);
+    }
+    
+    /** Ends use of the account and resets login variables
      * 
      */
     public void logOut() {
@@ -97,27 +285,83 @@ public class LocalBank
         currentAccount = null;
     }
     
+    /** Renews the lease on the {@link currentAccount}, called while the session is active
+     * 
+     */
+    public void heartbeat() {
+        if (currentAccount != null && !data.heartbeat(currentAccount)) {
+            Debug.trace( "LocalBank::heartbeat:: Lease on %d lost", currentAccount.id );
+        }
+    }
+    
     /** Withdraws money from the {@link currentAccount},<br>
-     *  provided withdrawing the amount would not pass their overdraft limit
+     *  provided withdrawing the amount would not pass their overdraft limit.<br>
+     *  The limit is checked against the balance in the database, not the cached one.<br>
+     *  If {@link WithdrawalLimits} are open the amount must also be within the account<br>
+     *  type's hourly and daily limits, which are checked in memory first.<br>
+     *  If a {@link Ledger} is open the lease is checked first, as the cached balance is<br>
+     *  only current while the session holds it
      * @param withdrawAmount Value to remove from balance
      * @return {@code true} if money withdrawn, otherwise {@code false}
      */
     public boolean withdraw( int withdrawAmount ) { 
-        Debug.trace( "LocalBank::withdraw:: Amount =" + withdrawAmount ); 
-        
-        int balance = currentAccount.balance;
-        int overdraft = currentAccount.overdraft;
+        Debug.trace( "LocalBank::withdraw:: Amount = %d", withdrawAmount ); 
         
         //If they just hit enter, don't show success message
+        overLimit = false;
+        leaseLost = false;
         if (withdrawAmount <= 0) { return false; }
         
-        //If there is money remaining then withdraw it, otherwise show error
-        if ((balance - withdrawAmount) > overdraft) {
+        Ledger ledger = data.getLedger();
+        if (ledger != null && !holdsLease()) {
+            return false;
+        }
+        
+        WithdrawalLimits limits = WithdrawalLimits.get();
+        int type = currentAccount.typeCode();
+        int reserved = limits != null ? limits.reserve(currentAccount.id, type, withdrawAmount)
+                                      : 0;
+        if (reserved == WithdrawalLimits.REFUSED) {
+            overLimit = true;
+            Metrics.overLimit.increment();
+            return false;
+        }
+        
+        boolean withdrawn;
+        if (ledger == null) {
+            //If there is money remaining then withdraw it, otherwise show error
+            withdrawn = data.applyDelta(currentAccount, -withdrawAmount);
+        } else if ((currentAccount.balance - withdrawAmount) > currentAccount.overdraft) {
+            //Ledger open, the session holds the account's lease so its balance is current
             currentAccount.balance -= withdrawAmount;
-            return true; 
+            ledger.append(currentAccount.id, Ledger.WITHDRAW, -withdrawAmount, terminalId,
+                          currentAccount.balance);
+            withdrawn = true; 
         } else { 
-            return false;            
-        }     
+            withdrawn = false;            
+        }
+        
+        if (!withdrawn && limits != null) {
+            limits.cancel(currentAccount.id, type, withdrawAmount, reserved);
+        }
+        (withdrawn ? Metrics.withdrawals : Metrics.insufficientFunds).increment();
+        return withdrawn;
+    }
+
+    /** Renews the lease on the {@link currentAccount} before a {@link Ledger} change, which<br>
+     *  relies on the cached balance. If another session has taken the account the session<br>
+     *  is logged out and {@link #leaseLost} set
+     * @return {@code true} if the lease is still held
+     */
+    private boolean holdsLease() {
+        if (data.heartbeat(currentAccount)) {
+            return true;
+        }
+        Debug.trace( "LocalBank::holdsLease:: Lease on %d lost, logging out", currentAccount.id );
+        leaseLost = true;
+        Metrics.lockedRejections.increment();
+        logOut();
+        return false;
     }
 
     /** Increases the balance of the {@link currentAccount}
@@ -125,15 +369,62 @@ public class LocalBank
      * @return {@code true} if money deposited, otherwise {@code false} 
      */
     public boolean deposit( int depositAmount ) { 
-        Debug.trace( "LocalBank::deposit: amount = " + depositAmount ); 
+        Debug.trace( "LocalBank::deposit: amount = %d", depositAmount ); 
         
+        leaseLost = false;
         if (depositAmount <= 0) {
             return false;
         } else {
             //Add amount to balance
-            currentAccount.balance += depositAmount;
-            return true; 
+            Ledger ledger = data.getLedger();
+            if (ledger == null) {
+                if (!data.applyDelta(currentAccount, depositAmount)) {
+                    return false;
+                }
+            } else if (!holdsLease()) {
+                return false;
+            } else {
+                currentAccount.balance += depositAmount;
+                ledger.append(currentAccount.id, Ledger.DEPOSIT, depositAmount, terminalId,
+                              currentAccount.balance);
+            }
+            Metrics.deposits.increment();
+            return true;
+        }
+    }
+
+    /** Moves money from the {@link currentAccount} to another account, provided it would<br>
+     *  not pass the overdraft limit and the other account exists. Both balances change<br>
+     *  together. If a {@link Ledger} is open the account's ledger changes are applied first,<br>
+     *  so the limit is checked against its real balance
+     * @param toId   The account to move the money to
+     * @param amount Value to move
+     * @return {@code true} if money moved, otherwise {@code false}
+     */
+    public boolean transfer( int toId, int amount ) {
+        Debug.trace( "LocalBank::transfer: to = %d amount = %d", toId, amount );
+        
+        if (amount <= 0 || toId == currentAccount.id) {
+            return false;
+        }
+        
+        long start = System.nanoTime();
+        Ledger ledger = data.getLedger();
+        if (ledger != null) {
+            try {
+                ledger.flushAccount(currentAccount.id);
+            } catch (SQLException e) {
+                Debug.trace( "LocalBank::transfer:: Ledger error %s", e );
+                return false;
+            }
+        }
+        
+        boolean moved = data.transfer(currentAccount, toId, amount);
+        if (moved) {
+            Metrics.transfers.increment();
         }
+        Metrics.transfer.record(System.nanoTime() - start);
+        return moved;
     }
 
     /** Returns the balance of the {@link currentAccount}
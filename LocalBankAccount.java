@@ -1,5 +1,8 @@
 public class LocalBankAccount 
 {
+    /**Account types, stored as their index here*/
+    static final String[] TYPES = { "BasicAccount", "StudentAccount" };
+    
     public int id;
     public int balance;
     public int overdraft;
@@ -10,6 +13,28 @@ public class LocalBankAccount
         this.balance = bal;
         this.overdraft = over;
     }
+    
+    /** Returns the index of an account type in {@link #TYPES}
+     * 
+     * @param accountType {@code BasicAccount} or {@code StudentAccount}
+     * @return            The index, or -1 if the type is unknown
+     */
+    static int typeCode(String accountType) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(accountType)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /** Returns the index of this account's type in {@link #TYPES}, taken from its class
+     * 
+     * @return The index, or -1 for a plain {@code LocalBankAccount}
+     */
+    int typeCode() {
+        return typeCode(getClass().getName());
+    }
 }
 
 class BasicAccount extends LocalBankAccount {
@@ -0,0 +1,284 @@
+import java.util.Arrays;
+
+/**Slows down password guessing, so a scripted terminal can't use up the hashing capacity<br>
+ * Failed logins are charged to a token bucket for the account and one for the terminal.<br>
+ * Once either bucket is empty, or the account is backing off, a login is refused straight<br>
+ * away without looking the account up or hashing the password. Buckets refill over time,<br>
+ * and after {@link #BACKOFF_AFTER} failures in a row each further failure doubles the wait,<br>
+ * up to {@link #MAX_BACKOFF_MS}. A success clears the account's run of failures.
+ * <p>
+ * Each bucket is one {@code long}, the time it will next be full (the generic cell rate<br>
+ * algorithm), kept with its failure count in a {@link Buckets} table keyed by the int id.<br>
+ * Logins that don't fail never add an entry, and entries idle for {@link #IDLE_MS} are<br>
+ * dropped when their segment next fills up
+ */
+public class LoginThrottle
+{
+    /**Failed logins an account can have before it is throttled*/
+    static final int ACCOUNT_BURST = 5;
+    /**Time for an account to earn back one failed login*/
+    static final long ACCOUNT_REFILL_MS = 60000;
+    /**Failed logins a terminal can have before it is throttled*/
+    static final int TERMINAL_BURST = 20;
+    static final long TERMINAL_REFILL_MS = 6000;
+    /**Failures in a row before each failure makes the next login wait*/
+    static final int BACKOFF_AFTER = 3;
+    static final long FIRST_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 300000;
+    /**Time after an entry's bucket is full and its backoff over before it can be dropped*/
+    static final long IDLE_MS = 900000;
+
+    /**The throttle in use, {@code null} until {@link #enable}*/
+    private static volatile LoginThrottle active = null;
+
+    final Buckets accounts = new Buckets(ACCOUNT_BURST, ACCOUNT_REFILL_MS);
+    final Buckets terminals = new Buckets(TERMINAL_BURST, TERMINAL_REFILL_MS);
+
+    /** Starts throttling every session's logins
+     *
+     * @return The throttle
+     */
+    public static synchronized LoginThrottle enable() {
+        if (active == null) {
+            active = new LoginThrottle();
+            Debug.trace("LoginThrottle::enable");
+        }
+        return active;
+    }
+
+    /** Returns the throttle started with {@link #enable}
+     *
+     * @return The throttle, or {@code null} if logins aren't throttled
+     */
+    static LoginThrottle get() {
+        return active;
+    }
+
+    /** Checks whether a login may go ahead, without changing anything
+     *
+     * @param account  The account number entered
+     * @param terminal The terminal it was entered on
+     * @return         {@code false} if the account or the terminal is throttled
+     */
+    public boolean allow(int account, int terminal) {
+        long now = System.nanoTime();
+        return accounts.allows(account, now) && terminals.allows(terminal, now);
+    }
+
+    /** Charges a failed login to the account and the terminal
+     *
+     */
+    public void failed(int account, int terminal) {
+        long now = System.nanoTime();
+        accounts.fail(account, now);
+        terminals.fail(terminal, now);
+    }
+
+    /** Clears the account's run of failures after a successful login
+     *
+     */
+    public void succeeded(int account) {
+        accounts.reset(account);
+    }
+
+    /**Token buckets keyed by int, in segments that are each locked on their own<br>
+     * Each segment is an open-addressing table with linear probing and parallel arrays*/
+    static final class Buckets {
+        static final int SEGMENTS = 16;
+        static final int SEGMENT_CAPACITY = 64;
+        /**Marks a free slot, a key equal to it is stored as {@link #stored} says*/
+        static final int FREE = Integer.MIN_VALUE;
+
+        /**Time, in nanoseconds, to earn back one token*/
+        final long interval;
+        /**Most a bucket can be behind, {@code burst} tokens' worth*/
+        final long tolerance;
+        final Segment[] segments = new Segment[SEGMENTS];
+
+        Buckets(int burst, long refillMs) {
+            interval = refillMs * 1000000;
+            tolerance = burst * interval;
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new Segment(SEGMENT_CAPACITY);
+            }
+        }
+
+        /** Returns how a key is stored. {@link #FREE} is a real key, account {@code MIN_VALUE}<br>
+         *  or the hash of address 128.0.0.0, so it shares the entry of the key after it
+         *
+         */
+        static int stored(int key) {
+            return key == FREE ? FREE + 1 : key;
+        }
+
+        private Segment segmentOf(int key) {
+            return segments[(AccountTable.mix(key) >>> 16) & (SEGMENTS - 1)];
+        }
+
+        /** Returns whether a key has a token left and isn't backing off
+         *
+         */
+        boolean allows(int key, long now) {
+            Segment segment = segmentOf(key);
+            synchronized (segment) {
+                int slot = segment.find(key);
+                if (slot < 0) {
+                    return true;
+                }
+                return now - segment.blockedUntil[slot] >= 0 &&
+                       Math.max(segment.full[slot], now) + interval - now <= tolerance;
+            }
+        }
+
+        /** Takes a token from a key and counts the failure, backing off after several
+         *
+         */
+        void fail(int key, long now) {
+            Segment segment = segmentOf(key);
+            synchronized (segment) {
+                int slot = segment.find(key);
+                if (slot < 0) {
+                    slot = segment.add(key, now);
+                }
+                //A full bucket means it has been quiet long enough to start again
+                if (segment.full[slot] - now <= 0) {
+                    segment.failures[slot] = 0;
+                }
+                segment.full[slot] = Math.max(segment.full[slot], now) + interval;
+                int failures = ++segment.failures[slot];
+                if (failures >= BACKOFF_AFTER) {
+                    int doublings = Math.min(failures - BACKOFF_AFTER, 30);
+                    long backoffMs = Math.min(FIRST_BACKOFF_MS << doublings, MAX_BACKOFF_MS);
+                    segment.blockedUntil[slot] = now + backoffMs * 1000000;
+                }
+            }
+        }
+
+        /** Clears a key's failures, it keeps any tokens already taken
+         *
+         */
+        void reset(int key) {
+            Segment segment = segmentOf(key);
+            synchronized (segment) {
+                int slot = segment.find(key);
+                if (slot >= 0) {
+                    segment.failures[slot] = 0;
+                    segment.blockedUntil[slot] = 0;
+                }
+            }
+        }
+
+        /** Returns the number of entries
+         *
+         */
+        int size() {
+            int size = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    size += segment.size;
+                }
+            }
+            return size;
+        }
+    }
+
+    /**One segment of a {@link Buckets} table, guarded by itself*/
+    static final class Segment {
+        int[] keys;
+        /**When each bucket will be full again*/
+        long[] full;
+        /**When each key's backoff ends*/
+        long[] blockedUntil;
+        /**Failures in a row*/
+        int[] failures;
+        int mask;
+        int size = 0;
+
+        Segment(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new int[capacity];
+            Arrays.fill(keys, Buckets.FREE);
+            full = new long[capacity];
+            blockedUntil = new long[capacity];
+            failures = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        /** Returns the slot of a key, or -1 if it has none
+         *
+         */
+        int find(int key) {
+            key = Buckets.stored(key);
+            int slot = AccountTable.mix(key) & mask;
+            while (keys[slot] != Buckets.FREE) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /** Adds a key with a full bucket, dropping idle entries or growing first if the<br>
+         *  segment is half full
+         *
+         * @return The key's slot
+         */
+        int add(int key, long now) {
+            if ((size + 1) * 2 > keys.length) {
+                rebuild(now);
+            }
+            key = Buckets.stored(key);
+            int slot = AccountTable.mix(key) & mask;
+            while (keys[slot] != Buckets.FREE) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            full[slot] = now;
+            blockedUntil[slot] = now;
+            failures[slot] = 0;
+            size++;
+            return slot;
+        }
+
+        /** Copies the entries that aren't idle into new arrays, twice the size if they are<br>
+         *  still more than a quarter full
+         *
+         */
+        private void rebuild(long now) {
+            int[] oldKeys = keys;
+            long[] oldFull = full;
+            long[] oldBlocked = blockedUntil;
+            int[] oldFailures = failures;
+
+            long idle = IDLE_MS * 1000000;
+            int live = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != Buckets.FREE &&
+                        now - Math.max(oldFull[i], oldBlocked[i]) < idle) {
+                    live++;
+                }
+            }
+            allocate(live * 4 > oldKeys.length ? oldKeys.length * 2 : oldKeys.length);
+
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != Buckets.FREE &&
+                        now - Math.max(oldFull[i], oldBlocked[i]) < idle) {
+                    int slot = AccountTable.mix(oldKeys[i]) & mask;
+                    while (keys[slot] != Buckets.FREE) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    full[slot] = oldFull[i];
+                    blockedUntil[slot] = oldBlocked[i];
+                    failures[slot] = oldFailures[i];
+                    size++;
+                }
+            }
+        }
+    }
+}
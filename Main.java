@@ -1,6 +1,6 @@
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.stage.Stage;
-import java.sql.*;
 
 // atmJavaFX2 project Main class
 // The code here creates the ATM GUI interface and model functionality, but the methods
@@ -25,47 +25,62 @@ public class Main extends Application
         Debug.set(true);             
         Debug.trace("atmJavaFX2 starting"); 
         Debug.trace("Main::start"); 
+        long started = System.nanoTime();
+        long phase = started;
+        //Publish counters and latencies to JMX
+        Metrics.register();
+        phase = phase("metrics", phase);
         
-        //Set up database
-        Connection conn = null;
-        Statement stmt = null;
-        String sql = "";
+        //Talk to a bank server if one was given with -Datm.server=host:port
+        String server = System.getProperty("atm.server");
+        Model model;
         
+        //Set up database, or connect to the server
         try {
-            //Connect to database
-            Class.forName("org.sqlite.JDBC");
-            conn = DriverManager.getConnection("jdbc:sqlite:atm.db");
-            stmt = conn.createStatement();
-            
-            //Create bank table if one doesn't exist
-            sql = "CREATE TABLE IF NOT EXISTS bank (" +
-                "id integer NOT NULL PRIMARY KEY," +
-                "balance integer," +
-                "overdraft integer," +
-                "password string," +
-                "salt string," +
-                "accountType," +
-                "datalocked boolean DEFAULT false)"; 
-            stmt.execute(sql);
-            
-            //Close connection to database
-            stmt.close();
-            conn.close();
+            if (server != null) {
+                model = new Model(RemoteBank.connect(server), 0);
+                Debug.trace("Main::Connected to " + server);
+                phase = phase("connect", phase);
+            } else {
+                ConnectionPool pool = DataHandler.sharedPool();
+                //Create or upgrade the bank table, a current database needs one query
+                Schema.migrate(pool);
+                phase = phase("schema", phase);
+                //Use a password hash cost that takes about 50ms to check on this machine,
+                //only measured the first time and then read back from the database
+                CryptoService.shared().calibrate(pool, 50);
+                phase = phase("calibrate", phase);
+                //Record transactions in the ledger, replaying any the database is missing
+                Ledger.open("atm.ledger", pool);
+                phase = phase("ledger", phase);
+                //Count the last day's withdrawals towards each account's limits, older
+                //rows are deleted in the background
+                WithdrawalLimits.open(pool);
+                //Refuse password guessing before it reaches the hash
+                LoginThrottle.enable();
+                phase = phase("limits", phase);
+                Debug.trace("Main::Opened database");
+                
+                //Keep accounts where -Datm.store says, the database by default
+                model = new Model(new LocalBank(LocalBank.configuredStores(pool)), 0);
+                phase = phase("store", phase);
+            }
         } catch ( Exception e ) {
             String error = e.toString();
             Debug.trace("Main::" + error);
             System.exit(0); //Close program
+            return;
         }
-        Debug.trace("Main::Opened database");
 
         // Create the Model, View and Controller objects
-        Model model = new Model();
         View  view  = new View();
         Controller controller  = new Controller();
 
         // Link them together so they can talk to each other
         // Each one has instances variable for the other two
-        model.view = view;
+        model.addListener(view);
+        // Talk to the bank in the background, handing results back to the JavaFX thread
+        model.uiExecutor = Platform::runLater;
         model.controller = controller;
         controller.model = model;
         controller.view = view;
@@ -75,8 +90,22 @@ public class Main extends Application
         // start up the GUI (view), and then tell the model to initialise itself
         view.start(window);
         model.display();   
+        phase("view", phase);
+        Debug.trace("Main::start:: Ready in %d ms", (System.nanoTime() - started) / 1000000);
 
         // application is now running
         Debug.trace("atmJavaFX2 running"); 
     }
+
+    /** Traces how long a phase of startup took
+     * 
+     * @param name  The phase
+     * @param since When it started, from {@code System.nanoTime}
+     * @return      When the next phase starts
+     */
+    private static long phase(String name, long since) {
+        long now = System.nanoTime();
+        Debug.trace("Main::start:: %s took %d ms", name, (now - since) / 1000000);
+        return now;
+    }
 }
@@ -0,0 +1,70 @@
+import java.io.IOException;
+
+/**A session's accounts kept in an {@code AccountFile} instead of the database<br>
+ * Logging in reads the salt, hash, type and overdraft straight out of the mapped record,<br>
+ * and balance changes are written in place, so nothing waits on SQL or string columns
+ */
+public class MappedAccountStore extends AbstractAccountStore
+{
+    /**The accounts, shared by every session*/
+    final AccountFile accounts;
+    /**This session's token in the records' lease words*/
+    final int owner = AccountFile.newOwner();
+
+    /** {@code MappedAccountStore} constructor, links instance back to {@code LocalBank}
+     *
+     * @param parent   The {@code LocalBank} instance to link to
+     * @param accounts The account file, shared with the other sessions
+     */
+    public MappedAccountStore(LocalBank parent, AccountFile accounts) {
+        super(parent);
+        this.accounts = accounts;
+    }
+
+    boolean create(int id, byte[] hashPass, byte[] salt, int cost, int balance, int overdraft,
+                   String accountType) throws IOException {
+        return accounts.create(id, hashPass, salt, cost, balance, overdraft, accountType);
+    }
+
+    AccountCredentials getCredentials(int id) {
+        return accounts.getCredentials(id);
+    }
+
+    void setPassword(int id, byte[] hashPass, byte[] salt, int cost) {
+        accounts.setPassword(id, hashPass, salt, cost);
+    }
+
+    boolean acquire(int id) {
+        int pos = accounts.find(id);
+        return pos >= 0 && accounts.acquire(pos, owner);
+    }
+
+    void release(int id) {
+        int pos = accounts.find(id);
+        if (pos >= 0) {
+            accounts.release(pos, owner);
+        }
+    }
+
+    int getBalance(int id) {
+        return accounts.getBalance(accounts.find(id));
+    }
+
+    public boolean applyDelta(LocalBankAccount account, int delta) {
+        Debug.trace("MappedAccountStore::applyDelta:: id = %d delta = %d", account.id, delta);
+        return accounts.applyDelta(account, delta);
+    }
+
+    public boolean transfer(LocalBankAccount from, int toId, int amount) {
+        Debug.trace("MappedAccountStore::transfer:: %d to %d amount = %d", from.id, toId, amount);
+        return accounts.transfer(from, toId, amount);
+    }
+
+    public boolean heartbeat(LocalBankAccount account) {
+        if (account == null) {
+            return false;
+        }
+        int pos = accounts.find(account.id);
+        return pos >= 0 && accounts.heartbeat(pos, owner);
+    }
+}
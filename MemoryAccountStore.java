@@ -0,0 +1,59 @@
+/**A session's accounts kept in an {@code AccountTable} in memory instead of the database<br>
+ * Logins and balance changes never wait on SQLite, the table copies its changes there in<br>
+ * the background. For test and simulation runs, or as a hot tier in front of the database<br>
+ * when nothing else writes to the same {@code bank} table
+ */
+public class MemoryAccountStore extends AbstractAccountStore
+{
+    /**The accounts, shared by every session*/
+    final AccountTable table;
+
+    /** {@code MemoryAccountStore} constructor, links instance back to {@code LocalBank}
+     *
+     * @param parent The {@code LocalBank} instance to link to
+     * @param table  The accounts, shared with the other sessions
+     */
+    public MemoryAccountStore(LocalBank parent, AccountTable table) {
+        super(parent);
+        this.table = table;
+    }
+
+    boolean create(int id, byte[] hashPass, byte[] salt, int cost, int balance, int overdraft,
+                   String accountType) {
+        return table.create(id, hashPass, salt, cost, balance, overdraft, accountType);
+    }
+
+    AccountCredentials getCredentials(int id) {
+        return table.getCredentials(id);
+    }
+
+    void setPassword(int id, byte[] hashPass, byte[] salt, int cost) {
+        table.setPassword(id, hashPass, salt, cost);
+    }
+
+    boolean acquire(int id) {
+        return table.locks.acquire(id, localBank);
+    }
+
+    void release(int id) {
+        table.locks.release(id, localBank);
+    }
+
+    int getBalance(int id) {
+        return table.getBalance(id);
+    }
+
+    public boolean applyDelta(LocalBankAccount account, int delta) {
+        Debug.trace("MemoryAccountStore::applyDelta:: id = %d delta = %d", account.id, delta);
+        return table.applyDelta(account, delta);
+    }
+
+    public boolean transfer(LocalBankAccount from, int toId, int amount) {
+        Debug.trace("MemoryAccountStore::transfer:: %d to %d amount = %d", from.id, toId, amount);
+        return table.transfer(from, toId, amount);
+    }
+
+    public boolean heartbeat(LocalBankAccount account) {
+        return account != null && table.locks.heartbeat(account.id, localBank);
+    }
+}
@@ -0,0 +1,196 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**Counters and latency histograms for the bank, published as JMX MBeans<br>
+ * Counters are {@code LongAdder}s and histograms are {@code LatencyHistogram}s, both<br>
+ * striped, so recording from many sessions at once doesn't add contention to the code<br>
+ * being measured. After {@link #register} they can be browsed with JConsole or VisualVM<br>
+ * under {@code atm}: one {@code Counters} bean, a {@code Latency} bean per operation, a<br>
+ * {@code StateDwell} bean per {@code Model} state and a {@code Leases} bean per lock table
+ */
+public final class Metrics
+{
+    /**JMX domain of every bean*/
+    static final String DOMAIN = "atm";
+
+    //Counters
+    static final LongAdder logins = new LongAdder();
+    static final LongAdder loginFailures = new LongAdder();
+    /**Logins refused because another session holds the account*/
+    static final LongAdder lockedRejections = new LongAdder();
+    /**Logins refused by the {@code LoginThrottle} without checking the password*/
+    static final LongAdder throttledLogins = new LongAdder();
+    static final LongAdder withdrawals = new LongAdder();
+    static final LongAdder deposits = new LongAdder();
+    static final LongAdder transfers = new LongAdder();
+    /**Withdrawals refused by the overdraft limit*/
+    static final LongAdder insufficientFunds = new LongAdder();
+    /**Withdrawals refused by an hourly or daily limit*/
+    static final LongAdder overLimit = new LongAdder();
+
+    //Latencies, in nanoseconds
+    static final LatencyHistogram checkPassword = new LatencyHistogram();
+    static final LatencyHistogram saveAccount = new LatencyHistogram();
+    static final LatencyHistogram createAccount = new LatencyHistogram();
+    static final LatencyHistogram transfer = new LatencyHistogram();
+    static final LatencyHistogram hashPassword = new LatencyHistogram();
+    static final LatencyHistogram modelProcess = new LatencyHistogram();
+
+    /**Time spent in each {@code Model} state before leaving it, by ordinal*/
+    static final LatencyHistogram[] stateDwell = new LatencyHistogram[Model.State.values().length];
+
+    static {
+        for (int i = 0; i < stateDwell.length; i++) {
+            stateDwell[i] = new LatencyHistogram();
+        }
+    }
+
+    private static boolean registered = false;
+
+    private Metrics() {
+    }
+
+    /**The counters, as seen through JMX*/
+    public interface CountersMBean {
+        long getLogins();
+        long getLoginFailures();
+        long getLockedRejections();
+        long getThrottledLogins();
+        long getWithdrawals();
+        long getDeposits();
+        long getTransfers();
+        long getInsufficientFunds();
+        long getOverLimit();
+    }
+
+    /**A table of account leases, as seen through JMX*/
+    public interface LeasesMBean {
+        long getAcquired();
+        long getContended();
+        long getExpired();
+        int getActive();
+        String getHotAccounts();
+    }
+
+    /**A latency histogram, as seen through JMX*/
+    public interface LatencyMBean {
+        long getCount();
+        double getMeanMillis();
+        double getP50Millis();
+        double getP90Millis();
+        double getP99Millis();
+        double getP999Millis();
+        double getMaxMillis();
+    }
+
+    private static final class Counters implements CountersMBean {
+        public long getLogins()             { return logins.sum(); }
+        public long getLoginFailures()      { return loginFailures.sum(); }
+        public long getLockedRejections()   { return lockedRejections.sum(); }
+        public long getThrottledLogins()    { return throttledLogins.sum(); }
+        public long getWithdrawals()        { return withdrawals.sum(); }
+        public long getDeposits()           { return deposits.sum(); }
+        public long getTransfers()          { return transfers.sum(); }
+        public long getInsufficientFunds()  { return insufficientFunds.sum(); }
+        public long getOverLimit()          { return overLimit.sum(); }
+    }
+
+    private static final class Leases implements LeasesMBean {
+        /**Accounts listed by {@link #getHotAccounts}*/
+        static final int HOT_ACCOUNTS = 10;
+
+        final AccountLockManager locks;
+
+        Leases(AccountLockManager locks) {
+            this.locks = locks;
+        }
+
+        public long getAcquired()   { return locks.getAcquired(); }
+        public long getContended()  { return locks.getContended(); }
+        public long getExpired()    { return locks.getExpired(); }
+        public int getActive()      { return locks.getActive(); }
+
+        public String getHotAccounts() {
+            StringBuilder hot = new StringBuilder();
+            for (long[] account : locks.getHotAccounts(HOT_ACCOUNTS)) {
+                hot.append(hot.length() == 0 ? "" : ", ").append(account[0]).append('=')
+                   .append(account[1]);
+            }
+            return hot.toString();
+        }
+    }
+
+    private static final class Latency implements LatencyMBean {
+        final LatencyHistogram histogram;
+
+        Latency(LatencyHistogram histogram) {
+            this.histogram = histogram;
+        }
+
+        private static double millis(double nanos) {
+            return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public long getCount()          { return histogram.getCount(); }
+        public double getMeanMillis()   { return millis(histogram.getMean()); }
+        public double getP50Millis()    { return millis(histogram.getPercentile(50)); }
+        public double getP90Millis()    { return millis(histogram.getPercentile(90)); }
+        public double getP99Millis()    { return millis(histogram.getPercentile(99)); }
+        public double getP999Millis()   { return millis(histogram.getPercentile(99.9)); }
+        public double getMaxMillis()    { return millis(histogram.getMax()); }
+    }
+
+    /** Publishes every metric to the platform MBean server, only the first call does anything
+     *
+     */
+    static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new StandardMBean(new Counters(), CountersMBean.class),
+                                 new ObjectName(DOMAIN + ":type=Counters"));
+            registerLatency(server, "Latency", "checkPassword", checkPassword);
+            registerLatency(server, "Latency", "saveAccount", saveAccount);
+            registerLatency(server, "Latency", "createAccount", createAccount);
+            registerLatency(server, "Latency", "transfer", transfer);
+            registerLatency(server, "Latency", "hashPassword", hashPassword);
+            registerLatency(server, "Latency", "Model.process", modelProcess);
+            for (Model.State state : Model.State.values()) {
+                registerLatency(server, "StateDwell", state.name(), stateDwell[state.ordinal()]);
+            }
+            Debug.trace("Metrics::register:: Published to JMX");
+        } catch (JMException e) {
+            Debug.trace("Metrics::register::" + e);
+        }
+    }
+
+    /** Publishes a lock table's lease counters and hottest accounts as {@code atm:type=Leases}
+     *
+     * @param name  What the table is for, e.g. the JDBC url of its database
+     * @param locks The table
+     */
+    static void registerLeases(String name, AccountLockManager locks) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(new Leases(locks), LeasesMBean.class),
+                    new ObjectName(DOMAIN + ":type=Leases,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            Debug.trace("Metrics::registerLeases::" + e);
+        }
+    }
+
+    private static void registerLatency(MBeanServer server, String type, String name,
+                                        LatencyHistogram histogram) throws JMException {
+        server.registerMBean(new StandardMBean(new Latency(histogram), LatencyMBean.class),
+                             new ObjectName(DOMAIN + ":type=" + type + ",name=" + name));
+    }
+}
@@ -1,266 +1,578 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /** The model represents all the actual content and functionality of the app<br<
  *  For the ATM, it keeps track of the information showin in the display<br>
  *  (the two message boxes), and the interaction with the bank, and executes<br>
- *  commands provided by the controller (and tells the view to update when<br>
- *  something changes)
+ *  commands provided by the controller (and tells its listeners to update when<br>
+ *  something changes). Each model is one terminal's session, so many can run side by side
+ *  <p>
+ *  Keystrokes drive a state machine. Each button label is interned to a small key number,<br>
+ *  see {@link #keyOf}, and the action for a key is looked up in {@link #TRANSITIONS} by<br>
+ *  state and key, so a key that isn't valid in the current state is rejected straight away.<br>
+ *  The display text is only formatted when a listener reads it, see {@link #getDisplay1}
+ *  <p>
+ *  If a {@link #uiExecutor} is set, logging in, out and transactions run in the background<br>
+ *  and the model waits in the {@code PROCESSING} state, queueing any keys pressed, until<br>
+ *  the result is handed back on the {@link #uiExecutor}
  */
-public class Model 
+public class Model
 {
-    //States the ATM can take
-    final String ACCOUNT_NO = "account_no";
-    final String PASSWORD = "password";
-    final String LOGGED_IN = "logged_in";
-    final String WITHDRAW = "withdraw";
-    final String DEPOSIT = "deposit";
+    /**States the ATM can take*/
+    enum State { ACCOUNT_NO, PASSWORD, LOGGED_IN, WITHDRAW, DEPOSIT, TRANSFER_TO, TRANSFER,
+                 PROCESSING }
+
+    /**Every button label, the index of a label is its key number*/
+    static final String[] KEYS = {
+            "0", "1", "2", "3", "4", "5", "6", "7", "8", "9",
+            "CLR", "ENT", "W/D", "Bal", "Dep", "Pass", "EXIT", "Tfr",
+            "10", "20", "30", "40", "60", "80", "100"};
+    //Key numbers of the buttons that aren't digits or amounts
+    static final int KEY_CLR = 10;
+    static final int KEY_ENT = 11;
+    static final int KEY_WITHDRAW = 12;
+    static final int KEY_BALANCE = 13;
+    static final int KEY_DEPOSIT = 14;
+    static final int KEY_PASSWORD = 15;
+    static final int KEY_EXIT = 16;
+    static final int KEY_TRANSFER = 17;
+    /**First of the amount buttons on the option panels*/
+    static final int KEY_FIRST_AMOUNT = 18;
+    /**Key number of a label that isn't a button*/
+    static final int KEY_UNKNOWN = -1;
+    /**Most keys queued while {@code PROCESSING}, any more are ignored*/
+    static final int MAX_QUEUED_KEYS = 32;
+
+    /**Value of each key, the digit typed or the amount added*/
+    static final int[] KEY_VALUES = new int[KEYS.length];
+    /**Key numbers by label*/
+    static final Map<String, Integer> KEY_NUMBERS = new HashMap<String, Integer>();
+
+    /**What a key does*/
+    enum Action {
+        APPEND_DIGIT, ADD_AMOUNT, CLEAR, IGNORE,
+        ENTER_ACCOUNT, ENTER_PASSWORD, ENTER_WITHDRAW, ENTER_DEPOSIT,
+        ENTER_TRANSFER_TO, ENTER_TRANSFER, START_WITHDRAW, SHOW_BALANCE, START_DEPOSIT,
+        START_TRANSFER, CHANGE_PASSWORD, LOG_OUT, RETURN_TO_MENU
+    }
+
+    /**Action for each state and key, {@code null} if the key is invalid in that state<br>
+     * Keys pressed while {@code PROCESSING} never reach the table, they are queued*/
+    static final Action[][] TRANSITIONS = new Action[State.values().length][KEYS.length];
+
+    static {
+        for (int key = 0; key < KEYS.length; key++) {
+            KEY_NUMBERS.put(KEYS[key], key);
+            if (key <= 9 || key >= KEY_FIRST_AMOUNT) {
+                KEY_VALUES[key] = Integer.parseInt(KEYS[key]);
+            }
+        }
+
+        for (State state : State.values()) {
+            Action[] row = TRANSITIONS[state.ordinal()];
+            boolean amount = state == State.WITHDRAW || state == State.DEPOSIT ||
+                             state == State.TRANSFER;
+            //Digits are typed into the number, or added to an amount
+            for (int key = 0; key <= 9; key++) {
+                row[key] = amount ? Action.ADD_AMOUNT : Action.APPEND_DIGIT;
+            }
+            row[KEY_CLR] = Action.CLEAR;
+        }
+
+        Action[] row = TRANSITIONS[State.ACCOUNT_NO.ordinal()];
+        row[KEY_ENT] = Action.ENTER_ACCOUNT;
+
+        row = TRANSITIONS[State.PASSWORD.ordinal()];
+        row[KEY_ENT] = Action.ENTER_PASSWORD;
+
+        row = TRANSITIONS[State.LOGGED_IN.ordinal()];
+        row[KEY_ENT] = Action.IGNORE;
+        row[KEY_WITHDRAW] = Action.START_WITHDRAW;
+        row[KEY_BALANCE] = Action.SHOW_BALANCE;
+        row[KEY_DEPOSIT] = Action.START_DEPOSIT;
+        row[KEY_TRANSFER] = Action.START_TRANSFER;
+        row[KEY_PASSWORD] = Action.CHANGE_PASSWORD;
+        row[KEY_EXIT] = Action.LOG_OUT;
+
+        row = TRANSITIONS[State.TRANSFER_TO.ordinal()];
+        row[KEY_ENT] = Action.ENTER_TRANSFER_TO;
+        row[KEY_EXIT] = Action.RETURN_TO_MENU;
+
+        TRANSITIONS[State.WITHDRAW.ordinal()][KEY_ENT] = Action.ENTER_WITHDRAW;
+        TRANSITIONS[State.DEPOSIT.ordinal()][KEY_ENT] = Action.ENTER_DEPOSIT;
+        TRANSITIONS[State.TRANSFER.ordinal()][KEY_ENT] = Action.ENTER_TRANSFER;
+        for (State state : new State[] {State.WITHDRAW, State.DEPOSIT, State.TRANSFER}) {
+            row = TRANSITIONS[state.ordinal()];
+            for (int key = KEY_FIRST_AMOUNT; key < KEYS.length; key++) {
+                row[key] = Action.ADD_AMOUNT;
+            }
+            row[KEY_EXIT] = Action.RETURN_TO_MENU;
+        }
+    }
+
+    /**How {@code display1} is built when it is read*/
+    enum Format { TEXT, NUMBER, AMOUNT }
 
     // variables representing the ATM model
-    String state = ACCOUNT_NO;      // the state it is currently in
+    State state = State.ACCOUNT_NO; // the state it is currently in
+    long stateEnteredAt = System.nanoTime(); // when it entered that state
     int  number = 0;                // current number displayed in GUI (as a number, not a string)
+    int  transferTo = 0;            // account a transfer is going to, once it has been entered
     String display1 = null;         // The contents of the Message 1 box (a single line)
     String display2 = null;         // The contents of the Message 2 box (may be multiple lines)
 
+    //Parts of the display not yet formatted, display1 and display2 are null until they are
+    Format display1Format = Format.TEXT;
+    String display1Text = null;
+    String display2Prefix = null;
+    int display2Value = 0;
+    String display2Suffix = null;
+
     // The ATM talks to a bank, represented by the LocalBank object.
-    LocalBank  bank = new LocalBank();
+    final LocalBank bank;
+    // Identifies the terminal this session belongs to
+    final int terminalId;
+
+    /**Runs the results of background bank operations, e.g. {@code Platform::runLater}.<br>
+     * Everything touching the model must run there too. If {@code null}, bank operations<br>
+     * run on the thread calling {@link #process}*/
+    Executor uiExecutor = null;
+    /**Keys pressed while {@code PROCESSING}, processed once the result is in*/
+    final ArrayDeque<Integer> queuedKeys = new ArrayDeque<Integer>();
 
     // The other parts of the model-view-controller setup
-    public View view;
     public Controller controller;
+    // Everything rendering this model, e.g. the View
+    final List<ModelListener> listeners = new CopyOnWriteArrayList<ModelListener>();
 
     // when we create a model, we set the messages to something useful
     public Model() {
-        Debug.trace("Model::<constructor>");        
-        initialise("Welcome to the ATM"); 
+        this(new LocalBank(), 0);
+    }
+
+    /** Creates the session for one terminal
+     *
+     * @param bank       The bank this session talks to, not shared with other sessions
+     * @param terminalId Identifies the terminal in events
+     */
+    public Model(LocalBank bank, int terminalId) {
+        Debug.trace("Model::<constructor>");
+        this.bank = bank;
+        this.terminalId = terminalId;
+        bank.terminalId = terminalId;
+        initialise("Welcome to the ATM");
+    }
+
+    /** Registers a listener to be told when the display or options change
+     *
+     * @param listener The listener to add
+     */
+    public void addListener(ModelListener listener) {
+        listeners.add(listener);
+    }
+
+    /** Unregisters a listener added with {@link #addListener}
+     *
+     * @param listener The listener to remove
+     */
+    public void removeListener(ModelListener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Interns a button label to its key number
+     *
+     * @param button The text of the button
+     * @return       The key number, or {@link #KEY_UNKNOWN}
+     */
+    static int keyOf(String button) {
+        Integer key = KEY_NUMBERS.get(button);
+        return key != null ? key : KEY_UNKNOWN;
     }
-    
+
     // set state to ACCOUNT_NO, number to zero, and display message provided as argument
     // and standard instruction message
     public void initialise(String message) {
-        setState(ACCOUNT_NO);
+        setState(State.ACCOUNT_NO);
         number = 0;
-        display1 = message; 
-        display2 =  "Enter your account number\n" +
-        "Followed by \"ENT\"";
+        setDisplay1(message);
+        setDisplay2("Enter your account number\n" +
+        "Followed by \"ENT\"");
     }
 
     /**This is how the Controller talks to the Model - it calls this method<br>
      * to say that a button in the GUI has been pressed
      */
     public void process( String button ) {
-        Debug.trace("Model::process:: State = " + state + " button = " + button );
-        
-        Boolean handled;
-        
-        handled = tryNumbers(button);
-        if (!handled) {
-            handled = tryCommands(button);
-            if (! handled) {
-                // unknown button, or invalid for this state - reset everything
-                Debug.trace("Model::process: Unhandled button, re-initialising");
-                // go back to initial state
-                initialise("Invalid command");
+        Debug.trace("Model::process:: State = %s button = %s", state, button );
+
+        process(keyOf(button));
+    }
+
+    /** Processes a button that has already been interned with {@link #keyOf},<br>
+     *  used when replaying scripted input
+     *
+     * @param key The key number of the button
+     */
+    public void process(int key) {
+        long start = System.nanoTime();
+        if (state == State.PROCESSING) {
+            //Waiting on the bank, keep the key for later
+            if (queuedKeys.size() < MAX_QUEUED_KEYS) {
+                queuedKeys.add(key);
+            } else {
+                Debug.trace("Model::process:: Queue full, ignoring key %d", key);
             }
+            return;
+        }
+
+        //Keep the account's lease alive while the customer is using it
+        bank.heartbeat();
+
+        Action action = key >= 0 && key < KEYS.length ? TRANSITIONS[state.ordinal()][key] : null;
+        if (action == null) {
+            // unknown button, or invalid for this state - reset everything
+            Debug.trace("Model::process: Unhandled button, re-initialising");
+            // go back to initial state
+            initialise("Invalid command");
+        } else {
+            perform(action, key);
         }
         display();  // update the GUI
+        Metrics.modelProcess.record(System.nanoTime() - start);
     }
 
-    /** Handles all input for the NumPad buttons
-     * 
-     * @param button The text of the button that was pressed
-     * @return {@code false} if not a NumPad button
+    /** Carries out the action for a key
+     *
+     * @param action The action from {@link #TRANSITIONS}
+     * @param key    The key that was pressed
      */
-    public Boolean tryNumbers( String button ) {
-        switch ( button ) {
-            case "1" : case "2" : case "3" : case "4" : case "5" :
-            case "6" : case "7" : case "8" : case "9" : case "0" :
-                switch (state) {
-                    case WITHDRAW: case DEPOSIT: //Add the value, rather than append
-                        int amount = Integer.parseInt(button);
-                        number = number + amount;
-                        display1 = "" + number;
-                        return true;
-                    default: 
-                        char c = button.charAt(0);
-                        number = number * 10 + c-'0';
-                        display1 = "" + number;
-                        return true;
-                }
-                                    
-            case "CLR" :
+    private void perform(Action action, int key) {
+        switch (action) {
+            case APPEND_DIGIT:
+                number = number * 10 + KEY_VALUES[key];
+                setDisplay1(Format.NUMBER);
+                break;
+
+            case ADD_AMOUNT: //Add the value, rather than append
+                number = number + KEY_VALUES[key];
+                setDisplay1(Format.AMOUNT);
+                break;
+
+            case CLEAR:
                 number = 0;
-                display1 = "";
-                return true;
-                    
-            case "ENT" :
-                switch ( state ) {
-                    case ACCOUNT_NO:
-                        //Store the entered account number
-                        bank.setAccNumber( number );
-                        number = 0;
-                        //Change to waiting for password entry
-                        setState(PASSWORD);
-                        
-                        //Modify the display
-                        display1 = "";
-                        display2 = "Now enter your password\n" +
-                        "Followed by \"ENT\"";
-                        break;
-                        
-                    case PASSWORD:
-                        //Store the entered password
-                        bank.setAccPasswd( number );
-                        number = 0;
-                        //Clear the display
-                        display1 = "";
-                        
-                        //Check entered username/password, if valid then log in
-                        if ( bank.checkValid() )
-                        {
-                            String d2 = "Accepted" +
-                                        "\nChoose the transaction that you require";
-                            loadMenu(null, d2);
-                        } else {
-                            bank.logOut();
-                            initialise("Unknown account/password");
-                        }
-                        break;
-                       
-                    case WITHDRAW: {
-                        String d2;
-                        if ( bank.withdraw( number ) ) {
-                            d2 = "Successfully withdrawn: " + number +
-                                 "\nChoose the transaction that you require";
-                        } else {
-                            d2 = "You do not have sufficient funds";
-                        }
+                setDisplay1("");
+                break;
+
+            case IGNORE:
+                break;
+
+            case ENTER_ACCOUNT:
+                //Store the entered account number
+                bank.setAccNumber( number );
+                number = 0;
+                //Change to waiting for password entry
+                setState(State.PASSWORD);
+
+                //Modify the display
+                setDisplay1("");
+                setDisplay2("Now enter your password\n" +
+                "Followed by \"ENT\"");
+                break;
+
+            case ENTER_PASSWORD:
+                //Store the entered password
+                bank.setAccPasswd( number );
+                number = 0;
+                //Clear the display
+                setDisplay1("");
+
+                //Check entered username/password, if valid then log in
+                call(bank::checkValid, bank::checkValidAsync, valid -> {
+                    if ( valid )
+                    {
+                        String d2 = "Accepted" +
+                                    "\nChoose the transaction that you require";
                         loadMenu(null, d2);
-                        break;
+                    } else {
+                        bank.logOut();
+                        initialise(bank.throttled ? "Too many attempts, try again later"
+                                                  : "Unknown account/password");
                     }
-                   
-                    case DEPOSIT: {
-                        String d2;
-                        if ( bank.deposit( number ) ) {
-                            d2 = "Successfully deposited: " + number +
-                                 "\nChoose the transaction that you require";
-                        } else {
-                            d2 = "Cannot deposit that amount";
-                        }
-                        loadMenu(null, d2);
-                        break;
+                });
+                break;
+
+            case ENTER_WITHDRAW: {
+                int amount = number;
+                call(() -> bank.withdraw(amount), () -> bank.withdrawAsync(amount), done -> {
+                    if ( done ) {
+                        loadMenu(null, null);
+                        setDisplay2("Successfully withdrawn: ", amount,
+                                    "\nChoose the transaction that you require");
+                    } else if (bank.leaseLost) {
+                        initialise("Your account is in use elsewhere, please log in again");
+                    } else {
+                        loadMenu(null, bank.overLimit ? "That is over your withdrawal limit"
+                                                      : "You do not have sufficient funds");
+                    }
+                });
+                break;
+            }
+
+            case ENTER_DEPOSIT: {
+                int amount = number;
+                call(() -> bank.deposit(amount), () -> bank.depositAsync(amount), done -> {
+                    if ( done ) {
+                        loadMenu(null, null);
+                        setDisplay2("Successfully deposited: ", amount,
+                                    "\nChoose the transaction that you require");
+                    } else if (bank.leaseLost) {
+                        initialise("Your account is in use elsewhere, please log in again");
+                    } else {
+                        loadMenu(null, "Cannot deposit that amount");
+                    }
+                });
+                break;
+            }
+
+            case ENTER_TRANSFER_TO:
+                transferTo = number;
+                setState(State.TRANSFER);
+                setDisplay1("");
+                setDisplay2("Transfer to account " + transferTo +
+                            "\nEnter amount to transfer, then press \"ENT\"" +
+                            "\nPress \"EXIT\" to return");
+                number = 0;
+                updateOptions("10", "20", "30", "40", "60", "80", "100", "EXIT");
+                break;
+
+            case ENTER_TRANSFER: {
+                int amount = number;
+                int to = transferTo;
+                call(() -> bank.transfer(to, amount), () -> bank.transferAsync(to, amount), done -> {
+                    if ( done ) {
+                        loadMenu(null, null);
+                        setDisplay2("Successfully transferred: ", amount,
+                                    " to account " + to +
+                                    "\nChoose the transaction that you require");
+                    } else {
+                        loadMenu(null, "Cannot transfer that amount to account " + to);
                     }
-            }    
-            return true;
+                });
+                break;
+            }
+
+            case START_WITHDRAW: //Withdraw
+                setState(State.WITHDRAW);
+                setDisplay1("");
+                setDisplay2("Enter amount to withdraw, then press \"ENT\""+
+                            "\nPress \"EXIT\" to return");
+                number = 0;
+                updateOptions("10", "20", "30", "40", "60", "80", "100", "EXIT");
+                break;
+
+            case SHOW_BALANCE: // Balance
+                number = 0;
+                setDisplay2("Your balance is: ", bank.getBalance(),
+                            "\nChoose the transaction that you require");
+                break;
+
+            case START_DEPOSIT: // Deposit
+                setState(State.DEPOSIT);
+                setDisplay1("");
+                setDisplay2("Enter amount to deposit, then press \"ENT\""+
+                            "\nPress \"EXIT\" to return");
+                number = 0;
+                updateOptions("10", "20", "30", "40", "60", "80", "100", "EXIT");
+                break;
+
+            case START_TRANSFER: //Transfer
+                setState(State.TRANSFER_TO);
+                setDisplay1("");
+                setDisplay2("Enter the account to transfer to, then press \"ENT\""+
+                            "\nPress \"EXIT\" to return");
+                number = 0;
+                updateOptions("", "", "", "", "", "", "", "EXIT");
+                break;
+
+            case CHANGE_PASSWORD:
+                Debug.trace("CHANGE PASSWORD");
+
+            case LOG_OUT: // Exit
+                updateOptions("", "", "", "", "", "", "", "");
+                //Log out
+                call(() -> { bank.logOut(); return null; }, bank::logOutAsync, done -> {
+                    setState(State.ACCOUNT_NO);
+                    //Reset the display
+                    number = 0;
+                    setDisplay2("Welcome: Enter your account number");
+                });
+                break;
+
+            case RETURN_TO_MENU:
+                loadMenu(null, null);
+                break;
         }
-        return false;
     }
-    
-    /** Handles most buttons on the left/right option panels
-     * 
-     * @param button The text of the button that was pressed
-     * @return {@code false} if the button is not on option panel, i.e. not a valid button
+
+    /** Runs a bank operation and then its follow up<br>
+     *  With no {@link #uiExecutor} both run straight away on this thread. Otherwise the<br>
+     *  operation runs in the background while the model is {@code PROCESSING}, and the<br>
+     *  follow up runs on the {@link #uiExecutor}, followed by any keys queued meanwhile
+     *
+     * @param sync  The operation, run on this thread
+     * @param async The same operation, run in the background
+     * @param then  What to do with its result
      */
-    public Boolean tryCommands(String button) {        
-        if (state.equals(LOGGED_IN)) {
-            switch ( button ) {
-                case "W/D" : //Withdraw
-                    setState(WITHDRAW);
-                    display1 = "";
-                    display2 = "Enter amount to withdraw, then press \"ENT\""+
-                               "\nPress \"EXIT\" to return";
-                    number = 0;
-                    view.updateOptions("10", "20", "30", "40", "60", "80", "100", "EXIT");
-                    break;
-                    
-                case "Bal" : // Balance
-                    number = 0;
-                    display2 = "Your balance is: " + bank.getBalance() +
-                               "\nChoose the transaction that you require";
-                    break;
-                    
-                case "Dep" : // Deposit
-                    setState(DEPOSIT);
-                    display1 = "";
-                    display2 = "Enter amount to deposit, then press \"ENT\""+
-                               "\nPress \"EXIT\" to return";
-                    number = 0;
-                    view.updateOptions("10", "20", "30", "40", "60", "80", "100", "EXIT");
-                    break;
-                    
-                case "Pass" :
-                    Debug.trace("CHANGE PASSWORD");
-                    
-                case "EXIT" : // Exit
-                    setState(ACCOUNT_NO);
-                    //Reset the display
-                    number = 0;
-                    display2 = "Welcome: Enter your account number";
-                    view.updateOptions("", "", "", "", "", "", "", "");
-                    //Log out
-                    bank.logOut();
-                    break;
-                    
-                default:
-                    Debug.trace("Model::tryCommands:: Unknown button - " + button);
-                    return false;
+    private <T> void call(Supplier<T> sync, Supplier<CompletableFuture<T>> async,
+                          Consumer<T> then) {
+        if (uiExecutor == null) {
+            then.accept(sync.get());
+            return;
+        }
+
+        setState(State.PROCESSING);
+        setDisplay2("Please wait...");
+        async.get().whenCompleteAsync((result, error) -> {
+            if (error != null) {
+                Debug.trace("Model::call:: Bank error %s", error);
+                //Still PROCESSING, log out in the background and start again afterwards
+                bank.logOutAsync().whenCompleteAsync((done, logOutError) -> {
+                    initialise("Sorry, please try again");
+                    resume();
+                }, uiExecutor);
+                return;
             }
-            return true;
-        } else if (state.equals(DEPOSIT) || state.equals(WITHDRAW)) {
-            switch (button) {
-                case "10" : case "20"  : case "30"  : case "40" : case "60" :
-                case "80" : case "100" :
-                    int amount = Integer.parseInt(button);
-                    number = number + amount;
-                    display1 = "" + number;
-                    break;
-                    
-                case "EXIT" : //EXIT
-                    loadMenu(null, null);
-                    break;
-                    
-                default:
-                    Debug.trace("Model::tryCommands:: Unknown button - " + button);
-                    return false;        
-            } 
-            return true;  
-        } else {
-            return false;
-        }    
+            then.accept(result);
+            resume();
+        }, uiExecutor);
     }
-    
+
+    /** Shows the display after a background operation, then processes any keys queued<br>
+     *  meanwhile, stopping if one starts another wait
+     *
+     */
+    private void resume() {
+        display();
+        while (state != State.PROCESSING && !queuedKeys.isEmpty()) {
+            process(queuedKeys.poll());
+        }
+    }
+
     /** Sets the state, mainly used to output a debug message
-     * 
+     *
      * @param newState State to change to
      */
-    public void setState(String newState) {
-        if ( !state.equals(newState) ) {
+    public void setState(State newState) {
+        if ( state != newState ) {
+            long now = System.nanoTime();
+            Metrics.stateDwell[state.ordinal()].record(now - stateEnteredAt);
+            stateEnteredAt = now;
             state = newState;
-            Debug.trace("Model::setState:: New state = " + state);
+            Debug.trace("Model::setState:: New state = %s", state);
         }
     }
-    
+
     /** Logs in or returns to the menu
-     * 
+     *
      * @param d1 The text for {@code display1}
      * @param d2 The text for {@code display2}
      */
     public void loadMenu(String d1, String d2) {
         Debug.trace("Model::loadMenu");
-        
-        setState(LOGGED_IN);
+
+        setState(State.LOGGED_IN);
         number = 0;
         //If d1, display that, otherwise leave blank
-        display1 = d1 != null ? d1 : "";
+        setDisplay1(d1 != null ? d1 : "");
         //If d2, display that, otherwise display default text
-        display2 = d2 != null ? d2 : "Choose the transaction that you require";
-        view.updateOptions("W/D", "Dep", "Bal", "", "Pass", "", "", "EXIT");
+        setDisplay2(d2 != null ? d2 : "Choose the transaction that you require");
+        updateOptions("W/D", "Dep", "Bal", "Tfr", "Pass", "", "", "EXIT");
+    }
+
+    /** Sets {@code display1} to fixed text
+     *
+     */
+    private void setDisplay1(String text) {
+        display1Format = Format.TEXT;
+        display1Text = text;
+        display1 = text;
+    }
+
+    /** Sets {@code display1} to show {@link #number}, formatted when it is read
+     *
+     */
+    private void setDisplay1(Format format) {
+        display1Format = format;
+        display1 = null;
+    }
+
+    /** Sets {@code display2} to fixed text
+     *
+     */
+    private void setDisplay2(String text) {
+        display2Prefix = null;
+        display2 = text;
+    }
+
+    /** Sets {@code display2} to text around a number, joined when it is read
+     *
+     */
+    private void setDisplay2(String prefix, int value, String suffix) {
+        display2Prefix = prefix;
+        display2Value = value;
+        display2Suffix = suffix;
+        display2 = null;
+    }
+
+    /** Returns the contents of the Message 1 box, formatting it if it has changed
+     *
+     */
+    public String getDisplay1() {
+        if (display1 == null) {
+            switch (display1Format) {
+                case NUMBER: display1 = Integer.toString(number); break;
+                case AMOUNT: display1 = "" + number;             break;
+                default:     display1 = display1Text;             break;
+            }
+        }
+        return display1;
     }
-    
-    /** This is where the Model talks to the View, by calling the View's update method<br>
-     *  The view will call back to the model to get new information to display on the screen
+
+    /** Returns the contents of the Message 2 box, formatting it if it has changed
+     *
+     */
+    public String getDisplay2() {
+        if (display2 == null && display2Prefix != null) {
+            display2 = display2Prefix + display2Value + display2Suffix;
+        }
+        return display2;
+    }
+
+    /** Tells the listeners to relabel the 8 side option buttons
+     *
+     * @param options The labels, left 1-4 followed by right 1-4
+     */
+    public void updateOptions(String... options) {
+        for (ModelListener listener : listeners) {
+            listener.optionsChanged(this, options);
+        }
+    }
+
+    /** This is where the Model talks to the View, by raising an event on each listener<br>
+     *  The listeners call back to the model to get new information to display on the screen
      */
     public void display() {
         Debug.trace("Model::display");
-        
-        view.update();
+
+        for (ModelListener listener : listeners) {
+            listener.displayChanged(this);
+        }
     }
-}
\ No newline at end of file
+}
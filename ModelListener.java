@@ -0,0 +1,19 @@
+/**Receives the rendering events of a {@code Model}<br>
+ * The {@code View} is one listener, a {@code SessionManager} is another. Events are raised<br>
+ * on the thread that called {@link Model#process}, so listeners should return quickly
+ */
+public interface ModelListener
+{
+    /** Called whenever the display messages of a model have changed
+     * 
+     * @param source The model that changed, read {@code getDisplay1} and {@code getDisplay2} from it
+     */
+    void displayChanged(Model source);
+    
+    /** Called whenever the 8 side option buttons need new labels
+     * 
+     * @param source  The model that changed
+     * @param options The labels, left 1-4 followed by right 1-4
+     */
+    void optionsChanged(Model source, String[] options);
+}
@@ -0,0 +1,47 @@
+/**Point-in-time statistics of a {@code ConnectionPool}*/
+public class PoolStats
+{
+    /**Total number of borrows*/
+    final long borrows;
+    /**Total time spent waiting to borrow, in nanoseconds*/
+    final long totalWaitNanos;
+    /**Longest single wait to borrow, in nanoseconds*/
+    final long maxWaitNanos;
+    /**Connections currently borrowed*/
+    final int activeConnections;
+    /**Connections currently open*/
+    final int openConnections;
+    /**Prepared statements reused from the cache*/
+    final long cacheHits;
+    /**Prepared statements that had to be prepared*/
+    final long cacheMisses;
+
+    PoolStats(long borrows, long totalWaitNanos, long maxWaitNanos, int activeConnections,
+              int openConnections, long cacheHits, long cacheMisses) {
+        this.borrows = borrows;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.activeConnections = activeConnections;
+        this.openConnections = openConnections;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+    }
+
+    /**Average wait to borrow a connection, in microseconds*/
+    double averageWaitMicros() {
+        return borrows == 0 ? 0 : totalWaitNanos / 1000.0 / borrows;
+    }
+
+    /**Fraction of statement lookups served from the cache*/
+    double cacheHitRate() {
+        long total = cacheHits + cacheMisses;
+        return total == 0 ? 0 : (double) cacheHits / total;
+    }
+
+    public String toString() {
+        return String.format("borrows=%d avgWait=%.1fus maxWait=%.1fus active=%d open=%d " +
+                             "stmtCacheHitRate=%.3f", borrows, averageWaitMicros(),
+                             maxWaitNanos / 1000.0, activeConnections, openConnections,
+                             cacheHitRate());
+    }
+}
@@ -0,0 +1,59 @@
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**A single pooled connection and its cache of prepared statements<br>
+ * Only ever used by one borrower at a time, so the cache needs no locking
+ */
+public class PooledConnection
+{
+    /**The pool this connection belongs to*/
+    final ConnectionPool pool;
+    /**Connection to the database*/
+    final Connection conn;
+    /**Prepared statements keyed by their SQL*/
+    final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    PooledConnection(ConnectionPool pool, Connection conn) {
+        this.pool = pool;
+        this.conn = conn;
+    }
+
+    /** Returns the cached statement for this SQL, preparing it on first use<br>
+     *  Parameters left over from a previous use are cleared
+     *
+     * @param sql Parameterised SQL, one of the fixed queries
+     * @return    A statement ready for its parameters to be set
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement pstmt = statements.get(sql);
+        if (pstmt == null) {
+            pool.cacheMisses.increment();
+            pstmt = conn.prepareStatement(sql);
+            statements.put(sql, pstmt);
+        } else {
+            pool.cacheHits.increment();
+            pstmt.clearParameters();
+        }
+        return pstmt;
+    }
+
+    /** Closes the cached statements and the connection
+     *
+     */
+    void close() {
+        for (PreparedStatement pstmt : statements.values()) {
+            try {
+                pstmt.close();
+            } catch (SQLException e) {
+                Debug.trace("PooledConnection::close::" + e.toString());
+            }
+        }
+        statements.clear();
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            Debug.trace("PooledConnection::close::" + e.toString());
+        }
+    }
+}
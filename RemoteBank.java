@@ -0,0 +1,316 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**A {@code LocalBank} whose operations run on a {@code BankServer} instead of a local database<br>
+ * Requests are pipelined over one connection: the {@code ...Async} methods send a request and<br>
+ * return straight away, and a reader thread completes each future when its response arrives.<br>
+ * The blocking methods wait for their own response. The balance returned with every<br>
+ * response is kept, so {@link #getBalance} never needs a round trip
+ */
+public class RemoteBank extends LocalBank
+{
+    /**A response from the server*/
+    static final class Reply {
+        final byte status;
+        final int value;
+
+        Reply(byte status, int value) {
+            this.status = status;
+            this.value = value;
+        }
+    }
+
+    /**Connection to the server*/
+    final SocketChannel channel;
+    /**Reads responses and completes their futures*/
+    final Thread reader;
+    /**Requests sent and not yet answered, by request id*/
+    final Map<Integer, CompletableFuture<Reply>> waiting =
+            new ConcurrentHashMap<Integer, CompletableFuture<Reply>>();
+    final AtomicInteger nextId = new AtomicInteger();
+    /**Reused for every request, guarded by itself*/
+    final ByteBuffer requestBuffer =
+            ByteBuffer.allocate(BankProtocol.LENGTH_BYTES + BankProtocol.REQUEST_BYTES);
+
+    /**Balance from the last response, while logged in*/
+    volatile int balance = 0;
+    /**Whether an account is logged in*/
+    volatile boolean loggedIn = false;
+    /**Why the connection closed, {@code null} while it is open*/
+    volatile IOException closed = null;
+
+    /** {@code RemoteBank} constructor, connects to the server
+     *
+     * @param host The server's host name or address
+     * @param port The server's port
+     * @throws IOException If the server could not be reached
+     */
+    public RemoteBank(String host, int port) throws IOException {
+        super((ConnectionPool) null);
+        Debug.trace("RemoteBank::<constructor> %s:%d", host, port);
+
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        reader = new Thread(this::readResponses, "Remote bank reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /** Connects to a server given as {@code host:port}
+     *
+     * @param address The server, the port defaults to {@link BankProtocol#DEFAULT_PORT}
+     */
+    public static RemoteBank connect(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new RemoteBank(address, BankProtocol.DEFAULT_PORT);
+        }
+        return new RemoteBank(address.substring(0, colon),
+                              Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /** Sends a request without waiting for its response
+     *
+     * @return Completes with the response, or exceptionally if the connection fails or<br>
+     *         has already closed
+     */
+    CompletableFuture<Reply> send(byte op, int arg1, int arg2) {
+        int id = nextId.incrementAndGet();
+        CompletableFuture<Reply> future = new CompletableFuture<Reply>();
+        if (closed != null) {
+            future.completeExceptionally(closed);
+            return future;
+        }
+        waiting.put(id, future);
+        //The reader may have failed the waiting futures before this one was put
+        IOException failure = closed;
+        if (failure != null && waiting.remove(id) != null) {
+            future.completeExceptionally(failure);
+            return future;
+        }
+
+        try {
+            synchronized (requestBuffer) {
+                requestBuffer.clear();
+                BankProtocol.putRequest(requestBuffer, id, op, arg1, arg2);
+                requestBuffer.flip();
+                while (requestBuffer.hasRemaining()) {
+                    channel.write(requestBuffer);
+                }
+            }
+        } catch (IOException e) {
+            waiting.remove(id);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /** The reader thread, completes the future of each response as it arrives<br>
+     *  When the connection fails it is closed and every waiting future fails with it
+     *
+     */
+    private void readResponses() {
+        ByteBuffer in = ByteBuffer.allocate(BankServer.READ_BUFFER_BYTES);
+        IOException failure = new IOException("Connection closed by server");
+
+        try {
+            while (channel.read(in) >= 0) {
+                in.flip();
+                while (BankProtocol.frameReady(in, BankProtocol.RESPONSE_BYTES) > 0) {
+                    in.getInt();
+                    int id = in.getInt();
+                    byte status = in.get();
+                    int value = in.getInt();
+                    CompletableFuture<Reply> future = waiting.remove(id);
+                    if (future != null) {
+                        future.complete(new Reply(status, value));
+                    }
+                }
+                in.compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = new IOException("Connection to server lost", e);
+        }
+
+        Debug.trace("RemoteBank::readResponses::" + failure.getMessage());
+        loggedIn = false;
+        closed = failure;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Debug.trace("RemoteBank::readResponses::" + e);
+        }
+        //Remove each future before failing it, so one put meanwhile isn't lost
+        for (Integer id : waiting.keySet()) {
+            CompletableFuture<Reply> future = waiting.remove(id);
+            if (future != null) {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /** Closes the connection, the server logs the account out
+     *
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Debug.trace("RemoteBank::close::" + e);
+        }
+    }
+
+    /** Waits for a future, treating a lost connection as the operation failing
+     *
+     */
+    private static boolean await(CompletableFuture<Boolean> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Debug.trace("RemoteBank::" + e.getCause());
+            return false;
+        }
+    }
+
+    /** The server seeds its own database, there is nothing to create here
+     *
+     */
+    public void createTestAccounts() {
+    }
+
+    public boolean checkValid() {
+        Debug.trace("RemoteBank::checkValid");
+        return await(checkValidAsync());
+    }
+
+    public CompletableFuture<Boolean> checkValidAsync() {
+        return send(BankProtocol.LOGIN, theAccNumber, theAccPasswd).thenApply(reply -> {
+            throttled = reply.status == BankProtocol.THROTTLED;
+            if (reply.status == BankProtocol.OK) {
+                balance = reply.value;
+                loggedIn = true;
+                return true;
+            }
+            //Not valid - reset everything
+            theAccNumber = -1;
+            theAccPasswd = -1;
+            return false;
+        });
+    }
+
+    public void logOut() {
+        Debug.trace("RemoteBank::logOut");
+        try {
+            logOutAsync().join();
+        } catch (CompletionException e) {
+            Debug.trace("RemoteBank::logOut::" + e.getCause());
+        }
+    }
+
+    public CompletableFuture<Void> logOutAsync() {
+        boolean wasLoggedIn = loggedIn;
+        loggedIn = false;
+        theAccNumber = -1;
+        theAccPasswd = -1;
+        if (!wasLoggedIn) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return send(BankProtocol.LOGOUT, 0, 0).thenApply(reply -> (Void) null);
+    }
+
+    /** Keeps the account's lease on the server alive, without waiting
+     *
+     */
+    public void heartbeat() {
+        if (loggedIn) {
+            send(BankProtocol.HEARTBEAT, 0, 0);
+        }
+    }
+
+    public boolean withdraw(int withdrawAmount) {
+        Debug.trace("RemoteBank::withdraw:: Amount = %d", withdrawAmount);
+        return await(withdrawAsync(withdrawAmount));
+    }
+
+    public CompletableFuture<Boolean> withdrawAsync(int withdrawAmount) {
+        //If they just hit enter, don't show success message
+        overLimit = false;
+        leaseLost = false;
+        if (withdrawAmount <= 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return send(BankProtocol.WITHDRAW, withdrawAmount, 0).thenApply(reply -> {
+            overLimit = reply.status == BankProtocol.OVER_LIMIT;
+            return transaction(reply);
+        });
+    }
+
+    public boolean deposit(int depositAmount) {
+        Debug.trace("RemoteBank::deposit:: Amount = %d", depositAmount);
+        return await(depositAsync(depositAmount));
+    }
+
+    public CompletableFuture<Boolean> depositAsync(int depositAmount) {
+        leaseLost = false;
+        if (depositAmount <= 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return send(BankProtocol.DEPOSIT, depositAmount, 0).thenApply(this::transaction);
+    }
+
+    public boolean transfer(int toId, int amount) {
+        Debug.trace("RemoteBank::transfer:: To = %d amount = %d", toId, amount);
+        return await(transferAsync(toId, amount));
+    }
+
+    public CompletableFuture<Boolean> transferAsync(int toId, int amount) {
+        if (amount <= 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return send(BankProtocol.TRANSFER, amount, toId).thenApply(this::transaction);
+    }
+
+    /** Keeps the balance from a withdrawal, deposit or transfer response. A<br>
+     *  {@code NOT_LOGGED_IN} response means the server logged the session out, having lost<br>
+     *  the account's lease
+     *
+     * @return {@code true} if the transaction was made
+     */
+    private boolean transaction(Reply reply) {
+        if (reply.status == BankProtocol.OK || reply.status == BankProtocol.REFUSED ||
+                reply.status == BankProtocol.OVER_LIMIT) {
+            balance = reply.value;
+        } else if (reply.status == BankProtocol.NOT_LOGGED_IN) {
+            leaseLost = loggedIn;
+            loggedIn = false;
+        }
+        return reply.status == BankProtocol.OK;
+    }
+
+    /** Returns the balance from the last response
+     *
+     */
+    public int getBalance() {
+        return balance;
+    }
+
+    /** Asks the server for the current balance
+     *
+     * @return Completes with the balance
+     */
+    public CompletableFuture<Integer> balanceAsync() {
+        return send(BankProtocol.BALANCE, 0, 0).thenApply(reply -> {
+            balance = reply.value;
+            return reply.value;
+        });
+    }
+}
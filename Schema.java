@@ -0,0 +1,321 @@
+import java.sql.*;
+import java.util.Properties;
+
+/**Creates and upgrades the bank database, one numbered migration at a time<br>
+ * The schema version is kept in SQLite's {@code user_version}, so opening a database that is<br>
+ * already current costs one query. Each migration runs in its own transaction together with<br>
+ * the version change, so a failed upgrade leaves the database at the version before it.<br>
+ * A new database is created at the latest version straight away and seeded with the test<br>
+ * accounts in the same transaction; seeding never happens again once it has accounts
+ */
+public final class Schema
+{
+    /**The version this code reads and writes*/
+    static final int VERSION = 4;
+
+    /**Version 1, the original table with the columns added to it since*/
+    static final String SQL_CREATE_V1 = "CREATE TABLE IF NOT EXISTS bank (" +
+            "id integer NOT NULL PRIMARY KEY," +
+            "balance integer," +
+            "overdraft integer," +
+            "password string," +
+            "salt string," +
+            "accountType," +
+            "datalocked boolean DEFAULT false)";
+    /**Version 2, typed columns, the account type as its index in {@link LocalBankAccount#TYPES}<br>
+     * and no rowid, so a lookup by id is one b-tree search*/
+    static final String SQL_TABLE_V2 = " (" +
+            "id INTEGER NOT NULL PRIMARY KEY," +
+            "balance INTEGER NOT NULL DEFAULT 0," +
+            "overdraft INTEGER NOT NULL DEFAULT 0," +
+            "password BLOB NOT NULL," +
+            "salt BLOB NOT NULL," +
+            "accountType INTEGER NOT NULL," +
+            "ledgerSeq INTEGER NOT NULL DEFAULT 0," +
+            "kdfCost INTEGER NOT NULL DEFAULT 0) WITHOUT ROWID";
+    /**Version 3, each account's withdrawals by minute for the last day, see {@code WithdrawalLimits}*/
+    static final String SQL_CREATE_WITHDRAWALS = "CREATE TABLE IF NOT EXISTS withdrawals (" +
+            "id INTEGER NOT NULL," +
+            "minute INTEGER NOT NULL," +
+            "amount INTEGER NOT NULL," +
+            "PRIMARY KEY (id, minute)) WITHOUT ROWID";
+    /**Version 4, values worked out once for this installation, e.g. the password hash cost*/
+    static final String SQL_CREATE_SETTINGS = "CREATE TABLE IF NOT EXISTS settings (" +
+            "name TEXT NOT NULL PRIMARY KEY," +
+            "value INTEGER NOT NULL) WITHOUT ROWID";
+    static final String SQL_SELECT_SETTING = "SELECT value FROM settings WHERE name = ?";
+    static final String SQL_PUT_SETTING = "INSERT INTO settings(name, value) VALUES (?,?) " +
+            "ON CONFLICT(name) DO UPDATE SET value = excluded.value";
+    /**Copies version 1 rows into the version 2 table, an unknown type fails the upgrade*/
+    static final String SQL_COPY_V2 = "INSERT INTO bank_v2(id, balance, overdraft, password, " +
+            "salt, accountType, ledgerSeq, kdfCost) SELECT id, IFNULL(balance, 0), " +
+            "IFNULL(overdraft, 0), password, salt, CASE accountType " +
+            "WHEN 'BasicAccount' THEN 0 WHEN 'StudentAccount' THEN 1 END, " +
+            "IFNULL(ledgerSeq, 0), IFNULL(kdfCost, 0) FROM bank";
+    static final String SQL_SELECT_HEX_CREDENTIALS = "SELECT id, password, salt FROM bank " +
+            "WHERE typeof(password) = 'text' AND typeof(salt) = 'text'";
+    static final String SQL_SET_CREDENTIALS = "UPDATE bank SET password = ?, salt = ? WHERE id = ?";
+
+    /**One upgrade, run inside its transaction*/
+    interface Migration {
+        void apply(PooledConnection pc, Statement stmt) throws SQLException;
+    }
+
+    /**Migration {@code i} takes a database from version {@code i} to {@code i + 1}*/
+    private static final Migration[] MIGRATIONS = { Schema::toVersion1, Schema::toVersion2,
+                                                    Schema::toVersion3, Schema::toVersion4 };
+
+    private Schema() {
+    }
+
+    /** Returns the settings every connection is opened with, each can be changed with a<br>
+     *  system property, e.g. {@code -Datm.sqlite.synchronous=NORMAL}<br>
+     *  They are passed to the driver when it connects rather than run as statements
+     *
+     */
+    static Properties pragmas() {
+        Properties pragmas = new Properties();
+        //Readers don't block the writer, and commits only append to the log
+        pragma(pragmas, "journal_mode", "WAL");
+        //FULL syncs the log on every commit, so a commit the GroupCommitWriter reports is
+        //durable. NORMAL is faster but can lose the last commits on power loss
+        pragma(pragmas, "synchronous", "FULL");
+        //Negative is in KiB, 16MB of page cache per connection
+        pragma(pragmas, "cache_size", "-16384");
+        //Read the database through a 256MB memory map instead of read calls
+        pragma(pragmas, "mmap_size", "268435456");
+        return pragmas;
+    }
+
+    private static void pragma(Properties pragmas, String name, String fallback) {
+        pragmas.setProperty(name, System.getProperty("atm.sqlite." + name, fallback));
+    }
+
+    /** Brings a database up to {@link #VERSION}, creating and seeding it if it is new
+     *
+     * @param pool          Connection pool for the database
+     * @return              The version the database was at before
+     * @throws SQLException If it couldn't be upgraded, or is newer than this code
+     */
+    static int migrate(ConnectionPool pool) throws SQLException {
+        return migrate(pool, true);
+    }
+
+    /** Brings a database up to {@link #VERSION}, creating it if it is new
+     *
+     * @param pool          Connection pool for the database
+     * @param seed          Whether a new database gets the test accounts, a shard doesn't
+     * @return              The version the database was at before
+     * @throws SQLException If it couldn't be upgraded, or is newer than this code
+     */
+    static int migrate(ConnectionPool pool, boolean seed) throws SQLException {
+        long start = System.nanoTime();
+        int from;
+
+        PooledConnection pc = pool.borrow();
+        try (Statement stmt = pc.conn.createStatement()) {
+            from = userVersion(stmt);
+            if (from > VERSION) {
+                throw new SQLException("Database is schema version " + from +
+                                       ", this program only knows up to " + VERSION);
+            }
+
+            if (from < VERSION) {
+                if (from == 0 && !hasTable(stmt, "bank")) {
+                    //New database, create the latest table rather than upgrading to it
+                    inTransaction(pc, stmt, VERSION, () -> {
+                        stmt.execute("CREATE TABLE bank" + SQL_TABLE_V2);
+                        stmt.execute(SQL_CREATE_WITHDRAWALS);
+                        stmt.execute(SQL_CREATE_SETTINGS);
+                        if (seed) {
+                            seed(pc);
+                        }
+                    });
+                } else {
+                    for (int v = from; v < VERSION; v++) {
+                        Migration migration = MIGRATIONS[v];
+                        inTransaction(pc, stmt, v + 1, () -> migration.apply(pc, stmt));
+                        Debug.trace("Schema::migrate::Upgraded to version %d", v + 1);
+                    }
+                }
+            }
+        } finally {
+            pool.release(pc);
+        }
+
+        //Version 2 only stores raw bytes
+        DataHandler.setBinaryCredentials(true);
+        Debug.trace("Schema::migrate::Version %d to %d in %d ms", from, VERSION,
+                    (System.nanoTime() - start) / 1000000);
+        return from;
+    }
+
+    /** Reads a setting
+     *
+     * @param pool          Connection pool for the database, at version 4 or later
+     * @param name          The setting
+     * @param fallback      Returned if it has never been set
+     * @throws SQLException If it couldn't be read
+     */
+    static int getSetting(ConnectionPool pool, String name, int fallback) throws SQLException {
+        PooledConnection pc = pool.borrow();
+        try {
+            PreparedStatement select = pc.prepare(SQL_SELECT_SETTING);
+            select.setString(1, name);
+            try (ResultSet rs = select.executeQuery()) {
+                return rs.next() ? rs.getInt("value") : fallback;
+            }
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    /** Stores a setting, replacing any earlier value
+     *
+     * @param pool          Connection pool for the database, at version 4 or later
+     * @param name          The setting
+     * @param value         Its new value
+     * @throws SQLException If it couldn't be written
+     */
+    static void putSetting(ConnectionPool pool, String name, int value) throws SQLException {
+        PooledConnection pc = pool.borrow();
+        try {
+            PreparedStatement upsert = pc.prepare(SQL_PUT_SETTING);
+            upsert.setString(1, name);
+            upsert.setInt(2, value);
+            upsert.executeUpdate();
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    /**Work done inside {@link #inTransaction}*/
+    private interface Work {
+        void run() throws SQLException;
+    }
+
+    /** Runs work and sets the version in one transaction
+     *
+     */
+    private static void inTransaction(PooledConnection pc, Statement stmt, int version, Work work)
+            throws SQLException {
+        pc.conn.setAutoCommit(false);
+        try {
+            work.run();
+            stmt.execute("PRAGMA user_version = " + version);
+            pc.conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            pc.conn.rollback();
+            throw e;
+        } finally {
+            pc.conn.setAutoCommit(true);
+        }
+    }
+
+    private static int userVersion(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static boolean hasTable(Statement stmt, String table) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE " +
+                                              "type = 'table' AND name = '" + table + "'")) {
+            return rs.next();
+        }
+    }
+
+    /** Adds a column to the bank table of an older database if it doesn't have it
+     *
+     */
+    private static void ensureColumn(Statement stmt, String column, String declaration)
+            throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(bank)")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return;
+                }
+            }
+        }
+        Debug.trace("Schema::ensureColumn::Adding " + column);
+        stmt.execute("ALTER TABLE bank ADD COLUMN " + column + " " + declaration);
+    }
+
+    /** Version 1: the original table, with the password cost and ledger sequence columns<br>
+     *  that were added to it before there were versions
+     *
+     */
+    private static void toVersion1(PooledConnection pc, Statement stmt) throws SQLException {
+        stmt.execute(SQL_CREATE_V1);
+        //Older databases predate the password cost, their rows are all MD5
+        ensureColumn(stmt, "kdfCost", "integer DEFAULT 0");
+        ensureColumn(stmt, "ledgerSeq", "integer DEFAULT 0");
+    }
+
+    /** Version 2: hex credentials become raw bytes, the account type becomes a code and<br>
+     *  the table is rebuilt with typed columns and without a rowid. The unused<br>
+     *  {@code datalocked} column is dropped, leases are kept by {@code AccountLockManager}
+     *
+     */
+    private static void toVersion2(PooledConnection pc, Statement stmt) throws SQLException {
+        int converted = 0;
+        PreparedStatement update = pc.prepare(SQL_SET_CREDENTIALS);
+        try (Statement select = pc.conn.createStatement();
+             ResultSet rs = select.executeQuery(SQL_SELECT_HEX_CREDENTIALS)) {
+            while (rs.next()) {
+                update.setBytes(1, HexCodec.decode(rs.getString("password")));
+                update.setBytes(2, HexCodec.decode(rs.getString("salt")));
+                update.setInt(3, rs.getInt("id"));
+                update.addBatch();
+                converted++;
+            }
+        }
+        update.executeBatch();
+        Debug.trace("Schema::toVersion2::Converted %d hex credentials", converted);
+
+        stmt.execute("CREATE TABLE bank_v2" + SQL_TABLE_V2);
+        int copied = stmt.executeUpdate(SQL_COPY_V2);
+        stmt.execute("DROP TABLE bank");
+        stmt.execute("ALTER TABLE bank_v2 RENAME TO bank");
+        Debug.trace("Schema::toVersion2::Copied %d accounts", copied);
+        if (copied == 0) {
+            seed(pc);
+        }
+    }
+
+    /** Version 3: adds the table of recent withdrawals
+     *
+     */
+    private static void toVersion3(PooledConnection pc, Statement stmt) throws SQLException {
+        stmt.execute(SQL_CREATE_WITHDRAWALS);
+    }
+
+    /** Version 4: adds the table of settings
+     *
+     */
+    private static void toVersion4(PooledConnection pc, Statement stmt) throws SQLException {
+        stmt.execute(SQL_CREATE_SETTINGS);
+    }
+
+    /** Inserts the test accounts into a new database
+     *
+     */
+    private static void seed(PooledConnection pc) throws SQLException {
+        CryptoService crypto = CryptoService.shared();
+        PreparedStatement insert = pc.prepare(DataHandler.SQL_INSERT_ACCOUNT);
+        for (int[] account : LocalBank.TEST_ACCOUNTS) {
+            byte[] salt = crypto.newSalt();
+            int cost = crypto.getCost();
+            insert.setInt(1, account[0]);
+            insert.setInt(2, account[2]);
+            insert.setInt(3, account[3]);
+            insert.setBytes(4, crypto.hash(account[1], salt, cost));
+            insert.setBytes(5, salt);
+            insert.setInt(6, account[4]);
+            insert.setInt(7, cost);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        Debug.trace("Schema::seed::Created %d test accounts", LocalBank.TEST_ACCOUNTS.length);
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**Runs many independent ATM sessions in one process without a GUI<br>
+ * Each terminal gets its own {@code Model} and {@code LocalBank}, driven by the same<br>
+ * button labels as {@link Model#process}. All sessions share one connection pool, and<br>
+ * their rendering events are passed on to the listeners registered here
+ */
+public class SessionManager implements ModelListener
+{
+    /**Connection pool shared by every session*/
+    final ConnectionPool pool;
+    /**The open sessions, keyed by terminal id*/
+    final ConcurrentHashMap<Integer, Model> sessions = new ConcurrentHashMap<Integer, Model>();
+    /**Listeners receiving the events of every session*/
+    final List<ModelListener> listeners = new CopyOnWriteArrayList<ModelListener>();
+
+    /** {@code SessionManager} constructor, sessions use the default database
+     *
+     */
+    public SessionManager() {
+        this(DataHandler.sharedPool());
+    }
+
+    /** {@code SessionManager} constructor
+     *
+     * @param pool The connection pool every session shares
+     */
+    public SessionManager(ConnectionPool pool) {
+        Debug.trace("SessionManager::<constructor>");
+        this.pool = pool;
+    }
+
+    /** Registers a listener for the events of every session, open or not yet opened
+     *
+     * @param listener The listener to add, {@link Model#terminalId} tells sessions apart
+     */
+    public void addListener(ModelListener listener) {
+        listeners.add(listener);
+    }
+
+    /** Returns the session for a terminal, opening a new one if there isn't one
+     *
+     * @param terminalId The terminal's id
+     * @return           The terminal's session
+     */
+    public Model open(int terminalId) {
+        return sessions.computeIfAbsent(terminalId, id -> {
+            Debug.trace("SessionManager::open:: terminal = %d", id);
+            Model model = new Model(new LocalBank(pool), id);
+            model.addListener(this);
+            return model;
+        });
+    }
+
+    /** Passes a button press to a terminal's session, opening it if necessary<br>
+     *  Presses for the same terminal are handled one at a time
+     *
+     * @param terminalId The terminal the button was pressed on
+     * @param button     The label of the button, as for {@link Model#process}
+     */
+    public void process(int terminalId, String button) {
+        Model model = open(terminalId);
+        synchronized (model) {
+            model.process(button);
+        }
+    }
+
+    /** Closes a terminal's session, saving and logging out any account in use
+     *
+     * @param terminalId The terminal to close
+     */
+    public void close(int terminalId) {
+        Model model = sessions.remove(terminalId);
+        if (model != null) {
+            Debug.trace("SessionManager::close:: terminal = %d", terminalId);
+            synchronized (model) {
+                model.bank.logOut();
+            }
+            model.removeListener(this);
+        }
+    }
+
+    /** Closes every open session
+     *
+     */
+    public void closeAll() {
+        for (Integer terminalId : sessions.keySet()) {
+            close(terminalId);
+        }
+    }
+
+    /** Returns the number of open sessions
+     *
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /** Passes a session's display event on to our listeners
+     *
+     */
+    public void displayChanged(Model source) {
+        for (ModelListener listener : listeners) {
+            listener.displayChanged(source);
+        }
+    }
+
+    /** Passes a session's options event on to our listeners
+     *
+     */
+    public void optionsChanged(Model source, String[] options) {
+        for (ModelListener listener : listeners) {
+            listener.optionsChanged(source, options);
+        }
+    }
+}
@@ -0,0 +1,616 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**Accounts spread across several SQLite files, so each file's single writer only carries<br>
+ * part of the load<br>
+ * An account id hashes to one of {@link #BUCKETS} buckets and the shard map file says which<br>
+ * shard holds each bucket. Every shard has its own connection pool, group commit writer and<br>
+ * credential cache, so an operation on one account touches exactly one shard. The number of<br>
+ * shards can be changed while the bank is running with {@link #rebalance}, from the command<br>
+ * line or through JMX: buckets are moved one at a time, and only sessions using accounts in<br>
+ * the bucket being moved wait for it. Reports run on every shard in parallel. When the map<br>
+ * is created the accounts already in the bank's own database are copied into the shards,<br>
+ * and from then on the shards hold the real accounts. Only one process can have a map open,<br>
+ * it holds a lock on {@code <map file>.lock} until it exits.
+ * <p>
+ * Map file: a properties file with {@code shards}, the database file of each shard as<br>
+ * {@code shard.<n>}, and {@code buckets}, the shard of each bucket separated by commas
+ */
+public class ShardMap
+{
+    /**Number of buckets, a power of two and the most shards there can be*/
+    static final int BUCKETS = 256;
+    /**Connections in each shard's pool*/
+    static final int SHARD_POOL_SIZE = 2;
+    /**Rows copied into a shard in one batch when the map is created*/
+    static final int IMPORT_BATCH = 10000;
+    /**The bucket of an account, as SQL, must match {@link #bucketOf}*/
+    static final String SQL_BUCKET = "(((id * 40503) >> 8) & " + (BUCKETS - 1) + ")";
+
+    static final String SQL_SELECT_ACCOUNTS = "SELECT id, balance, overdraft, password, salt, " +
+            "accountType, ledgerSeq, kdfCost FROM bank";
+    static final String SQL_SELECT_BUCKET = SQL_SELECT_ACCOUNTS + " WHERE " + SQL_BUCKET + " = ?";
+    static final String SQL_COPY_ACCOUNT = "INSERT OR REPLACE INTO bank(id, balance, " +
+            "overdraft, password, salt, accountType, ledgerSeq, kdfCost) VALUES (?,?,?,?,?,?,?,?)";
+    static final String SQL_DELETE_BUCKET = "DELETE FROM bank WHERE " + SQL_BUCKET + " = ?";
+    /**Totals of a shard's own buckets, rows left behind by an interrupted move are ignored*/
+    static final String SQL_TOTALS = "SELECT COUNT(*), IFNULL(SUM(balance), 0), " +
+            "IFNULL(SUM(balance < 0), 0) FROM bank WHERE " + SQL_BUCKET + " IN ";
+
+    /**Lock files held by this process. Closing a second channel on one would release the<br>
+     * lock, so they are only opened once*/
+    private static final Set<String> lockedPaths = ConcurrentHashMap.newKeySet();
+
+    /**One database file*/
+    static final class Shard {
+        final String url;
+        final ConnectionPool pool;
+        final GroupCommitWriter writer;
+        final AccountCache cache;
+
+        Shard(String url) throws SQLException {
+            this.url = url;
+            pool = new ConnectionPool(url, SHARD_POOL_SIZE);
+            //Accounts are seeded through the map, not into every shard
+            Schema.migrate(pool, false);
+            writer = GroupCommitWriter.forDatabase(pool);
+            cache = AccountCache.forDatabase(url);
+        }
+    }
+
+    /**Work done on the shard holding an account*/
+    interface Work<T> {
+        T run(Shard shard) throws SQLException;
+    }
+
+    /**Work done on the shards holding two accounts*/
+    interface PairWork<T> {
+        T run(Shard first, Shard second) throws SQLException;
+    }
+
+    /**Totals from every shard*/
+    public static final class Totals {
+        long accounts;
+        long balance;
+        long overdrawn;
+        long millis;
+
+        public String toString() {
+            return String.format("accounts=%d balance=%d overdrawn=%d in %d ms", accounts,
+                                 balance, overdrawn, millis);
+        }
+    }
+
+    /**The map, as seen through JMX*/
+    public interface ShardsMBean {
+        int getShardCount();
+        String getBuckets();
+        String report();
+        String rebalance(int shards);
+    }
+
+    /**Path of the map file*/
+    final String path;
+    /**Held while the map is open, so no other process moves its buckets*/
+    final FileLock lock;
+    /**Leases on the accounts in use, for every shard*/
+    final AccountLockManager locks;
+    /**Held by a transfer on both its accounts, for every shard*/
+    final TransferLocks transfers = new TransferLocks();
+    /**The shards, replaced as a whole when shards are added or removed*/
+    private volatile Shard[] shards;
+    /**Shard of each bucket*/
+    private final AtomicIntegerArray buckets = new AtomicIntegerArray(BUCKETS);
+    /**Held shared while using a bucket's accounts, and alone while moving it*/
+    private final ReentrantReadWriteLock[] bucketLocks = new ReentrantReadWriteLock[BUCKETS];
+    /**Whether the map was created rather than read*/
+    final boolean created;
+    /**Accounts copied into the shards when the map was created*/
+    final int imported;
+
+    /** Reads a map file, or creates one with a number of shards
+     *
+     * @param path   Path to the map file
+     * @param count  Shards to create if there is no map file
+     * @param source Database whose accounts a new map's shards start with, or {@code null}
+     * @param lock   The lock taken on the map by {@link #open}
+     */
+    private ShardMap(String path, int count, ConnectionPool source, FileLock lock)
+            throws IOException, SQLException {
+        this.path = path;
+        this.lock = lock;
+        locks = AccountLockManager.forDatabase("shards:" + new File(path).getCanonicalPath());
+        for (int b = 0; b < BUCKETS; b++) {
+            bucketLocks[b] = new ReentrantReadWriteLock();
+        }
+
+        created = !new File(path).exists();
+        List<Shard> opened = new ArrayList<Shard>();
+        if (created) {
+            for (int n = 0; n < count; n++) {
+                opened.add(new Shard(urlOf(n)));
+            }
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets.set(b, b % count);
+            }
+        } else {
+            Properties map = new Properties();
+            try (InputStream in = new FileInputStream(path)) {
+                map.load(in);
+            }
+            int shardCount = Integer.parseInt(map.getProperty("shards"));
+            for (int n = 0; n < shardCount; n++) {
+                opened.add(new Shard(map.getProperty("shard." + n)));
+            }
+            String[] owners = map.getProperty("buckets").split(",");
+            if (owners.length != BUCKETS) {
+                throw new IOException("Shard map has " + owners.length + " buckets: " + path);
+            }
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets.set(b, Integer.parseInt(owners[b].trim()));
+            }
+        }
+        shards = opened.toArray(new Shard[0]);
+        if (created) {
+            //Saved only once the accounts are in, an interrupted copy is started again
+            imported = source != null ? importFrom(source) : 0;
+            save();
+        } else {
+            imported = 0;
+        }
+    }
+
+    /** Opens a shard map, creating it and its shards if the file doesn't exist, and<br>
+     *  publishes it to JMX as {@code atm:type=Shards}
+     *
+     * @param path          Path to the map file
+     * @param count         Shards to create if there is no map file
+     * @param source        Database whose accounts are copied into a new map's shards,<br>
+     *                      {@code null} to start them empty
+     * @throws IOException  If the map file couldn't be read or written, or another process<br>
+     *                      has it open
+     * @throws SQLException If a shard couldn't be opened or the accounts copied
+     */
+    static ShardMap open(String path, int count, ConnectionPool source)
+            throws IOException, SQLException {
+        Debug.trace("ShardMap::open %s", path);
+        //The map file itself is replaced on every save, so the lock is on a file beside it
+        String lockPath = new File(path + ".lock").getCanonicalPath();
+        FileLock lock = null;
+        FileChannel channel = null;
+        if (lockedPaths.add(lockPath)) {
+            channel = FileChannel.open(Paths.get(lockPath), StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE);
+            lock = channel.tryLock();
+        }
+        if (lock == null) {
+            if (channel != null) {
+                channel.close();
+                lockedPaths.remove(lockPath);
+            }
+            throw new IOException("Shard map " + path + " is already open, rebalance it " +
+                                  "with the rebalance operation of " + Metrics.DOMAIN +
+                                  ":type=Shards in JMX");
+        }
+
+        ShardMap map;
+        try {
+            map = new ShardMap(path, count, source, lock);
+        } catch (IOException | SQLException | RuntimeException e) {
+            channel.close();
+            lockedPaths.remove(lockPath);
+            throw e;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(map.new Shards(), ShardsMBean.class),
+                    new ObjectName(Metrics.DOMAIN + ":type=Shards,name=" + ObjectName.quote(path)));
+        } catch (JMException e) {
+            Debug.trace("ShardMap::open::" + e);
+        }
+        return map;
+    }
+
+    /** Returns the JDBC url of a new shard, a database file next to the map file
+     *
+     */
+    private String urlOf(int n) {
+        String base = path.endsWith(".shards") ? path.substring(0, path.length() - 7) : path;
+        return "jdbc:sqlite:" + base + "-" + n + ".db";
+    }
+
+    /** Copies every account in a database into the shards that own their buckets, in<br>
+     *  batches on each shard's writer. An account already in a shard is replaced
+     *
+     * @return The number of accounts copied
+     */
+    private int importFrom(ConnectionPool source) throws SQLException {
+        long start = System.nanoTime();
+        List<List<Object[]>> batches = new ArrayList<List<Object[]>>();
+        for (int n = 0; n < shards.length; n++) {
+            batches.add(new ArrayList<Object[]>());
+        }
+        int copied = 0;
+
+        PooledConnection pc = source.borrow();
+        try (Statement select = pc.conn.createStatement();
+             ResultSet rs = select.executeQuery(SQL_SELECT_ACCOUNTS)) {
+            while (rs.next()) {
+                int id = rs.getInt(1);
+                int n = buckets.get(bucketOf(id));
+                List<Object[]> batch = batches.get(n);
+                batch.add(new Object[] {id, rs.getInt(2), rs.getInt(3), rs.getBytes(4),
+                                        rs.getBytes(5), rs.getInt(6), rs.getLong(7), rs.getInt(8)});
+                if (batch.size() == IMPORT_BATCH) {
+                    copied += copy(shards[n], batch);
+                    batches.set(n, new ArrayList<Object[]>());
+                }
+            }
+        } finally {
+            source.release(pc);
+        }
+        for (int n = 0; n < shards.length; n++) {
+            copied += copy(shards[n], batches.get(n));
+        }
+
+        Debug.trace("ShardMap::importFrom:: Copied %d accounts from %s in %d ms", copied,
+                    source.url, (System.nanoTime() - start) / 1000000);
+        return copied;
+    }
+
+    /** Writes account rows into a shard as one batch of its writer
+     *
+     * @return The number of rows
+     */
+    private static int copy(Shard shard, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        join(shard.writer.submit(pc -> {
+            PreparedStatement insert = pc.prepare(SQL_COPY_ACCOUNT);
+            for (Object[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    insert.setObject(i + 1, row[i]);
+                }
+                insert.addBatch();
+            }
+            return insert.executeBatch();
+        }));
+        return rows.size();
+    }
+
+    /** Returns the bucket of an account
+     *
+     */
+    static int bucketOf(int id) {
+        return (int) ((((long) id * 40503) >> 8) & (BUCKETS - 1));
+    }
+
+    /** Writes the map file, replacing the old one in one step
+     *
+     */
+    private synchronized void save() throws IOException {
+        Properties map = new Properties();
+        Shard[] current = shards;
+        map.setProperty("shards", Integer.toString(current.length));
+        for (int n = 0; n < current.length; n++) {
+            map.setProperty("shard." + n, current[n].url);
+        }
+        StringBuilder owners = new StringBuilder();
+        for (int b = 0; b < BUCKETS; b++) {
+            owners.append(b == 0 ? "" : ",").append(buckets.get(b));
+        }
+        map.setProperty("buckets", owners.toString());
+
+        File temp = new File(path + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            map.store(out, "Bucket to shard map, change with java ShardMap " + path + " <shards>");
+        }
+        Files.move(temp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Returns the shard holding an account now, it may move once this returns
+     *
+     */
+    Shard shardOf(int id) {
+        return shards[buckets.get(bucketOf(id))];
+    }
+
+    /** Runs work on the shard holding an account, the account can't be moved meanwhile<br>
+     *  Changes queued on the shard's writer are waited for before a move, so the work may<br>
+     *  submit changes and return without waiting for them
+     *
+     * @param id The account
+     */
+    <T> T onShard(int id, Work<T> work) throws SQLException {
+        ReentrantReadWriteLock.ReadLock lock = bucketLocks[bucketOf(id)].readLock();
+        lock.lock();
+        try {
+            return work.run(shardOf(id));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Runs work on the shards holding two accounts, neither can be moved meanwhile<br>
+     *  The buckets are locked lowest first, the same shard is passed twice if they share one
+     *
+     * @param a One account, its shard is passed first
+     * @param b The other account
+     */
+    <T> T onShards(int a, int b, PairWork<T> work) throws SQLException {
+        int bucketA = bucketOf(a);
+        int bucketB = bucketOf(b);
+        ReentrantReadWriteLock.ReadLock first = bucketLocks[Math.min(bucketA, bucketB)].readLock();
+        ReentrantReadWriteLock.ReadLock second = bucketLocks[Math.max(bucketA, bucketB)].readLock();
+        first.lock();
+        try {
+            if (bucketA != bucketB) {
+                second.lock();
+            }
+            try {
+                return work.run(shardOf(a), shardOf(b));
+            } finally {
+                if (bucketA != bucketB) {
+                    second.unlock();
+                }
+            }
+        } finally {
+            first.unlock();
+        }
+    }
+
+    /** Returns the number of shards
+     *
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /** Changes the number of shards, moving buckets until bucket {@code b} is on shard<br>
+     *  {@code b % count}. New shards are created, and shards left empty are dropped from<br>
+     *  the map but their files are kept. Sessions carry on meanwhile
+     *
+     * @param count         The new number of shards, from 1 to {@link #BUCKETS}
+     * @return              The number of accounts moved
+     * @throws IOException  If the map file couldn't be written
+     * @throws SQLException If a bucket couldn't be moved, buckets already moved stay moved
+     */
+    public synchronized int rebalance(int count) throws IOException, SQLException {
+        if (count < 1 || count > BUCKETS) {
+            throw new IllegalArgumentException("Shards must be from 1 to " + BUCKETS);
+        }
+        long start = System.nanoTime();
+        Debug.trace("ShardMap::rebalance:: %d to %d shards", shards.length, count);
+
+        if (count > shards.length) {
+            List<Shard> grown = new ArrayList<Shard>(List.of(shards));
+            while (grown.size() < count) {
+                grown.add(new Shard(urlOf(grown.size())));
+            }
+            shards = grown.toArray(new Shard[0]);
+            save();
+        }
+
+        int moved = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            if (buckets.get(b) != b % count) {
+                moved += moveBucket(b, b % count);
+            }
+        }
+
+        if (count < shards.length) {
+            Shard[] shrunk = new Shard[count];
+            System.arraycopy(shards, 0, shrunk, 0, count);
+            shards = shrunk;
+            save();
+        }
+        Debug.trace("ShardMap::rebalance:: Moved %d accounts in %d ms", moved,
+                    (System.nanoTime() - start) / 1000000);
+        return moved;
+    }
+
+    /** Moves one bucket's accounts to another shard<br>
+     *  With the bucket locked: waits for changes already queued on the old shard, copies<br>
+     *  the rows, points the map at the new shard, then deletes the old rows
+     *
+     * @return The number of accounts moved
+     */
+    private int moveBucket(int bucket, int target) throws IOException, SQLException {
+        ReentrantReadWriteLock.WriteLock lock = bucketLocks[bucket].writeLock();
+        lock.lock();
+        try {
+            Shard from = shards[buckets.get(bucket)];
+            Shard to = shards[target];
+            join(from.writer.submit(pc -> null));
+
+            List<Object[]> rows = new ArrayList<Object[]>();
+            PooledConnection pc = from.pool.borrow();
+            try {
+                PreparedStatement select = pc.prepare(SQL_SELECT_BUCKET);
+                select.setInt(1, bucket);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(new Object[] {rs.getInt(1), rs.getInt(2), rs.getInt(3),
+                                               rs.getBytes(4), rs.getBytes(5), rs.getInt(6),
+                                               rs.getLong(7), rs.getInt(8)});
+                    }
+                }
+            } finally {
+                from.pool.release(pc);
+            }
+
+            copy(to, rows);
+
+            //Once the map is saved the new copy is the real one
+            buckets.set(bucket, target);
+            save();
+            join(from.writer.submit(delete -> {
+                PreparedStatement remove = delete.prepare(SQL_DELETE_BUCKET);
+                remove.setInt(1, bucket);
+                return remove.executeUpdate();
+            }));
+
+            for (Object[] row : rows) {
+                from.cache.invalidate((Integer) row[0]);
+                to.cache.invalidate((Integer) row[0]);
+            }
+            return rows.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits for a writer change, turning its failure back into an {@code SQLException}
+     *
+     */
+    private static <T> T join(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                                       : new SQLException(e.getCause());
+        }
+    }
+
+    /** Totals every shard's accounts, querying the shards in parallel
+     *
+     * @throws SQLException If a shard couldn't be read
+     */
+    public Totals report() throws SQLException {
+        long start = System.nanoTime();
+        Shard[] current = shards;
+        List<CompletableFuture<long[]>> parts = new ArrayList<CompletableFuture<long[]>>();
+        for (int n = 0; n < current.length; n++) {
+            Shard shard = current[n];
+            String owned = ownedBuckets(n);
+            parts.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return totals(shard, owned);
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                }
+            }, LocalBank.EXECUTOR));
+        }
+
+        Totals totals = new Totals();
+        for (CompletableFuture<long[]> part : parts) {
+            long[] shardTotals = join(part);
+            totals.accounts += shardTotals[0];
+            totals.balance += shardTotals[1];
+            totals.overdrawn += shardTotals[2];
+        }
+        totals.millis = (System.nanoTime() - start) / 1000000;
+        return totals;
+    }
+
+    /** Returns the buckets a shard holds as an SQL list, e.g. {@code (0,4,8)}
+     *
+     */
+    private String ownedBuckets(int shard) {
+        StringBuilder owned = new StringBuilder("(-1");
+        for (int b = 0; b < BUCKETS; b++) {
+            if (buckets.get(b) == shard) {
+                owned.append(',').append(b);
+            }
+        }
+        return owned.append(')').toString();
+    }
+
+    private static long[] totals(Shard shard, String owned) throws SQLException {
+        PooledConnection pc = shard.pool.borrow();
+        try (Statement stmt = pc.conn.createStatement();
+             ResultSet rs = stmt.executeQuery(SQL_TOTALS + owned)) {
+            rs.next();
+            return new long[] {rs.getLong(1), rs.getLong(2), rs.getLong(3)};
+        } finally {
+            shard.pool.release(pc);
+        }
+    }
+
+    private final class Shards implements ShardsMBean {
+        public int getShardCount() {
+            return shards.length;
+        }
+
+        public String getBuckets() {
+            StringBuilder owners = new StringBuilder();
+            for (int b = 0; b < BUCKETS; b++) {
+                owners.append(b == 0 ? "" : ",").append(buckets.get(b));
+            }
+            return owners.toString();
+        }
+
+        public String report() {
+            try {
+                return ShardMap.this.report().toString();
+            } catch (SQLException e) {
+                return e.toString();
+            }
+        }
+
+        public String rebalance(int count) {
+            try {
+                return "Moved " + ShardMap.this.rebalance(count) + " accounts";
+            } catch (IOException | SQLException | RuntimeException e) {
+                return e.toString();
+            }
+        }
+    }
+
+    /** Changes the number of shards from the command line<br>
+     *  {@code java ShardMap [map file] <shards>}, the map file defaults to {@code atm.shards}.<br>
+     *  Refused while a running bank has the map open, it is rebalanced through JMX instead
+     *
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java ShardMap [map file] <shards>");
+            return;
+        }
+        String path = args.length == 2 ? args[0] : "atm.shards";
+        int count = Integer.parseInt(args[args.length - 1]);
+
+        if (!new File(path).exists()) {
+            //A map made here would miss the bank's accounts, the bank creates it with them
+            System.out.println("No shard map " + path + ", start the bank with " +
+                               "-Datm.store=sharded to create it");
+            return;
+        }
+        ShardMap map;
+        try {
+            map = open(path, count, null);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        System.out.println("Before: " + map.getShardCount() + " shards, " + map.report());
+        System.out.println("Moved " + map.rebalance(count) + " accounts");
+        System.out.println("After: " + map.getShardCount() + " shards, " + map.report());
+    }
+}
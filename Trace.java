@@ -0,0 +1,271 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**Asynchronous tracing with a level per category<br>
+ * Callers only check a level and put an event into a lock-free ring buffer, the message<br>
+ * is formatted and written to {@code System.out} by a single background thread. When the<br>
+ * buffer is full new events are dropped and counted rather than blocking the caller.<br>
+ * {@link Debug#trace} is built on top of this
+ */
+public class Trace
+{
+    /**Parts of the program that can be traced separately*/
+    public enum Category { MODEL, LOCALBANK, DATAHANDLER, VIEW, OTHER }
+
+    /**How much to trace, each level includes the ones before it*/
+    public enum Level { OFF, ERROR, INFO, DEBUG }
+
+    /**Number of events the ring buffer holds, must be a power of two*/
+    static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    /**How long the writer sleeps when there is nothing to write*/
+    private static final long IDLE_PARK_NANOS = 10000000L;
+
+    /**Current level of each category, indexed by ordinal, set from any thread*/
+    private static final AtomicReferenceArray<Level> levels =
+            new AtomicReferenceArray<Level>(Category.values().length);
+
+    //Ring buffer, producers claim slots by moving tail, the writer follows with head
+    private static final AtomicReferenceArray<Event> slots = new AtomicReferenceArray<Event>(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head = 0;
+    /**Events before this have been written and flushed to {@code System.out}*/
+    private static volatile long written = 0;
+    /**Sequence a {@link #flush} is waiting to see written, so a busy writer flushes early*/
+    private static volatile long flushTarget = 0;
+
+    /**Events thrown away because the buffer was full*/
+    private static final LongAdder dropped = new LongAdder();
+    /**Set while the writer is parked with an empty buffer*/
+    private static volatile boolean writerIdle = false;
+    /**The background writer thread*/
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < levels.length(); i++) {
+            levels.set(i, Level.DEBUG);
+        }
+
+        writer = new Thread(Trace::drain, "Trace writer");
+        writer.setDaemon(true);
+        writer.start();
+        //Don't lose the last messages when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000)));
+    }
+
+    /**A single traced message, formatted by the writer*/
+    private static final class Event {
+        final String fmt;
+        final Object[] params;
+        final Supplier<String> supplier;
+
+        Event(String fmt, Object[] params, Supplier<String> supplier) {
+            this.fmt = fmt;
+            this.params = params;
+            this.supplier = supplier;
+        }
+
+        String text() {
+            if (supplier != null) {
+                return supplier.get();
+            }
+            if (params == null || params.length == 0) {
+                return fmt;
+            }
+            try {
+                return String.format(fmt, params);
+            } catch (RuntimeException e) {
+                return fmt;
+            }
+        }
+    }
+
+    /** Sets how much a category traces
+     *
+     * @param category The category to change
+     * @param level    The new level, {@code OFF} silences it
+     * @return         The old level
+     */
+    public static Level setLevel(Category category, Level level) {
+        return levels.getAndSet(category.ordinal(), level);
+    }
+
+    /** Sets the level of every category
+     *
+     * @param level The new level
+     */
+    public static void setLevel(Level level) {
+        for (Category category : Category.values()) {
+            setLevel(category, level);
+        }
+    }
+
+    /** Checks whether a message would be traced, use before building an expensive message
+     *
+     * @param category The category of the message
+     * @param level    The level of the message
+     */
+    public static boolean isEnabled(Category category, Level level) {
+        return level.compareTo(levels.get(category.ordinal())) <= 0 && level != Level.OFF;
+    }
+
+    /** Traces a message that is only built if the category is enabled, on the writer thread
+     *
+     * @param category The category of the message
+     * @param level    The level of the message
+     * @param message  Builds the message
+     */
+    public static void log(Category category, Level level, Supplier<String> message) {
+        if (isEnabled(category, level)) {
+            offer(new Event(null, null, message));
+        }
+    }
+
+    /** Traces a printf style message, formatted on the writer thread
+     *
+     * @param category The category of the message
+     * @param level    The level of the message
+     * @param fmt      The same as printf etc
+     * @param params   The parameters to fmt
+     */
+    public static void log(Category category, Level level, String fmt, Object... params) {
+        if (isEnabled(category, level)) {
+            offer(new Event(fmt, params, null));
+        }
+    }
+
+    /** Works out the category of a message from its {@code Class::} prefix
+     *
+     * @param fmt The message
+     * @return    The matching category, or {@code OTHER}
+     */
+    public static Category categoryOf(String fmt) {
+        if (fmt.startsWith("Model::")) {
+            return Category.MODEL;
+        } else if (fmt.startsWith("LocalBank::")) {
+            return Category.LOCALBANK;
+        } else if (fmt.startsWith("DataHandler::")) {
+            return Category.DATAHANDLER;
+        } else if (fmt.startsWith("View::")) {
+            return Category.VIEW;
+        }
+        return Category.OTHER;
+    }
+
+    /** Returns the number of events dropped because the buffer was full
+     *
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    /** Waits for everything traced so far to be written and flushed
+     *
+     * @param timeoutMillis The longest time to wait
+     */
+    public static void flush(long timeoutMillis) {
+        long target = tail.get();
+        flushTarget = target;
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while (written < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            Thread.yield();
+        }
+    }
+
+    /** Puts an event into the ring buffer, or drops it if full
+     *
+     */
+    private static void offer(Event event) {
+        long t;
+        do {
+            t = tail.get();
+            if (t - head >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+
+        slots.lazySet((int) (t & MASK), event);
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /** The writer thread, takes events from the buffer in order and writes them
+     *
+     */
+    private static void drain() {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        long reported = 0;
+
+        while (true) {
+            int index = (int) (head & MASK);
+            Event event = slots.get(index);
+
+            if (event == null) {
+                if (head == tail.get()) {
+                    //Buffer is empty, write out what we have and wait
+                    reported = reportDropped(out, reported);
+                    flushQuietly(out);
+                    written = head;
+                    writerIdle = true;
+                    if (head == tail.get()) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    writerIdle = false;
+                } else {
+                    //Slot claimed but not yet filled in
+                    Thread.onSpinWait();
+                }
+                continue;
+            }
+
+            slots.lazySet(index, null);
+            head = head + 1;
+            try {
+                out.write(event.text());
+                out.write(System.lineSeparator());
+            } catch (IOException | RuntimeException e) {
+                //Nothing sensible to do with a failed trace
+            }
+            if (written < flushTarget && head >= flushTarget) {
+                //Someone is waiting for this event, don't wait for the buffer to empty
+                flushQuietly(out);
+                written = head;
+            }
+        }
+    }
+
+    /** Writes a note when more events have been dropped since the last one
+     *
+     * @return The number of dropped events now reported
+     */
+    private static long reportDropped(Writer out, long reported) {
+        long total = dropped.sum();
+        if (total != reported) {
+            try {
+                out.write("Trace::dropped " + (total - reported) + " events" +
+                          System.lineSeparator());
+            } catch (IOException e) {
+                //Ignore
+            }
+        }
+        return total;
+    }
+
+    private static void flushQuietly(Writer out) {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            //Ignore
+        }
+    }
+}
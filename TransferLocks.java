@@ -0,0 +1,56 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+/**Striped locks that hold two accounts still while money moves between them<br>
+ * Each account id hashes to one of a fixed number of stripes. A transfer locks the stripes<br>
+ * of both its accounts, always the lower numbered stripe first, so two transfers going<br>
+ * opposite ways between the same accounts queue up instead of deadlocking. There is no<br>
+ * lock over all the accounts, transfers between unrelated accounts run side by side
+ */
+public class TransferLocks
+{
+    /**Number of stripes, a power of two*/
+    static final int STRIPES = 1024;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    public TransferLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /** Returns the stripe of an account
+     *
+     */
+    static int stripeOf(int id) {
+        return AccountTable.mix(id) & (STRIPES - 1);
+    }
+
+    /** Locks two accounts, waiting for any transfer already using either of them<br>
+     *  Every {@code lock} must be followed by an {@link #unlock} of the same accounts
+     *
+     * @param a One account
+     * @param b The other, may share a stripe with {@code a}
+     */
+    void lock(int a, int b) {
+        int first = stripeOf(a);
+        int second = stripeOf(b);
+        //Lower stripe first, so no two transfers wait on each other
+        stripes[Math.min(first, second)].lock();
+        if (first != second) {
+            stripes[Math.max(first, second)].lock();
+        }
+    }
+
+    /** Unlocks two accounts locked with {@link #lock}
+     *
+     */
+    void unlock(int a, int b) {
+        int first = stripeOf(a);
+        int second = stripeOf(b);
+        if (first != second) {
+            stripes[Math.max(first, second)].unlock();
+        }
+        stripes[Math.min(first, second)].unlock();
+    }
+}
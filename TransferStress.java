@@ -0,0 +1,179 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**Checks that transfers never create or lose money, however many run at once<br>
+ * A session is logged in to each account, and a pool of threads, many more than there are<br>
+ * accounts by default, fires transfers between random pairs of them as fast as it can, so<br>
+ * the same accounts are always being paid into and out of in both directions. A thread uses<br>
+ * a session on its own while it holds it, like one terminal. Every tenth operation is a<br>
+ * withdrawal paid straight back in instead, so the ledger has changes for a transfer to<br>
+ * flush first. Afterwards every account is read back: the total must be what it was before,<br>
+ * and no account may be past its overdraft limit. Runs against the store picked by<br>
+ * {@code -Datm.store} with the ledger open, like {@code Main}. Exits with status 1 if a<br>
+ * check fails.
+ * <p>
+ * {@code java TransferStress [--accounts 50] [--threads 200] [--transfers 500] [--max 100]}<br>
+ * {@code [--cost n] [--db atm-transfer.db] [--ledger atm-transfer.ledger]}
+ */
+public class TransferStress
+{
+    /**First account number created for the test*/
+    static final int FIRST_ACCOUNT = 700000;
+    static final int PASSWORD = 24680;
+    static final int STARTING_BALANCE = 100000;
+
+    final int accounts;
+    final int threads;
+    final int transfers;
+    /**Largest amount moved by one transfer*/
+    final int maxAmount;
+
+    final LongAdder moved = new LongAdder();
+    final LongAdder refused = new LongAdder();
+    /**Withdrawals paid back in, which must leave every balance as it was*/
+    final LongAdder roundTrips = new LongAdder();
+
+    /** {@code TransferStress} constructor
+     *
+     * @param accounts  Number of accounts, each with its own session
+     * @param threads   Threads making transfers at once
+     * @param transfers Operations made by each thread
+     * @param maxAmount Largest amount moved by one transfer
+     */
+    public TransferStress(int accounts, int threads, int transfers, int maxAmount) {
+        this.accounts = accounts;
+        this.threads = threads;
+        this.transfers = transfers;
+        this.maxAmount = maxAmount;
+    }
+
+    /** Logs in to an account, failing the run if it can't
+     *
+     */
+    LocalBank logIn(Function<LocalBank, AccountStore> stores, int id) {
+        LocalBank bank = new LocalBank(stores);
+        bank.setAccNumber(id);
+        bank.setAccPasswd(PASSWORD);
+        if (!bank.checkValid()) {
+            throw new IllegalStateException("Couldn't log in to " + id);
+        }
+        return bank;
+    }
+
+    /** Adds up every account's balance, logging in to each in turn
+     *
+     * @return {total, accounts past their overdraft limit}
+     */
+    long[] totals(Function<LocalBank, AccountStore> stores) {
+        long[] totals = new long[2];
+        for (int i = 0; i < accounts; i++) {
+            LocalBank bank = logIn(stores, FIRST_ACCOUNT + i);
+            totals[0] += bank.currentAccount.balance;
+            if (bank.currentAccount.balance <= bank.currentAccount.overdraft) {
+                totals[1]++;
+            }
+            bank.logOut();
+        }
+        return totals;
+    }
+
+    /** Runs every thread's operations at once and waits for them to finish
+     *
+     */
+    void run(Function<LocalBank, AccountStore> stores) throws InterruptedException {
+        LocalBank[] banks = new LocalBank[accounts];
+        for (int i = 0; i < accounts; i++) {
+            banks[i] = logIn(stores, FIRST_ACCOUNT + i);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int n = 0; n < transfers; n++) {
+                    int self = random.nextInt(accounts);
+                    //Any account but this one
+                    int other = (self + 1 + random.nextInt(accounts - 1)) % accounts;
+                    int amount = 1 + random.nextInt(maxAmount);
+                    LocalBank bank = banks[self];
+                    //A session is one terminal, only one thread uses it at a time
+                    synchronized (bank) {
+                        if (random.nextInt(10) == 0) {
+                            if (bank.withdraw(amount) && bank.deposit(amount)) {
+                                roundTrips.increment();
+                            }
+                        } else {
+                            boolean done = bank.transfer(FIRST_ACCOUNT + other, amount);
+                            (done ? moved : refused).increment();
+                        }
+                    }
+                }
+            }, "Transfer worker " + i);
+            workers[i].start();
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (LocalBank bank : banks) {
+            bank.logOut();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        TransferStress stress = new TransferStress(
+                Math.max(2, Integer.parseInt(options.getOrDefault("accounts", "50"))),
+                Math.max(1, Integer.parseInt(options.getOrDefault("threads", "200"))),
+                Integer.parseInt(options.getOrDefault("transfers", "500")),
+                Integer.parseInt(options.getOrDefault("max", "100")));
+        Debug.set(false);
+
+        ConnectionPool pool = new ConnectionPool(
+                "jdbc:sqlite:" + options.getOrDefault("db", "atm-transfer.db"), DataHandler.POOL_SIZE);
+        Schema.migrate(pool);
+        if (options.containsKey("cost")) {
+            CryptoService.shared().setCost(Integer.parseInt(options.get("cost")));
+        }
+        //Withdrawals and deposits go to the ledger, as they do in the bank by default
+        Ledger ledger = Ledger.open(options.getOrDefault("ledger", "atm-transfer.ledger"), pool);
+        Function<LocalBank, AccountStore> stores = LocalBank.configuredStores(pool);
+
+        //Accounts left by an earlier run are kept, only the total has to stay the same
+        AccountStore creator = new LocalBank(stores).data;
+        for (int i = 0; i < stress.accounts; i++) {
+            creator.createAccount(FIRST_ACCOUNT + i, PASSWORD, STARTING_BALANCE, 0, "BasicAccount");
+        }
+
+        long[] before = stress.totals(stores);
+        long started = System.nanoTime();
+        stress.run(stores);
+        long millis = (System.nanoTime() - started) / 1000000;
+        //Logging in applies each account's ledger changes before reading it back
+        long[] after = stress.totals(stores);
+        ledger.close();
+
+        System.out.printf("%d threads on %d sessions, %d transfers made and %d refused, " +
+                          "%d withdrawals paid back, in %d ms%n", stress.threads, stress.accounts,
+                          stress.moved.sum(), stress.refused.sum(), stress.roundTrips.sum(), millis);
+        System.out.printf("Total before %d, after %d, %d accounts past their overdraft%n",
+                          before[0], after[0], after[1]);
+        boolean passed = before[0] == after[0] && after[1] == 0;
+        System.out.println(passed ? "PASSED, money conserved" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+}
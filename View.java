@@ -1,3 +1,4 @@
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
@@ -9,8 +10,14 @@ import java.util.*;
 
 /** The View class creates and manages the GUI for the application. It displays
  * the current state of the Model, and handles user input.
+ * <p>
+ * Model events only mark the view dirty. All changes raised before the next pulse are<br>
+ * rendered together by one {@link #render}, which only touches controls whose text differs<br>
+ * from what was last rendered. A frame's time is that render plus the CSS and layout pass of<br>
+ * the pulse that follows it, timed by the scene's pulse listeners, so the cost of the changes<br>
+ * to the scene is counted and not just the calls that made them.
  */
-public class View
+public class View implements ModelListener
 {
     /**Height of window in pixels*/
     int H = 420;
@@ -28,8 +35,34 @@ public class View
     TilePane   optionPaneR;   //Right option buttons
     TilePane   numpadPane;    //Central numpad
     
-    /**Map used for easy modification of option buttons*/
-    public Map<String, Button> paneMap = new HashMap<String, Button>();   
+    /**Number of option buttons, left 1-4 followed by right 1-4*/
+    static final int OPTIONS = 8;
+    /**Time a frame should stay under, one frame at 60Hz*/
+    static final long FRAME_BUDGET_NANOS = 16666667;
+    
+    /**Option buttons, left 1-4 followed by right 1-4*/
+    final Button[] optionButtons = new Button[OPTIONS];
+    
+    //What is currently on screen, compared against the model when rendering
+    String renderedDisplay1 = null;
+    String renderedDisplay2 = null;
+    final String[] renderedOptions = new String[OPTIONS];
+    
+    //Changes waiting for the next render
+    boolean displayDirty = false;
+    String[] pendingOptions = null;
+    /**Set while a render is scheduled with {@code Platform.runLater}*/
+    boolean renderScheduled = false;
+    
+    //Frame statistics, see getFrameStats()
+    /**Time spent rendering since the last pulse, 0 if nothing was rendered*/
+    long renderNanos = 0;
+    /**When the current pulse's CSS and layout started*/
+    long layoutStart = 0;
+    long frames = 0;
+    long totalFrameNanos = 0;
+    long maxFrameNanos = 0;
+    long overBudget = 0;
 
     // The other parts of the model-view-controller setup
     public Model model;
@@ -124,8 +157,8 @@ public class View
             rightButton.setId("OptionsButtons");
             leftButton.setOnAction(this::buttonClicked);
             rightButton.setOnAction(this::buttonClicked);
-            paneMap.put("Left" + i, leftButton);
-            paneMap.put("Right" + i, rightButton);
+            optionButtons[i - 1] = leftButton;
+            optionButtons[i + 3] = rightButton;
             optionPaneL.getChildren().add(leftButton);
             optionPaneR.getChildren().add(rightButton);
         }
@@ -138,6 +171,8 @@ public class View
         Scene scene = new Scene(grid, W, H);   
         scene.getStylesheets().add("atm.css"); // tell the app to use our css file
         window.setScene(scene);
+        scene.addPreLayoutPulseListener(() -> layoutStart = System.nanoTime());
+        scene.addPostLayoutPulseListener(this::frameLaidOut);
         window.show();
 
         // set the opening message at the top
@@ -151,7 +186,7 @@ public class View
         Button b = ((Button) event.getSource());
         if ( controller != null ) {          
             String label = b.getText();   // get the button label
-            Debug.trace( "View::buttonClicked:: Label = "+ label );
+            Debug.trace( "View::buttonClicked:: Label = %s", label );
             // Try setting a breakpoint here
             controller.process( label );  // Pass it to the controller's process method
         }
@@ -159,32 +194,107 @@ public class View
     }
     
     /** Method for updating all 8 side options at once,<br>
-     *  allows for easier customisation
+     *  allows for easier customisation. Only labels that changed are set
      *  
      * @param args 8 strings to assign the button labels
      */
     public void updateOptions(String... args) {
-        paneMap.get("Left1").setText(args[0]);
-        paneMap.get("Left2").setText(args[1]);
-        paneMap.get("Left3").setText(args[2]);
-        paneMap.get("Left4").setText(args[3]);
-        paneMap.get("Right1").setText(args[4]);
-        paneMap.get("Right2").setText(args[5]);
-        paneMap.get("Right3").setText(args[6]);
-        paneMap.get("Right4").setText(args[7]); 
+        for (int i = 0; i < OPTIONS; i++) {
+            if (!args[i].equals(renderedOptions[i])) {
+                optionButtons[i].setText(args[i]);
+                renderedOptions[i] = args[i];
+            }
+        }
+    }
+
+    /** Called by the model when its display messages change
+     * 
+     */
+    public void displayChanged(Model source) {
+        displayDirty = true;
+        scheduleRender();
+    }
+    
+    /** Called by the model when the option buttons need relabelling
+     * 
+     */
+    public void optionsChanged(Model source, String[] options) {
+        pendingOptions = options;
+        scheduleRender();
+    }
+    
+    /** Asks for a render on the next pulse, unless one is already waiting
+     * 
+     */
+    void scheduleRender() {
+        if (!renderScheduled) {
+            renderScheduled = true;
+            Platform.runLater(this::render);
+        }
+    }
+    
+    /** Applies every change since the last render in one go, and times it for the frame
+     * 
+     */
+    void render() {
+        long start = System.nanoTime();
+        renderScheduled = false;
+        
+        if (pendingOptions != null) {
+            updateOptions(pendingOptions);
+            pendingOptions = null;
+        }
+        if (displayDirty) {
+            displayDirty = false;
+            update();
+        }
+        renderNanos += Math.max(1, System.nanoTime() - start);
+    }
+    
+    /** Called after each pulse's CSS and layout, records the frame if anything was rendered
+     * 
+     */
+    void frameLaidOut() {
+        if (renderNanos == 0) {
+            return;
+        }
+        long took = renderNanos + System.nanoTime() - layoutStart;
+        renderNanos = 0;
+        frames++;
+        totalFrameNanos += took;
+        maxFrameNanos = Math.max(maxFrameNanos, took);
+        if (took > FRAME_BUDGET_NANOS) {
+            overBudget++;
+            Debug.trace("View::frameLaidOut:: Frame took %d us, over budget", took / 1000);
+        }
+    }
+    
+    /** Returns the frame time statistics
+     * 
+     */
+    public String getFrameStats() {
+        return String.format("frames=%d avg=%.1fus max=%.1fus overBudget=%d", frames,
+                             frames == 0 ? 0 : totalFrameNanos / 1000.0 / frames,
+                             maxFrameNanos / 1000.0, overBudget);
     }
 
     // This is how the Model talks to the View
-    // This method gets called BY THE MODEL, whenever the model changes
+    // This method gets called by render, once per pulse after the model changes
     // It has to do whatever is required to update the GUI to show the new model status
     public void update() {        
         if (model != null) {
             Debug.trace( "View::update" );
             // Try setting a breakpoint here
-            String message1 = model.display1;     // get the new message1 from the model
-            output1.setText( message1 );            // add it as text of GUI control output1
-            String message2 = model.display2;     // get the new message2 from the model
-            output2.setText( message2 );            // add it as text of GUI control output2
+            String message1 = model.getDisplay1();   // get the new message1 from the model
+            if (!message1.equals(renderedDisplay1)) {
+                output1.setText( message1 );        // add it as text of GUI control output1
+                renderedDisplay1 = message1;
+            }
+            String message2 = model.getDisplay2();   // get the new message2 from the model
+            if (!message2.equals(renderedDisplay2)) {
+                output2.setText( message2 );        // add it as text of GUI control output2
+                renderedDisplay2 = message2;
+            }
         }
     }
 }
@@ -0,0 +1,325 @@
+import java.sql.*;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**How much cash each account has taken out lately, so withdrawals can be capped per hour<br>
+ * and per day without asking the database<br>
+ * Each account that has withdrawn gets a slot in an open-addressing table keyed by its id.<br>
+ * A slot holds a ring of buckets for each window, one minute wide for the hour and one hour<br>
+ * wide for the day, and a window's total is the sum of its ring. Buckets that fall out of a<br>
+ * window are cleared when the slot is next used, so nothing is scanned in the background.<br>
+ * Every change is also added to the account's row for that minute in the database by the<br>
+ * group commit writer, without waiting, and {@link #open} reads the last day back in.<br>
+ * Older rows are deleted by the writer in the background, starting when it is opened.
+ * <p>
+ * Limits are set per account type in pounds, e.g. {@code -Datm.limit.StudentAccount.daily=300},<br>
+ * and 0 turns a window's limit off
+ */
+public class WithdrawalLimits
+{
+    //Windows
+    static final int HOURLY = 0;
+    static final int DAILY = 1;
+    static final String[] WINDOWS = {"hourly", "daily"};
+    /**Buckets in each window's ring*/
+    static final int[] BUCKETS = {60, 24};
+    /**Width of each window's buckets*/
+    static final int[] BUCKET_MINUTES = {1, 60};
+    /**Ints per slot, every window's ring one after the other*/
+    static final int SLOT_INTS = BUCKETS[HOURLY] + BUCKETS[DAILY];
+    /**Default limits, {hourly, daily} by account type code*/
+    static final int[][] DEFAULT_LIMITS = {
+        {300, 500},     //Basic
+        {100, 250},     //Student
+    };
+
+    /**Marks a free slot*/
+    static final int FREE = Integer.MIN_VALUE;
+    /**Returned by {@link #reserve} when a withdrawal would pass a limit*/
+    static final int REFUSED = -1;
+    static final int DEFAULT_CAPACITY = 1024;
+    /**Minutes between deletions of rows older than a day*/
+    static final long PRUNE_INTERVAL_MINUTES = 60;
+
+    static final String SQL_ADD_MINUTE = "INSERT INTO withdrawals(id, minute, amount) " +
+            "VALUES (?,?,?) ON CONFLICT(id, minute) DO UPDATE SET amount = amount + excluded.amount";
+    static final String SQL_SELECT_SINCE = "SELECT id, minute, amount FROM withdrawals " +
+            "WHERE minute > ? ORDER BY minute";
+    static final String SQL_DELETE_BEFORE = "DELETE FROM withdrawals WHERE minute <= ?";
+
+    /**The limits in use, {@code null} until {@link #open}*/
+    private static volatile WithdrawalLimits active = null;
+
+    /**Limits by type code and window*/
+    final int[][] limits = new int[LocalBankAccount.TYPES.length][WINDOWS.length];
+    /**Writes changes to the database, {@code null} to keep them in memory only*/
+    final GroupCommitWriter writer;
+
+    //The slots, guarded by this
+    private int[] ids;
+    /**Minute each slot was last brought up to*/
+    private int[] minutes;
+    /**Each slot's buckets, {@link #SLOT_INTS} per slot*/
+    private int[] buckets;
+    private int mask;
+    private int size = 0;
+
+    /** {@code WithdrawalLimits} constructor, reads the limits from the system properties
+     *
+     * @param writer Writes changes to the database, or {@code null} for none
+     */
+    public WithdrawalLimits(GroupCommitWriter writer) {
+        this.writer = writer;
+        for (int type = 0; type < limits.length; type++) {
+            for (int w = 0; w < WINDOWS.length; w++) {
+                limits[type][w] = Integer.getInteger("atm.limit." + LocalBankAccount.TYPES[type] +
+                                                     "." + WINDOWS[w], DEFAULT_LIMITS[type][w]);
+            }
+        }
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    /** Opens the limits for a database, reading back the last day's withdrawals and starting<br>
+     *  to delete older ones in the background. Every session's withdrawals are checked<br>
+     *  against them from then on
+     *
+     * @param pool          Connection pool for the database
+     * @return              The limits
+     * @throws SQLException If the withdrawals couldn't be read
+     */
+    public static WithdrawalLimits open(ConnectionPool pool) throws SQLException {
+        long start = System.nanoTime();
+        WithdrawalLimits opened = new WithdrawalLimits(GroupCommitWriter.forDatabase(pool));
+        int since = minuteNow() - BUCKETS[DAILY] * BUCKET_MINUTES[DAILY];
+        int rows = 0;
+
+        PooledConnection pc = pool.borrow();
+        try {
+            PreparedStatement select = pc.prepare(SQL_SELECT_SINCE);
+            select.setInt(1, since);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    opened.add(rs.getInt("id"), rs.getInt("minute"), rs.getInt("amount"));
+                    rows++;
+                }
+            }
+        } finally {
+            pool.release(pc);
+        }
+
+        ScheduledExecutorService pruner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Withdrawal pruner");
+            t.setDaemon(true);
+            return t;
+        });
+        //Rows older than a day are left out above, deleting them needn't hold up startup
+        pruner.scheduleWithFixedDelay(opened::prune, 0, PRUNE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        active = opened;
+        Debug.trace("WithdrawalLimits::open:: %d minutes of %d accounts in %d ms", rows,
+                    opened.size, (System.nanoTime() - start) / 1000000);
+        return opened;
+    }
+
+    /** Returns the limits opened with {@link #open}
+     *
+     * @return The limits, or {@code null} if withdrawals aren't limited
+     */
+    static WithdrawalLimits get() {
+        return active;
+    }
+
+    private static int minuteNow() {
+        return (int) (System.currentTimeMillis() / 60000);
+    }
+
+    private void allocate(int capacity) {
+        ids = new int[capacity];
+        Arrays.fill(ids, FREE);
+        minutes = new int[capacity];
+        buckets = new int[capacity * SLOT_INTS];
+        mask = capacity - 1;
+    }
+
+    /** Returns the slot holding an account, adding it if it has none
+     *
+     */
+    private int slotOf(int id) {
+        if ((size + 1) * 2 > ids.length) {
+            grow();
+        }
+        int slot = AccountTable.mix(id) & mask;
+        while (ids[slot] != FREE && ids[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        if (ids[slot] == FREE) {
+            ids[slot] = id;
+            size++;
+        }
+        return slot;
+    }
+
+    /** Doubles the slots, rehashing every account
+     *
+     */
+    private void grow() {
+        int[] oldIds = ids;
+        int[] oldMinutes = minutes;
+        int[] oldBuckets = buckets;
+        allocate(oldIds.length * 2);
+        for (int old = 0; old < oldIds.length; old++) {
+            if (oldIds[old] != FREE) {
+                int slot = AccountTable.mix(oldIds[old]) & mask;
+                while (ids[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                ids[slot] = oldIds[old];
+                minutes[slot] = oldMinutes[old];
+                System.arraycopy(oldBuckets, old * SLOT_INTS, buckets, slot * SLOT_INTS, SLOT_INTS);
+            }
+        }
+    }
+
+    /** Moves a slot's rings forward to a minute, clearing the buckets that have fallen out<br>
+     *  of their windows. A minute before the slot's last is left alone
+     *
+     */
+    private void advance(int slot, int minute) {
+        int last = minutes[slot];
+        if (minute <= last) {
+            return;
+        }
+        int base = slot * SLOT_INTS;
+        for (int w = 0; w < WINDOWS.length; w++) {
+            int from = last / BUCKET_MINUTES[w];
+            int to = minute / BUCKET_MINUTES[w];
+            int clear = (int) Math.min((long) to - from, BUCKETS[w]);
+            for (int i = 1; i <= clear; i++) {
+                buckets[base + (from + i) % BUCKETS[w]] = 0;
+            }
+            base += BUCKETS[w];
+        }
+        minutes[slot] = minute;
+    }
+
+    /** Adds an amount to the buckets of a minute, moving the slot forward to it first<br>
+     *  A minute before the slot's last is only counted in the windows it is still inside
+     *
+     */
+    private void add(int id, int minute, int amount) {
+        int slot = slotOf(id);
+        advance(slot, minute);
+        int base = slot * SLOT_INTS;
+        for (int w = 0; w < WINDOWS.length; w++) {
+            int bucket = minute / BUCKET_MINUTES[w];
+            if (minutes[slot] / BUCKET_MINUTES[w] - bucket < BUCKETS[w]) {
+                buckets[base + bucket % BUCKETS[w]] += amount;
+            }
+            base += BUCKETS[w];
+        }
+    }
+
+    /** Returns the total of one of a slot's windows
+     *
+     */
+    private int total(int slot, int window) {
+        int base = slot * SLOT_INTS + (window == DAILY ? BUCKETS[HOURLY] : 0);
+        int total = 0;
+        for (int i = 0; i < BUCKETS[window]; i++) {
+            total += buckets[base + i];
+        }
+        return total;
+    }
+
+    /** Counts a withdrawal against an account's limits if it is within all of them<br>
+     *  Call {@link #cancel} with the minute returned if the withdrawal then doesn't happen
+     *
+     * @param id     The account
+     * @param type   Its type code, an unknown type has no limits
+     * @param amount The amount to withdraw
+     * @return       The minute it was counted in, or {@link #REFUSED} if it would take the<br>
+     *               account past a limit
+     */
+    public int reserve(int id, int type, int amount) {
+        int minute = minuteNow();
+        if (type < 0 || type >= limits.length) {
+            return minute;
+        }
+        synchronized (this) {
+            int slot = slotOf(id);
+            advance(slot, minute);
+            for (int w = 0; w < WINDOWS.length; w++) {
+                int limit = limits[type][w];
+                if (limit > 0 && total(slot, w) + amount > limit) {
+                    Debug.trace("WithdrawalLimits::reserve:: %d over its %s limit", id, WINDOWS[w]);
+                    return REFUSED;
+                }
+            }
+            add(id, minute, amount);
+        }
+        persist(id, minute, amount);
+        return minute;
+    }
+
+    /** Takes back a withdrawal counted by {@link #reserve} that didn't happen, from the<br>
+     *  minute it was counted in even if a new minute has started since
+     *
+     * @param minute The minute {@link #reserve} returned
+     */
+    public void cancel(int id, int type, int amount, int minute) {
+        if (type < 0 || type >= limits.length) {
+            return;
+        }
+        synchronized (this) {
+            add(id, minute, -amount);
+        }
+        persist(id, minute, -amount);
+    }
+
+    /** Returns how much an account has withdrawn in a window
+     *
+     * @param window {@link #HOURLY} or {@link #DAILY}
+     */
+    public synchronized int getWithdrawn(int id, int window) {
+        int slot = slotOf(id);
+        advance(slot, minuteNow());
+        return total(slot, window);
+    }
+
+    /** Queues a change to an account's minute for the writer, without waiting
+     *
+     */
+    private void persist(int id, int minute, int amount) {
+        if (writer == null) {
+            return;
+        }
+        writer.submit(pc -> {
+            PreparedStatement upsert = pc.prepare(SQL_ADD_MINUTE);
+            upsert.setInt(1, id);
+            upsert.setInt(2, minute);
+            upsert.setInt(3, amount);
+            return upsert.executeUpdate();
+        }).whenComplete((rows, e) -> {
+            if (e != null) {
+                Debug.trace("WithdrawalLimits::persist DBerror::" + e);
+            }
+        });
+    }
+
+    /** Deletes rows that have fallen out of every window
+     *
+     */
+    private void prune() {
+        int before = minuteNow() - BUCKETS[DAILY] * BUCKET_MINUTES[DAILY];
+        writer.submit(pc -> {
+            PreparedStatement delete = pc.prepare(SQL_DELETE_BEFORE);
+            delete.setInt(1, before);
+            return delete.executeUpdate();
+        }).whenComplete((rows, e) -> {
+            if (e != null) {
+                Debug.trace("WithdrawalLimits::prune DBerror::" + e);
+            }
+        });
+    }
+}